@@ -1,6 +1,7 @@
 plugins {
     id("java")
     id("org.jetbrains.intellij") version "1.12.0"
+    id("me.champeau.jmh") version "0.7.2"
 }
 
 group = "com.weakviord"
@@ -10,6 +11,15 @@ repositories {
     mavenCentral()
 }
 
+dependencies {
+    jmh("org.openjdk.jmh:jmh-core:1.37")
+    jmh("org.openjdk.jmh:jmh-generator-annprocess:1.37")
+    jmhAnnotationProcessor("org.openjdk.jmh:jmh-generator-annprocess:1.37")
+    testImplementation("junit:junit:4.13.2")
+    // 预算测试直接调用基准测试类，不经过 JMH 运行器
+    testImplementation("org.openjdk.jmh:jmh-core:1.37")
+}
+
 intellij {
     version.set("2023.1")
     type.set("IC")
@@ -35,6 +45,31 @@ tasks {
         enabled = false
     }
 
+    // 预算按较慢的 CI 机器设定，更慢的机器可以用 -PbudgetScale=2 放宽
+    test {
+        systemProperty("filetagger.budgetScale", project.findProperty("budgetScale") ?: "1")
+        systemProperty("java.awt.headless", "true")
+        maxHeapSize = "2g"
+        // 耗时和保留堆大小的预算受机器负载影响，由 budgetTest 单独运行
+        useJUnit {
+            excludeCategories("com.weakviord.filetagger.service.MachineDependent")
+        }
+    }
+
+    // ./gradlew budgetTest，只运行耗时和保留堆大小的预算测试，不在默认的 test 和 check 中
+    register<Test>("budgetTest") {
+        description = "Runs the wall-time and retained-heap budget tests."
+        group = "verification"
+        testClassesDirs = sourceSets["test"].output.classesDirs
+        classpath = sourceSets["test"].runtimeClasspath
+        systemProperty("filetagger.budgetScale", project.findProperty("budgetScale") ?: "1")
+        systemProperty("java.awt.headless", "true")
+        maxHeapSize = "2g"
+        useJUnit {
+            includeCategories("com.weakviord.filetagger.service.MachineDependent")
+        }
+    }
+
     patchPluginXml {
         sinceBuild.set("231")
         untilBuild.set("251.*")
@@ -86,4 +121,26 @@ sourceSets {
             srcDirs("src/main/resources")
         }
     }
-} 
+    // 基准测试直接使用平台的类，不启动 IDE
+    named("jmh") {
+        compileClasspath += sourceSets["main"].compileClasspath
+        runtimeClasspath += sourceSets["main"].compileClasspath
+    }
+    // 性能预算测试复用基准测试的合成数据和工作负载
+    named("test") {
+        compileClasspath += sourceSets["jmh"].output
+        runtimeClasspath += sourceSets["jmh"].output
+    }
+}
+
+// ./gradlew jmh，结果按版本号写入 JSON，便于前后两次构建对比
+jmh {
+    fork.set(1)
+    warmupIterations.set(3)
+    iterations.set(5)
+    resultFormat.set("JSON")
+    resultsFile.set(layout.buildDirectory.file("reports/jmh/results-${project.version}.json"))
+    jvmArgs.set(listOf("-Djava.awt.headless=true", "-Xmx8g"))
+    // 测试使用 jmh 源集的输出，反过来包含测试会形成循环依赖
+    includeTests.set(false)
+}
@@ -0,0 +1,119 @@
+package com.weakviord.filetagger.service;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * 基准测试用的合成数据，不依赖 IDE 运行环境。路径按 "模块/包/文件" 组织，每个包 20 个文件、每个模块 100 个包；
+ * 标签的使用频率按编号递减，少数标签覆盖大部分文件，与实际项目的分布接近。
+ */
+public final class BenchmarkData {
+    public static final String ROOT = "/bench";
+    private static final int FILES_PER_PACKAGE = 20;
+    private static final int PACKAGES_PER_MODULE = 100;
+
+    private BenchmarkData() {
+    }
+
+    public static String tagName(int index) {
+        return "tag" + index;
+    }
+
+    public static String modulePath(int module) {
+        return ROOT + "/module" + module;
+    }
+
+    public static String packagePath(int packageIndex) {
+        return modulePath(packageIndex / PACKAGES_PER_MODULE) + "/src/pkg" + packageIndex % PACKAGES_PER_MODULE;
+    }
+
+    public static String filePath(int index) {
+        return packagePath(index / FILES_PER_PACKAGE) + "/File" + index + ".java";
+    }
+
+    // 每个文件 1 到 3 个标签
+    public static TagStorageService.State state(int pathCount, int tagCount, long seed) {
+        Random random = new Random(seed);
+        TagStorageService.State state = new TagStorageService.State();
+        for (int i = 0; i < tagCount; i++) {
+            TagStorageService.TagInfo info = new TagStorageService.TagInfo(tagName(i));
+            info.order = i;
+            state.availableTags.put(info.name, info);
+        }
+        for (int i = 0; i < pathCount; i++) {
+            int count = 1 + random.nextInt(3);
+            Set<String> tags = new HashSet<>(count * 2);
+            for (int n = 0; n < count; n++) {
+                // 平方后偏向编号小的标签
+                double r = random.nextDouble();
+                tags.add(tagName((int) (r * r * tagCount)));
+            }
+            state.fileTagsMap.put(filePath(i), tags);
+        }
+        return state;
+    }
+
+    // 与 TagStorageService.loadState 的 XML 路径相同，只是不经过项目和日志
+    public static TagSnapshot load(TagStorageService.State state) {
+        TagSnapshot.Builder builder = TagSnapshot.EMPTY.edit();
+        TagStorageService.applyXmlState(builder, state);
+        TagStorageService.recountUsage(builder);
+        return builder.build();
+    }
+
+    // 与日志模式加载相同：标签定义来自 XML，文件标签来自映射的快照，使用计数取自快照的组合表
+    public static TagSnapshot loadMapped(TagStorageService.State state, Path snapshotFile) throws IOException {
+        TagSnapshot.Builder builder = TagSnapshot.EMPTY.edit();
+        for (TagStorageService.TagInfo tagInfo : state.availableTags.values()) {
+            builder.mutableTags().put(tagInfo.name, tagInfo);
+            builder.mutableDictionary().getOrAdd(tagInfo.name);
+        }
+        builder.index = TagIndex.of(MappedTagSnapshot.open(snapshotFile, builder.mutableDictionary()::getOrAdd));
+        TagStorageService.recountUsage(builder);
+        return builder.build();
+    }
+
+    public static void writeSnapshot(TagSnapshot snapshot, Path snapshotFile) throws IOException {
+        MappedTagSnapshot.write(snapshotFile, snapshot.index, snapshot.dictionary.nameTable());
+    }
+
+    public static Map<String, Set<String>> save(TagSnapshot snapshot) {
+        return TagStorageService.toFileTagsMap(snapshot);
+    }
+
+    public static TagSnapshot renameDirectory(TagSnapshot snapshot, String oldPath, String newPath) {
+        TagSnapshot.Builder builder = snapshot.edit();
+        builder.index = builder.index.move(oldPath, newPath);
+        return builder.build();
+    }
+
+    // 与 VFS 监听器处理删除时相同：先扣除子树内的使用计数，再移除子树
+    static void removeSubtree(TagSnapshot.Builder builder, String path) {
+        builder.index.forEachUnder(path, (taggedPath, tags) -> builder.countTags(tags, -1));
+        builder.index = builder.index.removeSubtree(path);
+    }
+
+    public static TagSnapshot renameTag(TagSnapshot snapshot, String oldName, String newName) {
+        TagSnapshot.Builder builder = snapshot.edit();
+        TagStorageService.applyRenameTag(builder, oldName, newName);
+        return builder.build();
+    }
+
+    public static TagSnapshot deleteTag(TagSnapshot snapshot, String name) {
+        TagSnapshot.Builder builder = snapshot.edit();
+        TagStorageService.applyDeleteTag(builder, name);
+        return builder.build();
+    }
+
+    public static TagSnapshot setFileTags(TagSnapshot snapshot, String path, Set<String> tags) {
+        TagSnapshot.Builder builder = snapshot.edit();
+        builder.putFileTags(path, builder.encodeExisting(tags));
+        return builder.build();
+    }
+
+    // 只增加修改计数，模拟一次与这些节点无关的修改，让装饰缓存整体失效
+    public static TagSnapshot touch(TagSnapshot snapshot) {
+        return snapshot.edit().build();
+    }
+}
@@ -0,0 +1,61 @@
+package com.weakviord.filetagger.service;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 标签表达式的求值，修改一个文件后第一次查询（增量更新倒排表）的开销，以及整体构建倒排表的开销。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TagQueryBenchmark {
+    @Param({"100000", "1000000"})
+    public int pathCount;
+
+    @Param({"10", "100"})
+    public int tagCount;
+
+    private TagSnapshot snapshot;
+    private TagQuery andNot;
+    private TagQuery union;
+    private int editCount;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        snapshot = BenchmarkData.load(BenchmarkData.state(pathCount, tagCount, 42));
+        andNot = TagQuery.parse(BenchmarkData.tagName(0) + " AND " + BenchmarkData.tagName(1)
+            + " AND NOT " + BenchmarkData.tagName(2));
+        union = TagQuery.parse(BenchmarkData.tagName(0) + " OR (" + BenchmarkData.tagName(3)
+            + " AND NOT " + BenchmarkData.tagName(4) + ")");
+        // 求值用的倒排表在第一次查询时构建并缓存在快照上
+        snapshot.postings();
+    }
+
+    @Benchmark
+    public int andNotQuery() {
+        return andNot.evaluate(snapshot).size();
+    }
+
+    @Benchmark
+    public int unionQuery() {
+        return union.evaluate(snapshot).size();
+    }
+
+    // 每次都从同一个快照改一个文件，查询时倒排表只按这个文件更新
+    @Benchmark
+    public int queryAfterEdit() {
+        int n = editCount++;
+        String tag = BenchmarkData.tagName(n % 2 == 0 ? 0 : 2);
+        TagSnapshot edited = BenchmarkData.setFileTags(snapshot, BenchmarkData.filePath(n % pathCount), Set.of(tag));
+        return andNot.evaluate(edited).size();
+    }
+
+    // 重新加载或一次改动大量路径后需要整体构建倒排表
+    @Benchmark
+    public TagPostings buildPostings() {
+        return TagPostings.build(snapshot.index);
+    }
+}
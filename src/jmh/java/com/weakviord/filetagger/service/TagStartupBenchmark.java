@@ -0,0 +1,55 @@
+package com.weakviord.filetagger.service;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 启动时加载标签数据的两种方式：由 XML 反序列化得到的 State 构建前缀树，或映射日志模式的二进制快照。
+ * XML 本身的解析由平台完成，不在测量范围内；映射快照的一次运行包括打开文件、统计使用计数和一次路径查找。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TagStartupBenchmark {
+    @Param({"10000", "100000", "1000000"})
+    public int pathCount;
+
+    @Param({"100"})
+    public int tagCount;
+
+    private TagStorageService.State state;
+    private Path directory;
+    private Path snapshotFile;
+    private String lookupPath;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        state = BenchmarkData.state(pathCount, tagCount, 42);
+        directory = Files.createTempDirectory("tag-startup");
+        snapshotFile = directory.resolve("fileTagger.1.snapshot");
+        BenchmarkData.writeSnapshot(BenchmarkData.load(state), snapshotFile);
+        lookupPath = BenchmarkData.filePath(pathCount / 2);
+    }
+
+    @Benchmark
+    public TagSnapshot loadXmlState() {
+        return BenchmarkData.load(state);
+    }
+
+    @Benchmark
+    public Object openSnapshot() throws IOException {
+        TagSnapshot snapshot = BenchmarkData.loadMapped(state, snapshotFile);
+        return snapshot.index.get(lookupPath);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        // 映射的文件在部分系统上要等到缓冲区被回收后才能删除，删除失败时留给系统清理
+        Files.deleteIfExists(snapshotFile);
+        Files.deleteIfExists(directory);
+    }
+}
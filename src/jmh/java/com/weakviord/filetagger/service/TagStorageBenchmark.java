@@ -0,0 +1,71 @@
+package com.weakviord.filetagger.service;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 标签存储的主要操作。快照不可变，每次调用都从同一个初始快照出发，不需要在调用之间恢复状态。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TagStorageBenchmark {
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int pathCount;
+
+    @Param({"10", "100", "5000"})
+    public int tagCount;
+
+    private TagStorageService.State state;
+    private TagSnapshot snapshot;
+    private String changedFile;
+    private Set<String> changedTags;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        state = BenchmarkData.state(pathCount, tagCount, 42);
+        snapshot = BenchmarkData.load(state);
+        changedFile = BenchmarkData.filePath(pathCount / 2);
+        changedTags = Set.of(BenchmarkData.tagName(0), BenchmarkData.tagName(tagCount - 1));
+    }
+
+    @Benchmark
+    public TagSnapshot loadState() {
+        return BenchmarkData.load(state);
+    }
+
+    @Benchmark
+    public Map<String, Set<String>> saveState() {
+        return BenchmarkData.save(snapshot);
+    }
+
+    // 第一个模块包含 2000 个文件（不足时为全部文件）
+    @Benchmark
+    public TagSnapshot renameDirectory() {
+        return BenchmarkData.renameDirectory(snapshot, BenchmarkData.modulePath(0), BenchmarkData.modulePath(0) + "-renamed");
+    }
+
+    @Benchmark
+    public TagSnapshot renameTag() {
+        return BenchmarkData.renameTag(snapshot, BenchmarkData.tagName(0), "renamed");
+    }
+
+    // 编号最小的标签使用最多，是删除时最坏的情况
+    @Benchmark
+    public TagSnapshot deleteTag() {
+        return BenchmarkData.deleteTag(snapshot, BenchmarkData.tagName(0));
+    }
+
+    @Benchmark
+    public TagSnapshot setFileTags() {
+        return BenchmarkData.setFileTags(snapshot, changedFile, changedTags);
+    }
+
+    @Benchmark
+    public int tagUsageCount() {
+        return snapshot.getTagUsageCount(BenchmarkData.tagName(tagCount / 2));
+    }
+}
@@ -0,0 +1,150 @@
+package com.weakviord.filetagger.service;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 回放一段接近实际使用的修改序列：批量重命名文件、移动目录、切换分支式的批量删除、批量打标签、
+ * 重命名和删除标签。同样的序列也作用在一个普通的 Map 上，结束时比较两者并检查快照内部的一致性，
+ * 不一致时抛出异常让这次运行失败。分配量用 -prof gc 查看。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TagWorkloadBenchmark {
+    private static final int RENAMED_FILES = 1000;
+    private static final int MOVED_PACKAGES = 10;
+    private static final int DELETED_PACKAGES = 20;
+    private static final int RETAGGED_FILES = 1000;
+
+    @Param({"10000", "100000"})
+    public int pathCount;
+
+    @Param({"100", "5000"})
+    public int tagCount;
+
+    private TagStorageService.State state;
+    private TagSnapshot initial;
+    private TagSnapshot last;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        state = BenchmarkData.state(pathCount, tagCount, 42);
+        initial = BenchmarkData.load(state);
+    }
+
+    @Benchmark
+    public TagSnapshot replay() {
+        last = replay(initial);
+        return last;
+    }
+
+    @TearDown(Level.Trial)
+    public void verify() {
+        List<String> problems = new ArrayList<>(TagConsistencyChecker.check(last, null));
+        Map<String, Set<String>> expected = replay(copy(state.fileTagsMap));
+        Map<String, Set<String>> actual = BenchmarkData.save(last);
+        if (!expected.equals(actual)) {
+            problems.add("Index differs from the replayed map: " + actual.size() + " entries, expected "
+                + expected.size());
+        }
+        if (!problems.isEmpty()) {
+            throw new IllegalStateException("Workload left inconsistent tag data:\n" + String.join("\n", problems));
+        }
+    }
+
+    // 各步骤分别作为一次修改提交，与服务中每个批次发布一次快照相同
+    private TagSnapshot replay(TagSnapshot snapshot) {
+        TagSnapshot.Builder builder = snapshot.edit();
+        for (int i = 0; i < Math.min(RENAMED_FILES, pathCount); i++) {
+            String path = renamedFile(i);
+            builder.index = builder.index.move(path, path + ".bak");
+        }
+        snapshot = builder.build();
+
+        builder = snapshot.edit();
+        for (int i = 0; i < MOVED_PACKAGES; i++) {
+            builder.index = builder.index.move(BenchmarkData.packagePath(i), movedPackage(i));
+        }
+        snapshot = builder.build();
+
+        builder = snapshot.edit();
+        for (int i = 0; i < DELETED_PACKAGES; i++) {
+            BenchmarkData.removeSubtree(builder, BenchmarkData.packagePath(deletedPackage(i)));
+        }
+        snapshot = builder.build();
+
+        builder = snapshot.edit();
+        TagBits retagged = builder.encodeExisting(retaggedTags());
+        for (int i = 0; i < RETAGGED_FILES; i++) {
+            builder.putFileTags(retaggedFile(i), retagged);
+        }
+        snapshot = builder.build();
+
+        snapshot = BenchmarkData.renameTag(snapshot, BenchmarkData.tagName(1), "renamed");
+        return BenchmarkData.deleteTag(snapshot, BenchmarkData.tagName(0));
+    }
+
+    private Map<String, Set<String>> replay(Map<String, Set<String>> map) {
+        for (int i = 0; i < Math.min(RENAMED_FILES, pathCount); i++) {
+            String path = renamedFile(i);
+            Set<String> tags = map.remove(path);
+            if (tags != null) {
+                map.put(path + ".bak", tags);
+            }
+        }
+        for (int i = 0; i < MOVED_PACKAGES; i++) {
+            String prefix = BenchmarkData.packagePath(i) + "/";
+            for (String path : new ArrayList<>(map.keySet())) {
+                if (path.startsWith(prefix)) {
+                    map.put(movedPackage(i) + "/" + path.substring(prefix.length()), map.remove(path));
+                }
+            }
+        }
+        for (int i = 0; i < DELETED_PACKAGES; i++) {
+            String prefix = BenchmarkData.packagePath(deletedPackage(i)) + "/";
+            map.keySet().removeIf(path -> path.startsWith(prefix));
+        }
+        for (int i = 0; i < RETAGGED_FILES; i++) {
+            map.put(retaggedFile(i), new HashSet<>(retaggedTags()));
+        }
+        for (Set<String> tags : map.values()) {
+            if (tags.remove(BenchmarkData.tagName(1))) {
+                tags.add("renamed");
+            }
+            tags.remove(BenchmarkData.tagName(0));
+        }
+        map.values().removeIf(Set::isEmpty);
+        return map;
+    }
+
+    private static Map<String, Set<String>> copy(Map<String, Set<String>> map) {
+        Map<String, Set<String>> copy = new HashMap<>();
+        map.forEach((path, tags) -> copy.put(path, new HashSet<>(tags)));
+        return copy;
+    }
+
+    // 从后往前取，避开下面移动和删除的包
+    private String renamedFile(int i) {
+        return BenchmarkData.filePath(pathCount - 1 - i);
+    }
+
+    private String movedPackage(int i) {
+        return BenchmarkData.modulePath(0) + "/moved/pkg" + i;
+    }
+
+    private int deletedPackage(int i) {
+        return MOVED_PACKAGES + i;
+    }
+
+    // 新建的文件，不与已有条目重叠
+    private String retaggedFile(int i) {
+        return BenchmarkData.packagePath(0) + "/New" + i + ".java";
+    }
+
+    private List<String> retaggedTags() {
+        return List.of(BenchmarkData.tagName(0), BenchmarkData.tagName(1), BenchmarkData.tagName(tagCount - 1));
+    }
+}
@@ -0,0 +1,90 @@
+package com.weakviord.filetagger.ui;
+
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileSystem;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * 只有路径和目录标记的 VirtualFile，装饰缓存只用到这两项，基准测试不需要启动 VFS。
+ */
+final class StubVirtualFile extends VirtualFile {
+    private final String path;
+    private final boolean directory;
+
+    StubVirtualFile(String path, boolean directory) {
+        this.path = path;
+        this.directory = directory;
+    }
+
+    @Override
+    public @NotNull String getName() {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    @Override
+    public @NotNull VirtualFileSystem getFileSystem() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public @NotNull String getPath() {
+        return path;
+    }
+
+    @Override
+    public boolean isWritable() {
+        return false;
+    }
+
+    @Override
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    @Override
+    public boolean isValid() {
+        return true;
+    }
+
+    @Override
+    public VirtualFile getParent() {
+        return null;
+    }
+
+    @Override
+    public VirtualFile[] getChildren() {
+        return EMPTY_ARRAY;
+    }
+
+    @Override
+    public @NotNull OutputStream getOutputStream(Object requestor, long newModificationStamp, long newTimeStamp) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public byte @NotNull [] contentsToByteArray() {
+        return new byte[0];
+    }
+
+    @Override
+    public long getTimeStamp() {
+        return 0;
+    }
+
+    @Override
+    public long getLength() {
+        return 0;
+    }
+
+    @Override
+    public void refresh(boolean asynchronous, boolean recursive, Runnable postRunnable) {
+    }
+
+    @Override
+    public @NotNull InputStream getInputStream() {
+        return InputStream.nullInputStream();
+    }
+}
@@ -0,0 +1,78 @@
+package com.weakviord.filetagger.ui;
+
+import com.weakviord.filetagger.service.BenchmarkData;
+import com.weakviord.filetagger.service.TagSnapshot;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 项目视图一次重绘的装饰开销：工作集是展开的几个包中的文件及其所在目录，约 200 个节点。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TagDecorationBenchmark {
+    private static final int VISIBLE_FILES = 180;
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int pathCount;
+
+    @Param({"10", "100", "5000"})
+    public int tagCount;
+
+    private volatile TagSnapshot current;
+    private TagDecorationCache cache;
+    private StubVirtualFile[] workingSet;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        current = BenchmarkData.load(BenchmarkData.state(pathCount, tagCount, 42));
+        cache = new TagDecorationCache(() -> current);
+
+        // 从中间取一段连续的文件，连同它们的各级父目录
+        int first = Math.max(0, pathCount / 2 - VISIBLE_FILES / 2);
+        int last = Math.min(pathCount, first + VISIBLE_FILES);
+        Set<String> directories = new LinkedHashSet<>();
+        List<StubVirtualFile> files = new ArrayList<>();
+        for (int i = first; i < last; i++) {
+            String path = BenchmarkData.filePath(i);
+            files.add(new StubVirtualFile(path, false));
+            for (int slash = path.lastIndexOf('/'); slash > 0; slash = path.lastIndexOf('/', slash - 1)) {
+                directories.add(path.substring(0, slash));
+            }
+        }
+        for (String directory : directories) {
+            files.add(new StubVirtualFile(directory, true));
+        }
+        workingSet = files.toArray(new StubVirtualFile[0]);
+        repaint(null);
+    }
+
+    // 数据未变化，全部命中缓存
+    @Benchmark
+    public void cachedRepaint(Blackhole blackhole) {
+        repaint(blackhole);
+    }
+
+    // 每次重绘前都有一次修改，全部节点重新计算
+    @Benchmark
+    public void repaintAfterModification(Blackhole blackhole) {
+        current = BenchmarkData.touch(current);
+        repaint(blackhole);
+    }
+
+    private void repaint(Blackhole blackhole) {
+        for (StubVirtualFile file : workingSet) {
+            TagDecorationCache.Fragment[] fragments = cache.getFragments(file);
+            if (blackhole != null) {
+                blackhole.consume(fragments);
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.weakviord.filetagger.action;
+
+import com.intellij.openapi.actionSystem.ActionUpdateThread;
+import com.intellij.openapi.actionSystem.AnAction;
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.ui.InputValidatorEx;
+import com.intellij.openapi.ui.Messages;
+import com.weakviord.filetagger.service.TagStorageService;
+import com.weakviord.filetagger.service.TagStorageService.AutoTagRule;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 编辑当前项目的自动标签规则，每行一条 "pattern -> tag"，以 # 开头的行是注释。
+ */
+public class EditAutoTagRulesAction extends AnAction {
+    private static final String SEPARATOR = "->";
+
+    @Override
+    public void actionPerformed(@NotNull AnActionEvent e) {
+        Project project = e.getProject();
+        if (project == null) {
+            return;
+        }
+        TagStorageService tagService = project.getService(TagStorageService.class);
+        StringBuilder text = new StringBuilder();
+        for (AutoTagRule rule : tagService.getAutoTagRules()) {
+            text.append(rule.pattern).append(' ').append(SEPARATOR).append(' ').append(rule.tag).append('\n');
+        }
+        String input = Messages.showMultilineInputDialog(project,
+            "One rule per line, e.g. **/generated/** -> generated or *Benchmark.java -> perf.\n"
+                + "'*' and '?' match within a path segment, '**' matches any number of directories;\n"
+                + "a trailing '/**' matches what is inside a directory, not the directory itself.",
+            "Auto-Tag Rules", text.toString(), null, new InputValidatorEx() {
+                @Override
+                public @Nullable String getErrorText(String inputString) {
+                    try {
+                        parse(inputString);
+                        return null;
+                    } catch (IllegalArgumentException ex) {
+                        return ex.getMessage();
+                    }
+                }
+
+                @Override
+                public boolean checkInput(String inputString) {
+                    return getErrorText(inputString) == null;
+                }
+
+                @Override
+                public boolean canClose(String inputString) {
+                    return checkInput(inputString);
+                }
+            });
+        if (input == null) {
+            return;
+        }
+        tagService.setAutoTagRules(parse(input));
+    }
+
+    private static List<AutoTagRule> parse(String text) {
+        List<AutoTagRule> rules = new ArrayList<>();
+        String[] lines = text.split("\n");
+        for (int i = 0; i < lines.length; i++) {
+            String line = lines[i].trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            int separator = line.lastIndexOf(SEPARATOR);
+            String pattern = separator < 0 ? "" : line.substring(0, separator).trim();
+            String tag = separator < 0 ? "" : line.substring(separator + SEPARATOR.length()).trim();
+            if (pattern.isEmpty() || tag.isEmpty()) {
+                throw new IllegalArgumentException("Line " + (i + 1) + ": expected 'pattern -> tag'");
+            }
+            rules.add(new AutoTagRule(pattern, tag));
+        }
+        return rules;
+    }
+
+    @Override
+    public void update(@NotNull AnActionEvent e) {
+        e.getPresentation().setEnabledAndVisible(e.getProject() != null);
+    }
+
+    @Override
+    public @NotNull ActionUpdateThread getActionUpdateThread() {
+        return ActionUpdateThread.BGT;
+    }
+}
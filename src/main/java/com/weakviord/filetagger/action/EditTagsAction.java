@@ -1,7 +1,6 @@
 package com.weakviord.filetagger.action;
 
 import com.intellij.openapi.actionSystem.*;
-import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.ide.projectView.ProjectView;
@@ -12,6 +11,7 @@ import com.intellij.psi.PsiElement;
 import com.intellij.psi.PsiFile;
 import com.intellij.ui.treeStructure.Tree;
 import com.intellij.ide.util.treeView.AbstractTreeNode;
+import com.weakviord.filetagger.service.TagMetrics;
 import com.weakviord.filetagger.ui.TagManagerDialog;
 import org.jetbrains.annotations.NotNull;
 import com.intellij.openapi.actionSystem.CommonDataKeys;
@@ -20,39 +20,55 @@ import javax.swing.*;
 import javax.swing.tree.DefaultMutableTreeNode;
 import javax.swing.tree.TreePath;
 import java.awt.Component;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 public class EditTagsAction extends AnAction {
-    private static final Logger LOG = Logger.getInstance(EditTagsAction.class);
-
     @Override
     public void actionPerformed(@NotNull AnActionEvent e) {
         Project project = e.getProject();
-        VirtualFile file = getTargetFile(e);
-        
-        if (project == null || file == null) {
+        List<VirtualFile> files = getTargetFiles(e);
+
+        if (project == null || files.isEmpty()) {
             return;
         }
 
-        TagManagerDialog dialog = new TagManagerDialog(project, file);
+        TagManagerDialog dialog = new TagManagerDialog(project, files);
         dialog.show();
     }
 
+    // 在后台线程上执行，只读取现成的数据键，不访问 Swing 组件
     @Override
     public void update(@NotNull AnActionEvent e) {
         Project project = e.getProject();
+        if (project == null) {
+            e.getPresentation().setEnabledAndVisible(false);
+            return;
+        }
+        long start = System.nanoTime();
+        DataContext dataContext = e.getDataContext();
+        VirtualFile[] files = CommonDataKeys.VIRTUAL_FILE_ARRAY.getData(dataContext);
+        boolean hasTarget = files != null && files.length > 0
+            || CommonDataKeys.VIRTUAL_FILE.getData(dataContext) != null
+            || CommonDataKeys.PSI_ELEMENT.getData(dataContext) != null;
+        e.getPresentation().setEnabledAndVisible(hasTarget && ActionPlaces.PROJECT_VIEW_POPUP.equals(e.getPlace()));
+        project.getService(TagMetrics.class).record(TagMetrics.Metric.ACTION_UPDATE, start);
+    }
+
+    @Override
+    public @NotNull ActionUpdateThread getActionUpdateThread() {
+        return ActionUpdateThread.BGT;
+    }
+
+    // 多选时作用于整个选区，否则退回到单个文件的查找逻辑
+    private List<VirtualFile> getTargetFiles(AnActionEvent e) {
+        VirtualFile[] files = CommonDataKeys.VIRTUAL_FILE_ARRAY.getData(e.getDataContext());
+        if (files != null && files.length > 0) {
+            return Arrays.asList(files);
+        }
         VirtualFile file = getTargetFile(e);
-        boolean enabled = project != null && file != null;
-        
-        LOG.info("Action update called: " + 
-                "file=" + file + 
-                ", project=" + project + 
-                ", enabled=" + enabled + 
-                ", actionPlace=" + e.getPlace() + 
-                ", isPopup=" + e.getPlace().equals("ProjectViewPopup") + 
-                ", dataContext=" + dumpDataContext(e.getDataContext()));
-                
-        boolean visible = enabled && "ProjectViewPopup".equals(e.getPlace());
-        e.getPresentation().setEnabledAndVisible(visible);
+        return file == null ? Collections.emptyList() : Collections.singletonList(file);
     }
 
     private VirtualFile getTargetFile(AnActionEvent e) {
@@ -105,23 +121,6 @@ public class EditTagsAction extends AnAction {
             }
         }
 
-        // 4. 最后尝试从文件数组获取
-        VirtualFile[] files = CommonDataKeys.VIRTUAL_FILE_ARRAY.getData(e.getDataContext());
-        if (files != null && files.length > 0) {
-            return files[0];
-        }
-
         return null;
     }
-
-    private String dumpDataContext(DataContext dataContext) {
-        StringBuilder sb = new StringBuilder("DataContext contents:\n");
-        sb.append("Project = ").append(CommonDataKeys.PROJECT.getData(dataContext)).append("\n")
-          .append("Virtual File = ").append(CommonDataKeys.VIRTUAL_FILE.getData(dataContext)).append("\n")
-          .append("PSI File = ").append(CommonDataKeys.PSI_FILE.getData(dataContext)).append("\n")
-          .append("PSI Element = ").append(CommonDataKeys.PSI_ELEMENT.getData(dataContext)).append("\n")
-          .append("Context Component = ").append(PlatformDataKeys.CONTEXT_COMPONENT.getData(dataContext)).append("\n")
-          .append("Selected Items = ").append(PlatformDataKeys.SELECTED_ITEMS.getData(dataContext)).append("\n");
-        return sb.toString();
-    }
 } 
\ No newline at end of file
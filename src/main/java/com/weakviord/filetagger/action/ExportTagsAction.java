@@ -0,0 +1,86 @@
+package com.weakviord.filetagger.action;
+
+import com.intellij.openapi.actionSystem.ActionUpdateThread;
+import com.intellij.openapi.actionSystem.AnAction;
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.fileChooser.FileChooserFactory;
+import com.intellij.openapi.fileChooser.FileSaverDescriptor;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.ui.Messages;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VirtualFileWrapper;
+import com.weakviord.filetagger.service.TagStorageService;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * 把标签数据导出为 JSONL 文件，在后台逐行写出，可以取消。
+ */
+public class ExportTagsAction extends AnAction {
+    @Override
+    public void actionPerformed(@NotNull AnActionEvent e) {
+        Project project = e.getProject();
+        if (project == null) {
+            return;
+        }
+        FileSaverDescriptor descriptor = new FileSaverDescriptor("Export File Tags",
+            "Tags are written one JSON object per line", "jsonl");
+        String basePath = project.getBasePath();
+        VirtualFileWrapper target = FileChooserFactory.getInstance().createSaveFileDialog(descriptor, project)
+            .save(basePath == null ? null : LocalFileSystem.getInstance().findFileByPath(basePath), "file-tags.jsonl");
+        if (target == null) {
+            return;
+        }
+        int answer = Messages.showYesNoCancelDialog(project,
+            "Write paths relative to the project directory? Relative files can be imported into a checkout at another location.",
+            "Export File Tags", "Relative", "Absolute", "Cancel", null);
+        if (answer == Messages.CANCEL) {
+            return;
+        }
+        boolean relativePaths = answer == Messages.YES;
+        Path path = target.getFile().toPath();
+
+        new Task.Backgroundable(project, "Exporting file tags", true) {
+            @Override
+            public void run(@NotNull ProgressIndicator indicator) {
+                indicator.setIndeterminate(false);
+                try (Writer out = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+                    project.getService(TagStorageService.class).exportTags(out, relativePaths, indicator);
+                } catch (IOException ex) {
+                    throw new RuntimeException("Failed to export file tags to " + path, ex);
+                }
+            }
+
+            @Override
+            public void onCancel() {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException ignored) {
+                    // 只是清理未写完的文件
+                }
+            }
+
+            @Override
+            public void onThrowable(@NotNull Throwable error) {
+                Messages.showErrorDialog(project, error.getMessage(), "Export File Tags");
+            }
+        }.queue();
+    }
+
+    @Override
+    public void update(@NotNull AnActionEvent e) {
+        e.getPresentation().setEnabledAndVisible(e.getProject() != null);
+    }
+
+    @Override
+    public @NotNull ActionUpdateThread getActionUpdateThread() {
+        return ActionUpdateThread.BGT;
+    }
+}
@@ -0,0 +1,113 @@
+package com.weakviord.filetagger.action;
+
+import com.intellij.ide.util.PropertiesComponent;
+import com.intellij.openapi.actionSystem.ActionUpdateThread;
+import com.intellij.openapi.actionSystem.AnAction;
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.fileEditor.FileEditorManager;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.ui.Messages;
+import com.intellij.openapi.ui.popup.JBPopupFactory;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.ui.SimpleListCellRenderer;
+import com.weakviord.filetagger.service.TagQuery;
+import com.weakviord.filetagger.service.TagStorageService;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 按标签表达式查找文件，结果在弹出列表中显示，选中后打开文件。
+ */
+public class FindByTagsAction extends AnAction {
+    private static final String LAST_QUERY_KEY = "FileTagger.lastTagQuery";
+    // 弹出列表只取第一页，更多结果没有必要一次解析出路径
+    private static final int MAX_SHOWN = 500;
+
+    @Override
+    public void actionPerformed(@NotNull AnActionEvent e) {
+        Project project = e.getProject();
+        if (project == null) {
+            return;
+        }
+        PropertiesComponent properties = PropertiesComponent.getInstance(project);
+        String expression = Messages.showInputDialog(project,
+            "Tag expression, e.g. hot-path AND needs-review AND NOT deprecated:",
+            "Find by Tags", null, properties.getValue(LAST_QUERY_KEY, ""), null);
+        if (expression == null || expression.trim().isEmpty()) {
+            return;
+        }
+        properties.setValue(LAST_QUERY_KEY, expression);
+
+        TagQuery query;
+        try {
+            query = TagQuery.parse(expression);
+        } catch (IllegalArgumentException ex) {
+            Messages.showErrorDialog(project, ex.getMessage(), "Invalid Tag Expression");
+            return;
+        }
+
+        TagStorageService tagService = project.getService(TagStorageService.class);
+        new Task.Backgroundable(project, "Finding files by tags", false) {
+            private int total;
+            private List<String> paths = Collections.emptyList();
+
+            @Override
+            public void run(@NotNull ProgressIndicator indicator) {
+                TagQuery.Result result = query.evaluate(tagService.getIndexedSnapshot());
+                total = result.size();
+                paths = result.getPage(0, MAX_SHOWN);
+            }
+
+            @Override
+            public void onSuccess() {
+                showResults(project, query, paths, total);
+            }
+        }.queue();
+    }
+
+    private static void showResults(Project project, TagQuery query, List<String> paths, int total) {
+        if (paths.isEmpty()) {
+            Messages.showInfoMessage(project, "No files match '" + query + "'.", "Find by Tags");
+            return;
+        }
+        String title = total > paths.size()
+            ? total + " files match '" + query + "' (showing first " + paths.size() + ")"
+            : total + (total == 1 ? " file matches '" : " files match '") + query + "'";
+        String basePath = project.getBasePath();
+        JBPopupFactory.getInstance()
+            .createPopupChooserBuilder(paths)
+            .setTitle(title)
+            .setRenderer(SimpleListCellRenderer.<String>create("", path -> relativize(basePath, path)))
+            .setNamerForFiltering(path -> path)
+            .setItemChosenCallback(path -> {
+                VirtualFile file = LocalFileSystem.getInstance().findFileByPath(path);
+                if (file != null && !file.isDirectory()) {
+                    FileEditorManager.getInstance(project).openFile(file, true);
+                }
+            })
+            .createPopup()
+            .showCenteredInCurrentWindow(project);
+    }
+
+    private static String relativize(String basePath, String path) {
+        if (basePath != null && path.startsWith(basePath + "/")) {
+            return path.substring(basePath.length() + 1);
+        }
+        return path;
+    }
+
+    @Override
+    public void update(@NotNull AnActionEvent e) {
+        e.getPresentation().setEnabledAndVisible(e.getProject() != null);
+    }
+
+    @Override
+    public @NotNull ActionUpdateThread getActionUpdateThread() {
+        return ActionUpdateThread.BGT;
+    }
+}
@@ -0,0 +1,114 @@
+package com.weakviord.filetagger.action;
+
+import com.intellij.openapi.actionSystem.ActionUpdateThread;
+import com.intellij.openapi.actionSystem.AnAction;
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.fileChooser.FileChooser;
+import com.intellij.openapi.fileChooser.FileChooserDescriptor;
+import com.intellij.openapi.fileChooser.FileChooserDescriptorFactory;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.ui.DialogBuilder;
+import com.intellij.openapi.ui.DialogWrapper;
+import com.intellij.openapi.ui.Messages;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.ui.components.JBCheckBox;
+import com.intellij.ui.components.JBRadioButton;
+import com.weakviord.filetagger.service.TagStorageService;
+import com.weakviord.filetagger.service.TagTransfer;
+import org.jetbrains.annotations.NotNull;
+
+import javax.swing.*;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * 从 JSONL 文件导入标签，格式见 TagTransfer。在后台逐批解析，读取期间可以取消，全部读完后一次应用。
+ */
+public class ImportTagsAction extends AnAction {
+    // 错误信息只在对话框中显示前几条
+    private static final int SHOWN_ERRORS = 10;
+
+    @Override
+    public void actionPerformed(@NotNull AnActionEvent e) {
+        Project project = e.getProject();
+        if (project == null) {
+            return;
+        }
+        FileChooserDescriptor descriptor = FileChooserDescriptorFactory.createSingleFileDescriptor("jsonl")
+            .withTitle("Import File Tags");
+        VirtualFile file = FileChooser.chooseFile(descriptor, project, null);
+        if (file == null) {
+            return;
+        }
+
+        JBRadioButton merge = new JBRadioButton("Merge: add the imported tags to existing file tags", true);
+        JBRadioButton replace = new JBRadioButton("Replace: discard all current file tags first");
+        ButtonGroup modes = new ButtonGroup();
+        modes.add(merge);
+        modes.add(replace);
+        JBCheckBox relative = new JBCheckBox("Resolve relative paths against the project directory", true);
+        JPanel panel = new JPanel();
+        panel.setLayout(new BoxLayout(panel, BoxLayout.Y_AXIS));
+        panel.add(merge);
+        panel.add(replace);
+        panel.add(relative);
+        DialogBuilder dialog = new DialogBuilder(project).title("Import File Tags").centerPanel(panel);
+        if (dialog.show() != DialogWrapper.OK_EXIT_CODE) {
+            return;
+        }
+        TagTransfer.ImportMode mode = replace.isSelected() ? TagTransfer.ImportMode.REPLACE : TagTransfer.ImportMode.MERGE;
+        boolean relativePaths = relative.isSelected();
+        Path path = file.toNioPath();
+
+        new Task.Backgroundable(project, "Importing file tags", true) {
+            private TagTransfer.ImportResult result;
+
+            @Override
+            public void run(@NotNull ProgressIndicator indicator) {
+                indicator.setIndeterminate(false);
+                try (Reader in = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+                    result = project.getService(TagStorageService.class)
+                        .importTags(in, Files.size(path), mode, relativePaths, indicator);
+                } catch (IOException ex) {
+                    // 读取文件或在日志模式下写出快照失败
+                    throw new RuntimeException("Failed to import " + path + ": " + ex.getMessage(), ex);
+                }
+            }
+
+            @Override
+            public void onSuccess() {
+                StringBuilder message = new StringBuilder()
+                    .append("Imported tags for ").append(result.getImportedCount()).append(" files.");
+                if (result.getSkippedCount() == 0) {
+                    Messages.showInfoMessage(project, message.toString(), "Import File Tags");
+                    return;
+                }
+                message.append("\nSkipped ").append(result.getSkippedCount()).append(" invalid lines:");
+                for (String error : result.getErrors().subList(0, Math.min(SHOWN_ERRORS, result.getErrors().size()))) {
+                    message.append('\n').append(error);
+                }
+                Messages.showWarningDialog(project, message.toString(), "Import File Tags");
+            }
+
+            @Override
+            public void onThrowable(@NotNull Throwable error) {
+                Messages.showErrorDialog(project, error.getMessage(), "Import File Tags");
+            }
+        }.queue();
+    }
+
+    @Override
+    public void update(@NotNull AnActionEvent e) {
+        e.getPresentation().setEnabledAndVisible(e.getProject() != null);
+    }
+
+    @Override
+    public @NotNull ActionUpdateThread getActionUpdateThread() {
+        return ActionUpdateThread.BGT;
+    }
+}
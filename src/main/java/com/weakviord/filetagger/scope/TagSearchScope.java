@@ -0,0 +1,61 @@
+package com.weakviord.filetagger.scope;
+
+import com.intellij.openapi.module.Module;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.weakviord.filetagger.service.TagScopeIndex;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Objects;
+
+/**
+ * 带有某个标签的文件（以及带该标签的目录下的文件）组成的搜索范围。
+ */
+public class TagSearchScope extends GlobalSearchScope {
+    private final String tagName;
+    private final TagScopeIndex scopeIndex;
+
+    public TagSearchScope(@NotNull Project project, @NotNull String tagName) {
+        super(project);
+        this.tagName = tagName;
+        this.scopeIndex = project.getService(TagScopeIndex.class);
+    }
+
+    public String getTagName() {
+        return tagName;
+    }
+
+    @Override
+    public @NotNull String getDisplayName() {
+        return "Tag: " + tagName;
+    }
+
+    @Override
+    public boolean contains(@NotNull VirtualFile file) {
+        return scopeIndex.contains(tagName, file);
+    }
+
+    @Override
+    public boolean isSearchInModuleContent(@NotNull Module aModule) {
+        return true;
+    }
+
+    @Override
+    public boolean isSearchInLibraries() {
+        return false;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        TagSearchScope that = (TagSearchScope) o;
+        return tagName.equals(that.tagName) && Objects.equals(getProject(), that.getProject());
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(tagName, getProject());
+    }
+}
@@ -0,0 +1,38 @@
+package com.weakviord.filetagger.scope;
+
+import com.intellij.openapi.actionSystem.DataContext;
+import com.intellij.openapi.project.Project;
+import com.intellij.psi.search.SearchScope;
+import com.intellij.psi.search.SearchScopeProvider;
+import com.weakviord.filetagger.service.TagScopeIndex;
+import com.weakviord.filetagger.service.TagStorageService;
+import com.weakviord.filetagger.service.TagStorageService.TagInfo;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * 为每个标签提供 "Tag: xxx" 搜索范围，出现在 Find in Files、结构化搜索和代码检查的范围列表中。
+ */
+public class TagSearchScopeProvider implements SearchScopeProvider {
+    @Override
+    public String getDisplayName() {
+        return "File Tags";
+    }
+
+    @Override
+    public @NotNull List<SearchScope> getSearchScopes(@NotNull Project project, @NotNull DataContext dataContext) {
+        List<TagInfo> tags = project.getService(TagStorageService.class).getAllTags();
+        tags.sort(Comparator.comparingLong(tag -> tag.order));
+        List<SearchScope> scopes = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        for (TagInfo tag : tags) {
+            scopes.add(new TagSearchScope(project, tag.name));
+            names.add(tag.name);
+        }
+        project.getService(TagScopeIndex.class).prepare(names);
+        return scopes;
+    }
+}
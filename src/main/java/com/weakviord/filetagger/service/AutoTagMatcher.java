@@ -0,0 +1,236 @@
+package com.weakviord.filetagger.service;
+
+import com.weakviord.filetagger.service.TagStorageService.AutoTagRule;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * 把所有自动标签规则编译成一棵按路径段组织的匹配树，一个路径只需从头到尾走一遍，与规则数量基本无关。
+ * 规则使用 gitignore 风格的 glob：'*'、'?' 只匹配一段之内，'**' 匹配任意多段；不含 '/' 的模式在任意深度匹配，
+ * 以 '/' 开头的模式从项目根目录开始匹配。与 gitignore 相同，结尾的 "dir/**" 只匹配 dir 之下的路径，不包括 dir 本身。结果按路径缓存，规则变化时整个匹配器被替换，路径变化时自然查不到旧结果。
+ */
+final class AutoTagMatcher {
+    static final AutoTagMatcher EMPTY = new AutoTagMatcher(Collections.emptyList(), null);
+    // 只需覆盖最近装饰过的路径
+    private static final int MAX_CACHED = 8192;
+
+    private static final class Node {
+        final Map<String, Node> literals = new HashMap<>();
+        final List<Node> wildcards = new ArrayList<>();
+        // 通配段的匹配模式，只在 wildcards 中的节点上有值
+        Pattern segment;
+        // 匹配零到任意多段的 "**"，自身可以停留
+        Node anyDepth;
+        boolean isAnyDepth;
+        Set<String> tags = Collections.emptySet();
+    }
+
+    private final List<AutoTagRule> rules;
+    private final @Nullable String basePath;
+    private final Node root = new Node();
+    // 只在持有 cache 的锁时访问
+    private final Map<String, Set<String>> cache = new LinkedHashMap<>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Set<String>> eldest) {
+            return size() > MAX_CACHED;
+        }
+    };
+
+    private AutoTagMatcher(List<AutoTagRule> rules, @Nullable String basePath) {
+        this.rules = rules;
+        this.basePath = basePath;
+    }
+
+    // 空模式或空标签名的规则被忽略
+    static AutoTagMatcher compile(List<AutoTagRule> rules, @Nullable String basePath) {
+        List<AutoTagRule> copies = new ArrayList<>(rules.size());
+        for (AutoTagRule rule : rules) {
+            if (rule.pattern != null && !rule.pattern.isBlank() && rule.tag != null && !rule.tag.isBlank()) {
+                copies.add(new AutoTagRule(rule.pattern.trim(), rule.tag.trim()));
+            }
+        }
+        if (copies.isEmpty()) {
+            return EMPTY;
+        }
+        AutoTagMatcher matcher = new AutoTagMatcher(Collections.unmodifiableList(copies), basePath);
+        for (AutoTagRule rule : copies) {
+            matcher.add(rule);
+        }
+        return matcher;
+    }
+
+    List<AutoTagRule> rules() {
+        return rules;
+    }
+
+    boolean isEmpty() {
+        return rules.isEmpty();
+    }
+
+    // 标签改名时规则随之改名，没有用到该标签时返回自身
+    AutoTagMatcher withTagRenamed(String oldName, String newName) {
+        if (rules.stream().noneMatch(rule -> rule.tag.equals(oldName))) {
+            return this;
+        }
+        List<AutoTagRule> renamed = new ArrayList<>(rules.size());
+        for (AutoTagRule rule : rules) {
+            renamed.add(rule.tag.equals(oldName) ? new AutoTagRule(rule.pattern, newName) : rule);
+        }
+        return compile(renamed, basePath);
+    }
+
+    // 标签删除时去掉指向它的规则，没有用到该标签时返回自身
+    AutoTagMatcher withoutTag(String name) {
+        if (rules.stream().noneMatch(rule -> rule.tag.equals(name))) {
+            return this;
+        }
+        List<AutoTagRule> remaining = new ArrayList<>(rules);
+        remaining.removeIf(rule -> rule.tag.equals(name));
+        return compile(remaining, basePath);
+    }
+
+    private void add(AutoTagRule rule) {
+        String pattern = rule.pattern;
+        if (pattern.startsWith("/")) {
+            pattern = pattern.substring(1);
+        } else if (!pattern.contains("/")) {
+            pattern = "**/" + pattern;
+        }
+        // 结尾的 "**" 至少匹配一段，写成 "*/**"；否则它能匹配零段，目录本身也会匹配
+        if (pattern.equals("**") || pattern.endsWith("/**")) {
+            pattern = pattern.substring(0, pattern.length() - 2) + "*/**";
+        }
+        Node node = root;
+        for (String segment : pattern.split("/")) {
+            if (segment.isEmpty()) {
+                continue;
+            }
+            node = child(node, segment);
+        }
+        Set<String> tags = new HashSet<>(node.tags);
+        tags.add(rule.tag);
+        node.tags = tags;
+    }
+
+    // 相同前缀的规则共享节点
+    private static Node child(Node node, String segment) {
+        if (segment.equals("**")) {
+            if (node.anyDepth == null) {
+                node.anyDepth = new Node();
+                node.anyDepth.isAnyDepth = true;
+            }
+            return node.anyDepth;
+        }
+        if (segment.indexOf('*') < 0 && segment.indexOf('?') < 0) {
+            return node.literals.computeIfAbsent(segment, key -> new Node());
+        }
+        for (Node wildcard : node.wildcards) {
+            if (wildcard.segment.pattern().equals(toRegex(segment))) {
+                return wildcard;
+            }
+        }
+        Node wildcard = new Node();
+        wildcard.segment = Pattern.compile(toRegex(segment));
+        node.wildcards.add(wildcard);
+        return wildcard;
+    }
+
+    private static String toRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        for (char c : glob.toCharArray()) {
+            switch (c) {
+                case '*' -> regex.append("[^/]*");
+                case '?' -> regex.append("[^/]");
+                default -> regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return regex.toString();
+    }
+
+    Set<String> match(String path) {
+        if (rules.isEmpty()) {
+            return Collections.emptySet();
+        }
+        synchronized (cache) {
+            Set<String> cached = cache.get(path);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        Set<String> result = compute(relativize(path));
+        synchronized (cache) {
+            cache.put(path, result);
+        }
+        return result;
+    }
+
+    private String relativize(String path) {
+        if (basePath != null) {
+            if (path.equals(basePath)) {
+                return "";
+            }
+            if (path.startsWith(basePath) && path.length() > basePath.length() && path.charAt(basePath.length()) == '/') {
+                return path.substring(basePath.length() + 1);
+            }
+        }
+        return path.startsWith("/") ? path.substring(1) : path;
+    }
+
+    // 同时推进所有可能的匹配位置，每段只查一次字面量表并检查少量通配段
+    private Set<String> compute(String relativePath) {
+        List<Node> states = new ArrayList<>();
+        addWithClosure(states, root);
+        int start = 0;
+        while (start < relativePath.length() && !states.isEmpty()) {
+            int end = relativePath.indexOf('/', start);
+            if (end < 0) {
+                end = relativePath.length();
+            }
+            String segment = relativePath.substring(start, end);
+            start = end + 1;
+            if (segment.isEmpty()) {
+                continue;
+            }
+            List<Node> next = new ArrayList<>();
+            for (Node node : states) {
+                if (node.isAnyDepth) {
+                    addWithClosure(next, node);
+                }
+                Node literal = node.literals.get(segment);
+                if (literal != null) {
+                    addWithClosure(next, literal);
+                }
+                for (Node wildcard : node.wildcards) {
+                    if (wildcard.segment.matcher(segment).matches()) {
+                        addWithClosure(next, wildcard);
+                    }
+                }
+            }
+            states = next;
+        }
+
+        Set<String> tags = null;
+        for (Node node : states) {
+            if (!node.tags.isEmpty()) {
+                if (tags == null) {
+                    tags = new HashSet<>();
+                }
+                tags.addAll(node.tags);
+            }
+        }
+        return tags == null ? Collections.emptySet() : Collections.unmodifiableSet(tags);
+    }
+
+    // "**" 可以匹配零段，到达一个节点时也同时到达它的 "**" 子节点
+    private static void addWithClosure(List<Node> states, Node node) {
+        while (node != null) {
+            if (states.contains(node)) {
+                return;
+            }
+            states.add(node);
+            node = node.anyDepth;
+        }
+    }
+}
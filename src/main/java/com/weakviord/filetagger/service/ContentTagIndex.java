@@ -0,0 +1,84 @@
+package com.weakviord.filetagger.service;
+
+import com.intellij.util.indexing.DataIndexer;
+import com.intellij.util.indexing.FileBasedIndex;
+import com.intellij.util.indexing.FileContent;
+import com.intellij.util.indexing.ID;
+import com.intellij.util.indexing.ScalarIndexExtension;
+import com.intellij.util.io.EnumeratorStringDescriptor;
+import com.intellij.util.io.KeyDescriptor;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 从文件开头的注释中提取 {@code @file-tag: hot-path, needs-review} 形式的标签标记，键为标签名。
+ * 随平台的文件索引增量更新，只重新读取内容变化的文件。
+ */
+public final class ContentTagIndex extends ScalarIndexExtension<String> {
+    public static final ID<String, Void> NAME = ID.create("com.weakviord.filetagger.ContentTagIndex");
+    static final String MARKER = "@file-tag:";
+    // 标记只写在文件头部，不扫描整个文件
+    private static final int SCAN_LIMIT = 8 * 1024;
+
+    @Override
+    public @NotNull ID<String, Void> getName() {
+        return NAME;
+    }
+
+    @Override
+    public @NotNull DataIndexer<String, Void, FileContent> getIndexer() {
+        return inputData -> parse(inputData.getContentAsText());
+    }
+
+    // 一行可以有多个标签，用逗号或空白分隔；行尾的注释结束符不属于标签名
+    static Map<String, Void> parse(CharSequence text) {
+        int limit = Math.min(text.length(), SCAN_LIMIT);
+        String head = text.subSequence(0, limit).toString();
+        Map<String, Void> tags = null;
+        int position = head.indexOf(MARKER);
+        while (position >= 0) {
+            int start = position + MARKER.length();
+            int end = head.indexOf('\n', start);
+            String line = head.substring(start, end < 0 ? head.length() : end);
+            for (String terminator : new String[]{"*/", "-->", "#}"}) {
+                int cut = line.indexOf(terminator);
+                if (cut >= 0) {
+                    line = line.substring(0, cut);
+                }
+            }
+            for (String tag : line.split("[,\\s]+")) {
+                if (!tag.isEmpty()) {
+                    if (tags == null) {
+                        tags = new HashMap<>();
+                    }
+                    tags.put(tag, null);
+                }
+            }
+            position = end < 0 ? -1 : head.indexOf(MARKER, end);
+        }
+        return tags == null ? Collections.emptyMap() : tags;
+    }
+
+    @Override
+    public @NotNull KeyDescriptor<String> getKeyDescriptor() {
+        return EnumeratorStringDescriptor.INSTANCE;
+    }
+
+    @Override
+    public int getVersion() {
+        return 1;
+    }
+
+    @Override
+    public FileBasedIndex.@NotNull InputFilter getInputFilter() {
+        return file -> !file.getFileType().isBinary() && file.getLength() > 0;
+    }
+
+    @Override
+    public boolean dependsOnFileContent() {
+        return true;
+    }
+}
@@ -0,0 +1,197 @@
+package com.weakviord.filetagger.service;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.project.DumbService;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileManager;
+import com.intellij.openapi.vfs.newvfs.BulkFileListener;
+import com.intellij.openapi.vfs.newvfs.events.VFileContentChangeEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileCreateEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileDeleteEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileMoveEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFilePropertyChangeEvent;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.util.Alarm;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import com.intellij.util.indexing.FileBasedIndex;
+import com.intellij.util.messages.MessageBusConnection;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 把 ContentTagIndex 的结果同步到 TagStorageService。在后台的非阻塞读操作中读取索引，只在智能模式下执行；
+ * 文件变化和索引完成后合并成一次同步，不在 EDT 或装饰器中读取文件内容。
+ * VFS 批次只重新读取其中变化的文件；第一次同步、重新加载配置和退出 dumb 模式（索引可能被重建）时才完整扫描。
+ */
+@Service(Service.Level.PROJECT)
+public final class ContentTagSynchronizer implements Disposable {
+    // 合并连续的 VFS 批次，例如保存多个文件或切换分支
+    private static final int SYNC_DELAY_MS = 500;
+
+    private final Project project;
+    private final Alarm alarm;
+    // 等待同步的变化，由 lock 保护。每次记录都带递增的序号，同步成功后只移除序号没有变的项，
+    // 同步期间再次变化的文件留到下一次；同步被取消时什么都不移除
+    private final Object lock = new Object();
+    private final Map<VirtualFile, Long> changedFiles = new HashMap<>();
+    private final Map<String, Long> removedPaths = new HashMap<>();
+    // 大于 0 时需要完整扫描，值为请求时的序号
+    private long fullSyncRequested;
+    private long sequence;
+
+    private record Batch(boolean full, long sequence, Map<VirtualFile, Long> files, Map<String, Long> removedPaths) {
+    }
+
+    public ContentTagSynchronizer(Project project) {
+        this.project = project;
+        this.alarm = new Alarm(Alarm.ThreadToUse.POOLED_THREAD, this);
+        MessageBusConnection connection = project.getMessageBus().connect(this);
+        connection.subscribe(VirtualFileManager.VFS_CHANGES, new BulkFileListener() {
+            @Override
+            public void after(@NotNull List<? extends VFileEvent> events) {
+                if (recordChanges(events)) {
+                    schedule();
+                }
+            }
+        });
+        connection.subscribe(DumbService.DUMB_MODE, new DumbService.DumbModeListener() {
+            @Override
+            public void exitDumbMode() {
+                scheduleFullSync();
+            }
+        });
+    }
+
+    // 启动时和重新加载配置后调用，内容标签要按新的字典整体重建
+    public void scheduleFullSync() {
+        synchronized (lock) {
+            fullSyncRequested = ++sequence;
+        }
+        schedule();
+    }
+
+    private void schedule() {
+        alarm.cancelAllRequests();
+        alarm.addRequest(this::sync, SYNC_DELAY_MS);
+    }
+
+    // 返回批次中是否有可能影响内容标签的变化
+    private boolean recordChanges(List<? extends VFileEvent> events) {
+        boolean recorded = false;
+        synchronized (lock) {
+            for (VFileEvent event : events) {
+                long seq = ++sequence;
+                VirtualFile file = null;
+                if (event instanceof VFileDeleteEvent) {
+                    removedPaths.put(event.getPath(), seq);
+                } else if (event instanceof VFileMoveEvent moveEvent) {
+                    removedPaths.put(moveEvent.getOldPath(), seq);
+                    file = event.getFile();
+                } else if (event instanceof VFilePropertyChangeEvent propertyEvent && propertyEvent.isRename()) {
+                    removedPaths.put(propertyEvent.getOldPath(), seq);
+                    file = event.getFile();
+                } else if (event instanceof VFileContentChangeEvent || event instanceof VFileCreateEvent) {
+                    file = event.getFile();
+                } else if (!(event instanceof VFilePropertyChangeEvent)) {
+                    // 复制等事件很少见，直接完整扫描
+                    fullSyncRequested = seq;
+                } else {
+                    continue;
+                }
+                if (file != null && file.isDirectory()) {
+                    // 目录下的文件不会逐个出现在事件中，完整扫描的耗时只与标记数量相关
+                    fullSyncRequested = seq;
+                } else if (file != null) {
+                    changedFiles.put(file, seq);
+                }
+                recorded = true;
+            }
+        }
+        return recorded;
+    }
+
+    private Batch pendingBatch() {
+        synchronized (lock) {
+            return new Batch(fullSyncRequested > 0, sequence, new HashMap<>(changedFiles), new HashMap<>(removedPaths));
+        }
+    }
+
+    // 只移除这次同步已经包含的项
+    private void acknowledge(Batch batch) {
+        synchronized (lock) {
+            if (batch.full() && fullSyncRequested <= batch.sequence()) {
+                fullSyncRequested = 0;
+            }
+            batch.files().forEach(changedFiles::remove);
+            batch.removedPaths().forEach(removedPaths::remove);
+        }
+    }
+
+    private void sync() {
+        Batch batch = pendingBatch();
+        if (!batch.full() && batch.files().isEmpty() && batch.removedPaths().isEmpty()) {
+            return;
+        }
+        TagStorageService tagService = project.getService(TagStorageService.class);
+        ReadAction.nonBlocking(() -> batch.full() ? collectAll() : collect(batch.files().keySet()))
+            .inSmartMode(project)
+            .expireWith(this)
+            .coalesceBy(this)
+            .submit(AppExecutorUtil.getAppExecutorService())
+            .onSuccess(tagsByPath -> {
+                if (batch.full()) {
+                    tagService.syncContentTags(tagsByPath);
+                } else {
+                    tagService.updateContentTags(batch.removedPaths().keySet(), tagsByPath);
+                }
+                acknowledge(batch);
+            });
+    }
+
+    // 带标记的文件通常很少，逐个标签查询的耗时与标记数量相关，与项目大小无关
+    private Map<String, Set<String>> collectAll() {
+        FileBasedIndex index = FileBasedIndex.getInstance();
+        GlobalSearchScope scope = GlobalSearchScope.projectScope(project);
+        Map<String, Set<String>> tagsByPath = new HashMap<>();
+        for (String tag : index.getAllKeys(ContentTagIndex.NAME, project)) {
+            ProgressManager.checkCanceled();
+            for (VirtualFile file : index.getContainingFiles(ContentTagIndex.NAME, tag, scope)) {
+                tagsByPath.computeIfAbsent(file.getPath(), path -> new HashSet<>()).add(tag);
+            }
+        }
+        return tagsByPath;
+    }
+
+    // 只读取变化的文件在索引中的数据；没有标记或不在项目中的文件对应空集合，同步时移除它原有的内容标签
+    private Map<String, Set<String>> collect(Set<VirtualFile> files) {
+        FileBasedIndex index = FileBasedIndex.getInstance();
+        GlobalSearchScope scope = GlobalSearchScope.projectScope(project);
+        Map<String, Set<String>> tagsByPath = new HashMap<>();
+        for (VirtualFile file : files) {
+            ProgressManager.checkCanceled();
+            // 已删除的文件由删除事件中的路径处理
+            if (!file.isValid()) {
+                continue;
+            }
+            Set<String> tags = scope.contains(file)
+                ? new HashSet<>(index.getFileData(ContentTagIndex.NAME, file, project).keySet())
+                : Set.of();
+            tagsByPath.put(file.getPath(), tags);
+        }
+        return tagsByPath;
+    }
+
+    @Override
+    public void dispose() {
+    }
+}
@@ -0,0 +1,276 @@
+package com.weakviord.filetagger.service;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.ToIntFunction;
+
+/**
+ * 内存映射的只读标签快照。路径按 UTF-8 字节序排好，查找直接在映射的文件上二分，
+ * 打开时只解码标签名和标签组合表，条目本身不会被读到堆上。
+ * <p>
+ * 文件格式（大端）：
+ * <pre>
+ * int MAGIC, int VERSION
+ * int tagCount,   { int length, byte[] utf8 } * tagCount
+ * int comboCount, { int fileCount, int idCount, int[] ids } * comboCount
+ * int entryCount, int[] entryOffsets
+ * { int combo, int length, byte[] utf8Path } * entryCount
+ * int END_MAGIC
+ * </pre>
+ */
+final class MappedTagSnapshot {
+    private static final int MAGIC = 0x46545353;
+    private static final int VERSION = 1;
+    private static final int END_MAGIC = 0x454E4453;
+
+    private final ByteBuffer buffer;
+    private final int entryCount;
+    private final int offsetsStart;
+    private final String[] names;
+    // 标签组合按字典 id 解码后的位集合，以及使用该组合的文件数
+    private final TagBits[] combos;
+    private final int[] comboCounts;
+
+    private MappedTagSnapshot(ByteBuffer buffer, int entryCount, int offsetsStart, String[] names,
+                              TagBits[] combos, int[] comboCounts) {
+        this.buffer = buffer;
+        this.entryCount = entryCount;
+        this.offsetsStart = offsetsStart;
+        this.names = names;
+        this.combos = combos;
+        this.comboCounts = comboCounts;
+    }
+
+    // tagIds 把快照中的标签名映射为当前字典的 id；文件不完整或版本不符时抛出 IOException
+    static MappedTagSnapshot open(Path file, ToIntFunction<String> tagIds) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        try {
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not a tag snapshot: " + file);
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported tag snapshot version " + version + ": " + file);
+            }
+            if (buffer.getInt(buffer.limit() - 4) != END_MAGIC) {
+                throw new IOException("Incomplete tag snapshot: " + file);
+            }
+            String[] names = new String[buffer.getInt()];
+            int[] ids = new int[names.length];
+            for (int i = 0; i < names.length; i++) {
+                byte[] bytes = new byte[buffer.getInt()];
+                buffer.get(bytes);
+                names[i] = new String(bytes, StandardCharsets.UTF_8);
+                // 空名称是写出时字典中的空位，不会被任何组合引用
+                ids[i] = names[i].isEmpty() ? -1 : tagIds.applyAsInt(names[i]);
+            }
+            TagBits[] combos = new TagBits[buffer.getInt()];
+            int[] comboCounts = new int[combos.length];
+            for (int i = 0; i < combos.length; i++) {
+                comboCounts[i] = buffer.getInt();
+                TagBits bits = TagBits.EMPTY;
+                for (int n = buffer.getInt(); n > 0; n--) {
+                    bits = bits.with(ids[buffer.getInt()]);
+                }
+                combos[i] = bits.intern();
+            }
+            int entryCount = buffer.getInt();
+            return new MappedTagSnapshot(buffer, entryCount, buffer.position(), names, combos, comboCounts);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("Corrupted tag snapshot: " + file, e);
+        }
+    }
+
+    // 条目按 UTF-8 字节序排序后写出；names 按字典 id 索引
+    static void write(Path file, TagIndex index, String[] names) throws IOException {
+        Map<TagBits, Integer> comboIndex = new LinkedHashMap<>();
+        List<TagBits> comboList = new ArrayList<>();
+        List<int[]> comboCountHolder = new ArrayList<>();
+        List<byte[]> paths = new ArrayList<>(index.size());
+        List<Integer> entryCombos = new ArrayList<>(index.size());
+        index.forEach((path, tags) -> {
+            Integer combo = comboIndex.get(tags);
+            if (combo == null) {
+                combo = comboList.size();
+                comboIndex.put(tags, combo);
+                comboList.add(tags);
+                comboCountHolder.add(new int[1]);
+            }
+            comboCountHolder.get(combo)[0]++;
+            paths.add(path.getBytes(StandardCharsets.UTF_8));
+            entryCombos.add(combo);
+        });
+        Integer[] order = new Integer[paths.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Arrays.compareUnsigned(paths.get(a), paths.get(b)));
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(names.length);
+            for (String name : names) {
+                byte[] bytes = (name == null ? "" : name).getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            out.writeInt(comboList.size());
+            for (int i = 0; i < comboList.size(); i++) {
+                TagBits tags = comboList.get(i);
+                out.writeInt(comboCountHolder.get(i)[0]);
+                out.writeInt(tags.cardinality());
+                for (int id = tags.nextSetBit(0); id >= 0; id = tags.nextSetBit(id + 1)) {
+                    out.writeInt(id);
+                }
+            }
+            out.writeInt(order.length);
+            long offset = out.size() + 4L * order.length;
+            for (Integer entry : order) {
+                out.writeInt(Math.toIntExact(offset));
+                offset += 8 + paths.get(entry).length;
+            }
+            for (Integer entry : order) {
+                byte[] path = paths.get(entry);
+                out.writeInt(entryCombos.get(entry));
+                out.writeInt(path.length);
+                out.write(path);
+            }
+            out.writeInt(END_MAGIC);
+        }
+    }
+
+    int size() {
+        return entryCount;
+    }
+
+    String[] names() {
+        return names;
+    }
+
+    // 按标签组合汇总的文件数，用于初始化使用计数而不必扫描条目
+    void forEachCombo(BiConsumer<TagBits, Integer> consumer) {
+        for (int i = 0; i < combos.length; i++) {
+            consumer.accept(combos[i], comboCounts[i]);
+        }
+    }
+
+    TagBits get(String path) {
+        int index = indexOf(path);
+        return index >= 0 ? tagsAt(index) : null;
+    }
+
+    int countUnder(String path) {
+        int[] range = rangeUnder(path);
+        return range[1] - range[0] + (indexOf(path) >= 0 ? 1 : 0);
+    }
+
+    void forEachUnder(String path, BiConsumer<String, TagBits> consumer) {
+        int exact = indexOf(path);
+        if (exact >= 0) {
+            consumer.accept(path, tagsAt(exact));
+        }
+        int[] range = rangeUnder(path);
+        for (int i = range[0]; i < range[1]; i++) {
+            consumer.accept(pathAt(i), tagsAt(i));
+        }
+    }
+
+    void forEach(BiConsumer<String, TagBits> consumer) {
+        for (int i = 0; i < entryCount; i++) {
+            consumer.accept(pathAt(i), tagsAt(i));
+        }
+    }
+
+    // 没有子树信息可以剪枝，先按组合过滤，只有组合满足条件时才解码路径
+    void forEachContainingAll(TagBits required, BiConsumer<String, TagBits> consumer) {
+        boolean[] matches = new boolean[combos.length];
+        boolean any = false;
+        for (int i = 0; i < combos.length; i++) {
+            matches[i] = combos[i].containsAll(required);
+            any |= matches[i];
+        }
+        if (!any) {
+            return;
+        }
+        for (int i = 0; i < entryCount; i++) {
+            int combo = buffer.getInt(entryOffset(i));
+            if (matches[combo]) {
+                consumer.accept(pathAt(i), combos[combo]);
+            }
+        }
+    }
+
+    String pathAt(int index) {
+        int offset = entryOffset(index);
+        byte[] bytes = new byte[buffer.getInt(offset + 4)];
+        buffer.get(offset + 8, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    TagBits tagsAt(int index) {
+        return combos[buffer.getInt(entryOffset(index))];
+    }
+
+    // path 的所有子路径（以 "path/" 开头）在字节序中是连续的一段 [from, to)
+    private int[] rangeUnder(String path) {
+        String prefix = path.endsWith("/") ? path : path + "/";
+        byte[] from = prefix.getBytes(StandardCharsets.UTF_8);
+        byte[] to = from.clone();
+        to[to.length - 1]++;
+        return new int[]{lowerBound(from), lowerBound(to)};
+    }
+
+    int indexOf(String path) {
+        byte[] key = path.getBytes(StandardCharsets.UTF_8);
+        int index = lowerBound(key);
+        return index < entryCount && comparePath(index, key) == 0 ? index : -1;
+    }
+
+    private int lowerBound(byte[] key) {
+        int low = 0;
+        int high = entryCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (comparePath(mid, key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int entryOffset(int index) {
+        return buffer.getInt(offsetsStart + 4 * index);
+    }
+
+    // 直接与映射中的字节比较，不创建字符串
+    private int comparePath(int index, byte[] key) {
+        int offset = entryOffset(index);
+        int length = buffer.getInt(offset + 4);
+        int start = offset + 8;
+        int common = Math.min(length, key.length);
+        for (int i = 0; i < common; i++) {
+            int cmp = Byte.compareUnsigned(buffer.get(start + i), key[i]);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return Integer.compare(length, key.length);
+    }
+}
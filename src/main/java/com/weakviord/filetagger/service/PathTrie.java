@@ -0,0 +1,572 @@
+package com.weakviord.filetagger.service;
+
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+/**
+ * 按路径段（以 '/' 分隔）组织的不可变前缀树。
+ * 修改时只复制从根到目标节点的路径；移动目录时把整棵子树原样挂到新的父节点下，耗时与目录深度相关而与条目总数无关。
+ * 每个节点只保存自己的路径段，公共前缀天然共享；目录名和标签位集合另外做驻留，相同内容只保留一份。
+ */
+final class PathTrie {
+    static final PathTrie EMPTY = new PathTrie(Node.EMPTY_ROOT);
+
+    private static final WeakInterner<String> SEGMENTS = new WeakInterner<>();
+
+    static final class Node {
+        private static final Node[] NO_CHILDREN = new Node[0];
+        static final Node EMPTY_ROOT = new Node("", NO_CHILDREN, null, TagBits.EMPTY, 0);
+
+        final String segment;
+        // 按 segment 排序，便于二分查找
+        final Node[] children;
+        // null 表示该路径本身没有标签；非空时为驻留后的实例
+        final TagBits tags;
+        // 子树（含自身）中出现过的所有标签，用于按标签遍历时剪枝
+        final TagBits subtreeTags;
+        // 子树（含自身）中带标签的路径数
+        final int taggedCount;
+
+        private Node(String segment, Node[] children, TagBits tags, TagBits subtreeTags, int taggedCount) {
+            this.segment = segment;
+            this.children = children;
+            this.tags = tags;
+            this.subtreeTags = subtreeTags;
+            this.taggedCount = taggedCount;
+        }
+
+        private static Node leaf(String segment) {
+            return new Node(segment, NO_CHILDREN, null, TagBits.EMPTY, 0);
+        }
+
+        boolean isEmpty() {
+            return tags == null && children.length == 0;
+        }
+
+        Node withTags(TagBits newTags) {
+            newTags = internTags(newTags);
+            int count = taggedCount - (tags != null ? 1 : 0) + (newTags != null ? 1 : 0);
+            return new Node(segment, children, newTags, unionTags(newTags, children), count);
+        }
+
+        Node withSegment(String newSegment) {
+            if (children.length > 0) {
+                newSegment = SEGMENTS.intern(newSegment);
+            }
+            return new Node(newSegment, children, tags, subtreeTags, taggedCount);
+        }
+
+        // index 为 findChild 的返回值；newChild 为 null 或空节点时表示删除
+        Node withChild(int index, Node newChild) {
+            boolean remove = newChild == null || newChild.isEmpty();
+            if (index >= 0) {
+                Node oldChild = children[index];
+                if (remove) {
+                    Node[] newChildren = new Node[children.length - 1];
+                    System.arraycopy(children, 0, newChildren, 0, index);
+                    System.arraycopy(children, index + 1, newChildren, index, children.length - index - 1);
+                    return new Node(segment, newChildren, tags, unionTags(tags, newChildren),
+                        taggedCount - oldChild.taggedCount);
+                }
+                Node[] newChildren = children.clone();
+                newChildren[index] = newChild;
+                return new Node(segment, newChildren, tags, unionTags(tags, newChildren),
+                    taggedCount - oldChild.taggedCount + newChild.taggedCount);
+            }
+            if (remove) {
+                return this;
+            }
+            int insertAt = -(index + 1);
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(children, 0, newChildren, 0, insertAt);
+            newChildren[insertAt] = newChild;
+            System.arraycopy(children, insertAt, newChildren, insertAt + 1, children.length - insertAt);
+            return new Node(segment, newChildren, tags, unionTags(tags, newChildren),
+                taggedCount + newChild.taggedCount);
+        }
+
+        int findChild(String path, int from, int end) {
+            int low = 0;
+            int high = children.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = compareSegment(children[mid].segment, path, from, end);
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -(low + 1);
+        }
+    }
+
+    private static TagBits unionTags(TagBits tags, Node[] children) {
+        TagBits union = tags == null ? TagBits.EMPTY : tags;
+        for (Node child : children) {
+            union = union.or(child.subtreeTags);
+        }
+        return union.intern();
+    }
+
+    private static TagBits internTags(TagBits tags) {
+        return tags == null || tags.isEmpty() ? null : tags.intern();
+    }
+
+    private final Node root;
+
+    private PathTrie(Node root) {
+        this.root = root;
+    }
+
+    static <V> PathTrie build(Map<String, V> entries, Function<V, TagBits> encoder) {
+        // 先排序再自底向上构建，避免逐条插入时反复复制子节点数组
+        String[] paths = entries.keySet().toArray(new String[0]);
+        Arrays.sort(paths);
+        if (paths.length == 0) {
+            return EMPTY;
+        }
+        Builder builder = new Builder();
+        for (String path : paths) {
+            builder.add(path, encoder.apply(entries.get(path)));
+        }
+        return new PathTrie(builder.build());
+    }
+
+    int size() {
+        return root.taggedCount;
+    }
+
+    TagBits get(String path) {
+        Node node = findNode(path);
+        return node == null ? null : node.tags;
+    }
+
+    // 路径本身及其下所有带标签的路径数
+    int countUnder(String path) {
+        Node node = findNode(path);
+        return node == null ? 0 : node.taggedCount;
+    }
+
+    PathTrie put(String path, TagBits tags) {
+        return update(path, node -> node.withTags(tags));
+    }
+
+    PathTrie remove(String path) {
+        return put(path, null);
+    }
+
+    // 移除 path 本身及其下的所有条目
+    PathTrie removeSubtree(String path) {
+        if (findNode(path) == null) {
+            return this;
+        }
+        return update(path, node -> null);
+    }
+
+    // 把 oldPath 对应的整棵子树移动到 newPath
+    PathTrie move(String oldPath, String newPath) {
+        Node moved = findNode(oldPath);
+        if (moved == null || moved.taggedCount == 0 || oldPath.equals(newPath)) {
+            return this;
+        }
+        PathTrie detached = update(oldPath, node -> null);
+        String newSegment = newPath.substring(newPath.lastIndexOf('/') + 1);
+        Node renamed = moved.withSegment(newSegment);
+        return detached.update(newPath, existing -> existing.isEmpty() ? renamed : merge(existing, renamed, (oldTags, movedTags) -> movedTags));
+    }
+
+    // 把 source 中的全部条目并入，同一路径两边都有标签时由 combiner 决定结果。按节点合并，
+    // 只复制两棵树重叠部分的路径，批量导入时比逐条 put 少得多的中间对象
+    PathTrie putAll(PathTrie source, BinaryOperator<TagBits> combiner) {
+        if (source.root.taggedCount == 0) {
+            return this;
+        }
+        return new PathTrie(merge(root, source.root, combiner));
+    }
+
+    // 按 mapper 替换每个条目的标签，结构和计数不变，mapper 不能把非空集合映射为空集合
+    PathTrie mapTags(UnaryOperator<TagBits> mapper) {
+        return new PathTrie(mapTags(root, mapper));
+    }
+
+    private static Node mapTags(Node node, UnaryOperator<TagBits> mapper) {
+        Node[] children = node.children.length == 0 ? Node.NO_CHILDREN : new Node[node.children.length];
+        for (int i = 0; i < children.length; i++) {
+            children[i] = mapTags(node.children[i], mapper);
+        }
+        TagBits tags = node.tags == null ? null : internTags(mapper.apply(node.tags));
+        return new Node(node.segment, children, tags, unionTags(tags, children), node.taggedCount);
+    }
+
+    // 遍历 path 本身及其下所有带标签的路径
+    void forEachUnder(String path, BiConsumer<String, TagBits> consumer) {
+        Node node = findNode(path);
+        if (node != null && node.taggedCount > 0) {
+            walk(node, new StringBuilder(path), TagBits.EMPTY, consumer);
+        }
+    }
+
+    void forEach(BiConsumer<String, TagBits> consumer) {
+        forEachContainingAll(TagBits.EMPTY, consumer);
+    }
+
+    // 只进入 subtreeTags 包含全部所需标签的子树，耗时与结果数量相关
+    void forEachContainingAll(TagBits required, BiConsumer<String, TagBits> consumer) {
+        StringBuilder path = new StringBuilder();
+        for (Node child : root.children) {
+            if (child.subtreeTags.containsAll(required)) {
+                path.setLength(0);
+                walk(child, path.append(child.segment), required, consumer);
+            }
+        }
+    }
+
+    // 列出与 older 相比标签可能不同的路径。两棵树共享的子树直接跳过，耗时与改动量相关；
+    // 标签比较用的是驻留实例，偶尔会多报相同的路径，由调用方再比较一次
+    void forEachChangedPath(PathTrie older, Consumer<String> consumer) {
+        diff(older.root, root, new StringBuilder(), true, consumer);
+    }
+
+    private static void diff(Node older, Node newer, StringBuilder path, boolean isRoot, Consumer<String> consumer) {
+        if (older == newer) {
+            return;
+        }
+        if (older.tags != newer.tags) {
+            consumer.accept(path.toString());
+        }
+        int length = path.length();
+        int i = 0;
+        int j = 0;
+        while (i < older.children.length || j < newer.children.length) {
+            int cmp = i == older.children.length ? 1
+                : j == newer.children.length ? -1
+                : older.children[i].segment.compareTo(newer.children[j].segment);
+            Node child = cmp <= 0 ? older.children[i] : newer.children[j];
+            if (!isRoot) {
+                path.append('/');
+            }
+            path.append(child.segment);
+            if (cmp == 0) {
+                diff(older.children[i++], newer.children[j++], path, false, consumer);
+            } else {
+                // 只存在于一侧的子树，其中所有条目都有变化
+                walk(child, path, TagBits.EMPTY, (changed, tags) -> consumer.accept(changed));
+                if (cmp < 0) {
+                    i++;
+                } else {
+                    j++;
+                }
+            }
+            path.setLength(length);
+        }
+    }
+
+    // 按遍历顺序给出每个条目的标签，不拼接路径；第 n 次回调的条目就是 pathAt(n)
+    void forEachTags(Consumer<TagBits> consumer) {
+        visitTags(root, consumer);
+    }
+
+    private static void visitTags(Node node, Consumer<TagBits> consumer) {
+        if (node.tags != null) {
+            consumer.accept(node.tags);
+        }
+        for (Node child : node.children) {
+            if (child.taggedCount > 0) {
+                visitTags(child, consumer);
+            }
+        }
+    }
+
+    // 遍历顺序中第 rank 个条目的路径，借助 taggedCount 逐层定位，不遍历前面的条目
+    String pathAt(int rank) {
+        if (rank < 0 || rank >= size()) {
+            throw new IndexOutOfBoundsException("rank " + rank + ", size " + size());
+        }
+        StringBuilder path = new StringBuilder();
+        Node node = root;
+        while (node.tags == null || rank > 0) {
+            if (node.tags != null) {
+                rank--;
+            }
+            for (Node child : node.children) {
+                if (rank < child.taggedCount) {
+                    if (node != root) {
+                        path.append('/');
+                    }
+                    path.append(child.segment);
+                    node = child;
+                    break;
+                }
+                rank -= child.taggedCount;
+            }
+        }
+        return path.toString();
+    }
+
+    // pathAt 的逆运算，路径没有标签时返回 -1；逐层累加前面兄弟子树的 taggedCount
+    int rankOf(String path) {
+        Node node = root;
+        int rank = 0;
+        int from = 0;
+        while (from <= path.length()) {
+            int end = segmentEnd(path, from);
+            int index = node.findChild(path, from, end);
+            if (index < 0) {
+                return -1;
+            }
+            if (node.tags != null) {
+                rank++;
+            }
+            for (int i = 0; i < index; i++) {
+                rank += node.children[i].taggedCount;
+            }
+            node = node.children[index];
+            from = end + 1;
+        }
+        return node.tags == null ? -1 : rank;
+    }
+
+    Cursor cursor(TagBits required) {
+        return new Cursor(root, required);
+    }
+
+    /**
+     * 按需推进的深度优先遍历，可以分多次、跨线程地读取同一个快照，不需要先把所有路径收集出来。
+     */
+    static final class Cursor {
+        private static final class Frame {
+            final Node node;
+            final int pathLength;
+            int childIndex;
+            boolean visited;
+
+            Frame(Node node, int pathLength) {
+                this.node = node;
+                this.pathLength = pathLength;
+            }
+        }
+
+        private final ArrayDeque<Frame> stack = new ArrayDeque<>();
+        private final StringBuilder pathBuilder = new StringBuilder();
+        private final TagBits required;
+        private final Node root;
+        private String path;
+        private TagBits tags;
+
+        private Cursor(Node root, TagBits required) {
+            this.root = root;
+            this.required = required;
+            Frame rootFrame = new Frame(root, 0);
+            rootFrame.visited = true;
+            stack.push(rootFrame);
+        }
+
+        // 移动到下一个满足条件的条目，没有更多条目时返回 false
+        boolean next() {
+            while (!stack.isEmpty()) {
+                Frame frame = stack.peek();
+                if (!frame.visited) {
+                    frame.visited = true;
+                    if (frame.node.tags != null && frame.node.tags.containsAll(required)) {
+                        pathBuilder.setLength(frame.pathLength);
+                        path = pathBuilder.toString();
+                        tags = frame.node.tags;
+                        return true;
+                    }
+                }
+                if (frame.childIndex < frame.node.children.length) {
+                    Node child = frame.node.children[frame.childIndex++];
+                    if (child.taggedCount > 0 && child.subtreeTags.containsAll(required)) {
+                        pathBuilder.setLength(frame.pathLength);
+                        if (frame.node != root) {
+                            pathBuilder.append('/');
+                        }
+                        pathBuilder.append(child.segment);
+                        stack.push(new Frame(child, pathBuilder.length()));
+                    }
+                } else {
+                    stack.pop();
+                }
+            }
+            path = null;
+            tags = null;
+            return false;
+        }
+
+        String path() {
+            return path;
+        }
+
+        TagBits tags() {
+            return tags;
+        }
+    }
+
+    private static void walk(Node node, StringBuilder path, TagBits required, BiConsumer<String, TagBits> consumer) {
+        if (node.tags != null && node.tags.containsAll(required)) {
+            consumer.accept(path.toString(), node.tags);
+        }
+        int length = path.length();
+        for (Node child : node.children) {
+            if (child.taggedCount > 0 && child.subtreeTags.containsAll(required)) {
+                path.append('/').append(child.segment);
+                walk(child, path, required, consumer);
+                path.setLength(length);
+            }
+        }
+    }
+
+    private Node findNode(String path) {
+        Node node = root;
+        int from = 0;
+        while (from <= path.length()) {
+            int end = segmentEnd(path, from);
+            int index = node.findChild(path, from, end);
+            if (index < 0) {
+                return null;
+            }
+            node = node.children[index];
+            from = end + 1;
+        }
+        return node;
+    }
+
+    private PathTrie update(String path, UnaryOperator<Node> operator) {
+        Node newRoot = update(root, path, 0, operator);
+        if (newRoot == root) {
+            return this;
+        }
+        return new PathTrie(newRoot == null ? Node.EMPTY_ROOT : newRoot);
+    }
+
+    // node 对应 path 中 from 之前的前缀；from 越过末尾时 node 就是目标节点
+    private static Node update(Node node, String path, int from, UnaryOperator<Node> operator) {
+        if (from > path.length()) {
+            return operator.apply(node);
+        }
+        int end = segmentEnd(path, from);
+        int index = node.findChild(path, from, end);
+        Node child = index >= 0 ? node.children[index] : Node.leaf(newSegment(path, from, end));
+        Node newChild = update(child, path, end + 1, operator);
+        if (newChild == child) {
+            return node;
+        }
+        return node.withChild(index, newChild);
+    }
+
+    // 两边都有标签的路径由 combiner(target 的标签, source 的标签) 决定结果。两边的子节点都已排序，
+    // 按归并的方式一次生成新的子节点数组，宽目录下也不会逐个插入
+    private static Node merge(Node target, Node source, BinaryOperator<TagBits> combiner) {
+        TagBits tags = source.tags == null ? target.tags
+            : internTags(target.tags == null ? source.tags : combiner.apply(target.tags, source.tags));
+        if (source.children.length == 0) {
+            return tags == target.tags ? target : target.withTags(tags);
+        }
+        Node[] left = target.children;
+        Node[] right = source.children;
+        Node[] merged = new Node[left.length + right.length];
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while (i < left.length && j < right.length) {
+            int cmp = left[i].segment.compareTo(right[j].segment);
+            if (cmp < 0) {
+                merged[n++] = left[i++];
+            } else if (cmp > 0) {
+                merged[n++] = right[j++];
+            } else {
+                merged[n++] = merge(left[i++], right[j++], combiner);
+            }
+        }
+        while (i < left.length) {
+            merged[n++] = left[i++];
+        }
+        while (j < right.length) {
+            merged[n++] = right[j++];
+        }
+        Node[] children = n == merged.length ? merged : Arrays.copyOf(merged, n);
+        int count = tags != null ? 1 : 0;
+        for (Node child : children) {
+            count += child.taggedCount;
+        }
+        return new Node(target.segment, children, tags, unionTags(tags, children), count);
+    }
+
+    // 中间路径段必然是目录名，重复率高，做驻留；最后一段通常是唯一的文件名，不驻留
+    private static String newSegment(String path, int from, int end) {
+        String segment = path.substring(from, end);
+        return end < path.length() ? SEGMENTS.intern(segment) : segment;
+    }
+
+    private static int segmentEnd(String path, int from) {
+        int slash = path.indexOf('/', from);
+        return slash < 0 ? path.length() : slash;
+    }
+
+    private static int compareSegment(String segment, String path, int from, int end) {
+        int length = end - from;
+        int limit = Math.min(segment.length(), length);
+        for (int i = 0; i < limit; i++) {
+            char a = segment.charAt(i);
+            char b = path.charAt(from + i);
+            if (a != b) {
+                return a - b;
+            }
+        }
+        return segment.length() - length;
+    }
+
+    // 只在 build 中使用的可变节点，构建完成后一次性转换为不可变节点
+    private static final class Builder {
+        private final String segment;
+        private final TreeMap<String, Builder> children = new TreeMap<>();
+        private TagBits tags;
+
+        Builder() {
+            this("");
+        }
+
+        private Builder(String segment) {
+            this.segment = segment;
+        }
+
+        void add(String path, TagBits pathTags) {
+            pathTags = internTags(pathTags);
+            if (pathTags == null) {
+                return;
+            }
+            Builder node = this;
+            int from = 0;
+            while (from <= path.length()) {
+                int end = segmentEnd(path, from);
+                String childSegment = newSegment(path, from, end);
+                node = node.children.computeIfAbsent(childSegment, Builder::new);
+                from = end + 1;
+            }
+            node.tags = pathTags;
+        }
+
+        Node build() {
+            if (children.isEmpty()) {
+                return new Node(segment, Node.NO_CHILDREN, tags, tags == null ? TagBits.EMPTY : tags,
+                    tags == null ? 0 : 1);
+            }
+            Node[] built = new Node[children.size()];
+            int count = tags != null ? 1 : 0;
+            int i = 0;
+            for (Builder child : children.values()) {
+                built[i] = child.build();
+                count += built[i].taggedCount;
+                i++;
+            }
+            return new Node(segment, built, tags, unionTags(tags, built), count);
+        }
+    }
+}
@@ -0,0 +1,401 @@
+package com.weakviord.filetagger.service;
+
+import java.util.Arrays;
+
+/**
+ * 压缩的整数位图，用作按标签的文件 id 倒排表。
+ * id 按高 16 位分块：块内元素少时存为有序 char 数组，多时存为 1024 个 long 的位图，稀疏和稠密的标签都不会占太多内存。
+ * 构建后不可变，块在不同实例之间共享，集合运算返回新实例。
+ */
+final class PostingBitmap {
+    // 块内元素超过这个数后改用位图
+    private static final int ARRAY_LIMIT = 4096;
+    private static final int WORDS = 1024;
+
+    static final PostingBitmap EMPTY = new PostingBitmap(new char[0], new Object[0], 0);
+
+    private final char[] keys;
+    // 有序的 char[] 或长度为 WORDS 的 long[]
+    private final Object[] containers;
+    // ranks[i] 为前 i 个块的元素总数
+    private final int[] ranks;
+
+    private PostingBitmap(char[] keys, Object[] containers, int count) {
+        this.keys = keys.length == count ? keys : Arrays.copyOf(keys, count);
+        this.containers = containers.length == count ? containers : Arrays.copyOf(containers, count);
+        this.ranks = new int[count + 1];
+        for (int i = 0; i < count; i++) {
+            ranks[i + 1] = ranks[i] + cardinality(this.containers[i]);
+        }
+    }
+
+    int cardinality() {
+        return ranks[keys.length];
+    }
+
+    boolean isEmpty() {
+        return keys.length == 0;
+    }
+
+    boolean contains(int id) {
+        int index = Arrays.binarySearch(keys, (char) (id >>> 16));
+        return index >= 0 && contains(containers[index], (char) id);
+    }
+
+    // 大于等于 from 的最小元素，没有时返回 -1
+    int nextSetBit(int from) {
+        from = Math.max(from, 0);
+        int high = from >>> 16;
+        for (int i = lowerBound(high); i < keys.length; i++) {
+            int low = next(containers[i], keys[i] == high ? from & 0xFFFF : 0);
+            if (low >= 0) {
+                return keys[i] << 16 | low;
+            }
+        }
+        return -1;
+    }
+
+    // 第 rank 个元素（从 0 开始），用于按页跳转
+    int select(int rank) {
+        if (rank < 0 || rank >= cardinality()) {
+            return -1;
+        }
+        int low = 0;
+        int high = keys.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (ranks[mid] <= rank) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return keys[low] << 16 | select(containers[low], rank - ranks[low]);
+    }
+
+    PostingBitmap and(PostingBitmap other) {
+        Blocks result = new Blocks();
+        int i = 0;
+        int j = 0;
+        while (i < keys.length && j < other.keys.length) {
+            if (keys[i] < other.keys[j]) {
+                i++;
+            } else if (keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                result.add(keys[i], and(containers[i++], other.containers[j++]));
+            }
+        }
+        return result.build();
+    }
+
+    PostingBitmap or(PostingBitmap other) {
+        if (other.isEmpty()) {
+            return this;
+        }
+        if (isEmpty()) {
+            return other;
+        }
+        Blocks result = new Blocks();
+        int i = 0;
+        int j = 0;
+        while (i < keys.length || j < other.keys.length) {
+            if (j == other.keys.length || i < keys.length && keys[i] < other.keys[j]) {
+                result.add(keys[i], containers[i++]);
+            } else if (i == keys.length || keys[i] > other.keys[j]) {
+                result.add(other.keys[j], other.containers[j++]);
+            } else {
+                result.add(keys[i], or(containers[i++], other.containers[j++]));
+            }
+        }
+        return result.build();
+    }
+
+    PostingBitmap andNot(PostingBitmap other) {
+        if (isEmpty() || other.isEmpty()) {
+            return this;
+        }
+        Blocks result = new Blocks();
+        int j = 0;
+        for (int i = 0; i < keys.length; i++) {
+            while (j < other.keys.length && other.keys[j] < keys[i]) {
+                j++;
+            }
+            boolean shared = j < other.keys.length && other.keys[j] == keys[i];
+            result.add(keys[i], shared ? andNot(containers[i], other.containers[j]) : containers[i]);
+        }
+        return result.build();
+    }
+
+    private int lowerBound(int key) {
+        int low = 0;
+        int high = keys.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static int cardinality(Object container) {
+        if (container instanceof char[] array) {
+            return array.length;
+        }
+        int count = 0;
+        for (long word : (long[]) container) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    private static boolean contains(Object container, char value) {
+        if (container instanceof char[] array) {
+            return Arrays.binarySearch(array, value) >= 0;
+        }
+        return (((long[]) container)[value >>> 6] & 1L << value) != 0;
+    }
+
+    private static int next(Object container, int from) {
+        if (container instanceof char[] array) {
+            int index = Arrays.binarySearch(array, (char) from);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            return index < array.length ? array[index] : -1;
+        }
+        long[] words = (long[]) container;
+        int index = from >>> 6;
+        long word = words[index] & -1L << from;
+        while (true) {
+            if (word != 0) {
+                return index * 64 + Long.numberOfTrailingZeros(word);
+            }
+            if (++index == WORDS) {
+                return -1;
+            }
+            word = words[index];
+        }
+    }
+
+    private static int select(Object container, int rank) {
+        if (container instanceof char[] array) {
+            return array[rank];
+        }
+        long[] words = (long[]) container;
+        for (int index = 0; ; index++) {
+            int count = Long.bitCount(words[index]);
+            if (rank < count) {
+                long word = words[index];
+                for (; rank > 0; rank--) {
+                    word &= word - 1;
+                }
+                return index * 64 + Long.numberOfTrailingZeros(word);
+            }
+            rank -= count;
+        }
+    }
+
+    // 以下块运算不修改参数，结果为空时返回 null
+
+    private static Object and(Object a, Object b) {
+        if (a instanceof long[] x && b instanceof long[] y) {
+            long[] words = new long[WORDS];
+            for (int i = 0; i < WORDS; i++) {
+                words[i] = x[i] & y[i];
+            }
+            return compact(words);
+        }
+        if (a instanceof char[] x && b instanceof char[] y) {
+            char[] result = new char[Math.min(x.length, y.length)];
+            int n = 0;
+            for (int i = 0, j = 0; i < x.length && j < y.length; ) {
+                if (x[i] < y[j]) {
+                    i++;
+                } else if (x[i] > y[j]) {
+                    j++;
+                } else {
+                    result[n++] = x[i++];
+                    j++;
+                }
+            }
+            return trim(result, n);
+        }
+        return a instanceof char[] array ? filter(array, (long[]) b, true) : filter((char[]) b, (long[]) a, true);
+    }
+
+    private static Object or(Object a, Object b) {
+        if (a instanceof char[] x && b instanceof char[] y) {
+            char[] result = new char[x.length + y.length];
+            int n = 0;
+            int i = 0;
+            int j = 0;
+            while (i < x.length || j < y.length) {
+                if (j == y.length || i < x.length && x[i] < y[j]) {
+                    result[n++] = x[i++];
+                } else if (i == x.length || x[i] > y[j]) {
+                    result[n++] = y[j++];
+                } else {
+                    result[n++] = x[i++];
+                    j++;
+                }
+            }
+            return n > ARRAY_LIMIT ? toWords(result, n) : trim(result, n);
+        }
+        long[] words = (a instanceof long[] x ? x : (long[]) b).clone();
+        Object other = a instanceof long[] ? b : a;
+        if (other instanceof long[] y) {
+            for (int i = 0; i < WORDS; i++) {
+                words[i] |= y[i];
+            }
+        } else {
+            for (char value : (char[]) other) {
+                words[value >>> 6] |= 1L << value;
+            }
+        }
+        return words;
+    }
+
+    private static Object andNot(Object a, Object b) {
+        if (a instanceof char[] x) {
+            if (b instanceof long[] y) {
+                return filter(x, y, false);
+            }
+            char[] y = (char[]) b;
+            char[] result = new char[x.length];
+            int n = 0;
+            for (int i = 0, j = 0; i < x.length; i++) {
+                while (j < y.length && y[j] < x[i]) {
+                    j++;
+                }
+                if (j == y.length || y[j] != x[i]) {
+                    result[n++] = x[i];
+                }
+            }
+            return trim(result, n);
+        }
+        long[] words = ((long[]) a).clone();
+        if (b instanceof long[] y) {
+            for (int i = 0; i < WORDS; i++) {
+                words[i] &= ~y[i];
+            }
+        } else {
+            for (char value : (char[]) b) {
+                words[value >>> 6] &= ~(1L << value);
+            }
+        }
+        return compact(words);
+    }
+
+    private static char[] filter(char[] array, long[] words, boolean keep) {
+        char[] result = new char[array.length];
+        int n = 0;
+        for (char value : array) {
+            if (((words[value >>> 6] & 1L << value) != 0) == keep) {
+                result[n++] = value;
+            }
+        }
+        return trim(result, n);
+    }
+
+    private static char[] trim(char[] array, int length) {
+        return length == 0 ? null : length == array.length ? array : Arrays.copyOf(array, length);
+    }
+
+    private static long[] toWords(char[] array, int length) {
+        long[] words = new long[WORDS];
+        for (int i = 0; i < length; i++) {
+            words[array[i] >>> 6] |= 1L << array[i];
+        }
+        return words;
+    }
+
+    // 元素少的位图退回有序数组
+    private static Object compact(long[] words) {
+        int count = cardinality(words);
+        if (count > ARRAY_LIMIT) {
+            return words;
+        }
+        if (count == 0) {
+            return null;
+        }
+        char[] array = new char[count];
+        int n = 0;
+        for (int index = 0; index < WORDS; index++) {
+            for (long word = words[index]; word != 0; word &= word - 1) {
+                array[n++] = (char) (index * 64 + Long.numberOfTrailingZeros(word));
+            }
+        }
+        return array;
+    }
+
+    private static final class Blocks {
+        private char[] keys = new char[4];
+        private Object[] containers = new Object[4];
+        private int count;
+
+        void add(int key, Object container) {
+            if (container == null) {
+                return;
+            }
+            if (count == keys.length) {
+                keys = Arrays.copyOf(keys, count * 2);
+                containers = Arrays.copyOf(containers, count * 2);
+            }
+            keys[count] = (char) key;
+            containers[count++] = container;
+        }
+
+        PostingBitmap build() {
+            return count == 0 ? EMPTY : new PostingBitmap(keys, containers, count);
+        }
+    }
+
+    /**
+     * 按递增顺序逐个添加 id。
+     */
+    static final class Builder {
+        private final Blocks blocks = new Blocks();
+        private int currentKey = -1;
+        private char[] current = new char[16];
+        private int currentSize;
+        private long[] currentWords;
+
+        void add(int id) {
+            int key = id >>> 16;
+            if (key != currentKey) {
+                flush();
+                currentKey = key;
+            }
+            char low = (char) id;
+            if (currentWords == null && currentSize == ARRAY_LIMIT) {
+                currentWords = toWords(current, currentSize);
+            }
+            if (currentWords != null) {
+                currentWords[low >>> 6] |= 1L << low;
+                return;
+            }
+            if (currentSize == current.length) {
+                current = Arrays.copyOf(current, currentSize * 2);
+            }
+            current[currentSize++] = low;
+        }
+
+        private void flush() {
+            if (currentKey >= 0) {
+                blocks.add(currentKey, currentWords != null ? currentWords : Arrays.copyOf(current, currentSize));
+            }
+            currentWords = null;
+            currentSize = 0;
+        }
+
+        PostingBitmap build() {
+            flush();
+            currentKey = -1;
+            return blocks.build();
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.weakviord.filetagger.service;
+
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.startup.StartupActivity;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * 项目打开后在后台检查一遍失效的标签条目。
+ */
+public final class StaleTagSweepStartupActivity implements StartupActivity.DumbAware {
+    @Override
+    public void runActivity(@NotNull Project project) {
+        project.getService(StaleTagSweeper.class).scheduleFullSweep();
+    }
+}
@@ -0,0 +1,205 @@
+package com.weakviord.filetagger.service;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.DumbService;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.util.Alarm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 在后台分小块检查带标签的路径是否仍然存在，清理已经不存在的条目。
+ * 缺失的路径先保留一个宽限期，切换分支等操作后文件重新出现时标签不会丢失。
+ */
+@Service(Service.Level.PROJECT)
+public final class StaleTagSweeper implements Disposable {
+    private static final Logger LOG = Logger.getInstance(StaleTagSweeper.class);
+    // 每块最多占用的时间，块之间让出线程
+    private static final long CHUNK_BUDGET_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final int CHUNK_PAUSE_MS = 100;
+    // IDE 索引或标签索引构建期间暂停，稍后再试
+    private static final int DUMB_RETRY_MS = 2000;
+
+    private final Project project;
+    private final Alarm alarm;
+    // 发现缺失的路径及首次发现的时间
+    private final Map<String, Long> missingSince = new ConcurrentHashMap<>();
+    private final AtomicBoolean fullSweepRequested = new AtomicBoolean();
+    // 以下字段只在 alarm 线程上访问
+    private TagIndex.Cursor cursor;
+    private int checkedInSweep;
+    private int purgedInSweep;
+    // 已安排的下一次执行时间，用于合并重复的调度请求
+    private boolean stepPending;
+    private long nextStepAt;
+    private volatile int lastPurgedCount;
+
+    public StaleTagSweeper(Project project) {
+        this.project = project;
+        this.alarm = new Alarm(Alarm.ThreadToUse.POOLED_THREAD, this);
+    }
+
+    // 从头检查所有带标签的路径；正在进行的检查会重新开始
+    public void scheduleFullSweep() {
+        fullSweepRequested.set(true);
+        scheduleStep(0);
+    }
+
+    // VFS 报告删除的路径，宽限期过后仍不存在才清理
+    void markMissing(Collection<String> paths) {
+        long now = System.currentTimeMillis();
+        for (String path : paths) {
+            missingSince.putIfAbsent(path, now);
+        }
+        scheduleStep(getTagService().getStaleGraceMillis());
+    }
+
+    // 最近一次完整检查清理的条目数
+    public int getLastPurgedCount() {
+        return lastPurgedCount;
+    }
+
+    private synchronized void scheduleStep(long delayMillis) {
+        long due = System.currentTimeMillis() + delayMillis;
+        if (stepPending && nextStepAt <= due) {
+            return;
+        }
+        alarm.cancelAllRequests();
+        stepPending = true;
+        nextStepAt = due;
+        alarm.addRequest(this::runStep, delayMillis);
+    }
+
+    private void runStep() {
+        synchronized (this) {
+            stepPending = false;
+        }
+        if (project.isDisposed()) {
+            return;
+        }
+        TagStorageService tagService = getTagService();
+        // 标签索引还在后台构建时同样稍后再试
+        if (DumbService.isDumb(project) || !tagService.getSnapshot().isIndexed()) {
+            scheduleStep(DUMB_RETRY_MS);
+            return;
+        }
+
+        long graceMillis = tagService.getStaleGraceMillis();
+        long now = System.currentTimeMillis();
+        long deadline = System.nanoTime() + CHUNK_BUDGET_NANOS;
+        List<String> sweepExpired = new ArrayList<>();
+        List<String> missingExpired = new ArrayList<>();
+
+        if (fullSweepRequested.getAndSet(false)) {
+            // 遍历的是不可变快照，期间的修改不影响游标
+            cursor = tagService.getIndexSnapshot().cursor(TagBits.EMPTY);
+            checkedInSweep = 0;
+            purgedInSweep = 0;
+        }
+        boolean sweepFinished = false;
+        while (cursor != null && System.nanoTime() < deadline) {
+            if (!cursor.next()) {
+                cursor = null;
+                sweepFinished = true;
+                break;
+            }
+            checkedInSweep++;
+            if (checkPath(cursor.path(), now, graceMillis)) {
+                sweepExpired.add(cursor.path());
+            }
+        }
+
+        // 宽限期已过的缺失路径再确认一次
+        long nextDue = Long.MAX_VALUE;
+        for (Map.Entry<String, Long> entry : missingSince.entrySet()) {
+            long due = entry.getValue() + graceMillis;
+            if (due > now) {
+                nextDue = Math.min(nextDue, due);
+            } else if (System.nanoTime() < deadline) {
+                if (checkPath(entry.getKey(), now, graceMillis)) {
+                    missingExpired.add(entry.getKey());
+                }
+            } else {
+                nextDue = now;
+            }
+        }
+
+        // 在当前的后台线程上清理，不占用 EDT；检查之后文件可能又出现了，持有写锁时再确认一次
+        purgedInSweep += purge(tagService, sweepExpired, now, graceMillis);
+        int purgedMissing = purge(tagService, missingExpired, now, graceMillis);
+        if (purgedMissing > 0) {
+            LOG.info("Purged " + purgedMissing + " stale tag entries");
+        }
+        if (sweepFinished) {
+            lastPurgedCount = purgedInSweep;
+            LOG.info("Stale tag sweep finished: checked " + checkedInSweep + ", purged " + purgedInSweep);
+        }
+        if (cursor != null) {
+            scheduleStep(CHUNK_PAUSE_MS);
+        } else if (nextDue != Long.MAX_VALUE) {
+            scheduleStep(Math.max(CHUNK_PAUSE_MS, nextDue - now));
+        }
+    }
+
+    // 返回实际移除的条目数
+    private int purge(TagStorageService tagService, List<String> paths, long now, long graceMillis) {
+        if (paths.isEmpty()) {
+            return 0;
+        }
+        int purged = tagService.purgePaths(paths, path -> isStale(path, now, graceMillis));
+        paths.forEach(missingSince::remove);
+        return purged;
+    }
+
+    // 返回 true 表示该路径应被清理；宽限期内的缺失路径留在 missingSince 中，清理后才移除
+    private boolean checkPath(String path, long now, long graceMillis) {
+        if (exists(path)) {
+            missingSince.remove(path);
+            return false;
+        }
+        if (graceMillis > 0) {
+            Long since = missingSince.putIfAbsent(path, now);
+            return since != null && now - since >= graceMillis;
+        }
+        return true;
+    }
+
+    // 清理前在写锁内调用：路径仍不存在，且缺失时间没有被重新记录
+    private boolean isStale(String path, long now, long graceMillis) {
+        if (exists(path)) {
+            missingSince.remove(path);
+            return false;
+        }
+        if (graceMillis <= 0) {
+            return true;
+        }
+        Long since = missingSince.get(path);
+        return since != null && now - since >= graceMillis;
+    }
+
+    private static boolean exists(String path) {
+        // 压缩包内的路径不在本地文件系统中，不做清理
+        if (path.contains("!/")) {
+            return true;
+        }
+        return LocalFileSystem.getInstance().findFileByPath(path) != null;
+    }
+
+    private TagStorageService getTagService() {
+        return project.getService(TagStorageService.class);
+    }
+
+    @Override
+    public void dispose() {
+        missingSince.clear();
+    }
+}
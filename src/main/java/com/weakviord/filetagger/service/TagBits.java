@@ -0,0 +1,199 @@
+package com.weakviord.filetagger.service;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * 以标签 id 为下标的不可变位集合。
+ * 前 64 个 id 存放在一个 long 中，只有超出时才额外分配数组，集合运算都是按字进行的位运算。
+ */
+final class TagBits {
+    static final TagBits EMPTY = new TagBits(0L, null);
+
+    private static final WeakInterner<TagBits> INTERNER = new WeakInterner<>();
+
+    // id 0..63
+    private final long low;
+    // high[i] 对应 id 64*(i+1) .. 64*(i+2)-1；全为 0 时为 null，末尾不保留 0
+    private final long[] high;
+
+    private TagBits(long low, long[] high) {
+        this.low = low;
+        this.high = high;
+    }
+
+    static TagBits of(int id) {
+        return EMPTY.with(id);
+    }
+
+    private static TagBits create(long low, long[] high) {
+        if (high != null) {
+            int length = high.length;
+            while (length > 0 && high[length - 1] == 0L) {
+                length--;
+            }
+            high = length == 0 ? null : (length == high.length ? high : Arrays.copyOf(high, length));
+        }
+        if (low == 0L && high == null) {
+            return EMPTY;
+        }
+        return new TagBits(low, high);
+    }
+
+    // 相同内容共享同一实例，前缀树中大量文件的标签组合是重复的
+    TagBits intern() {
+        return this == EMPTY ? EMPTY : INTERNER.intern(this);
+    }
+
+    private long word(int index) {
+        if (index == 0) {
+            return low;
+        }
+        return high != null && index - 1 < high.length ? high[index - 1] : 0L;
+    }
+
+    private int wordCount() {
+        return high == null ? 1 : high.length + 1;
+    }
+
+    boolean isEmpty() {
+        return this == EMPTY || (low == 0L && high == null);
+    }
+
+    boolean contains(int id) {
+        return (word(id >>> 6) & (1L << id)) != 0;
+    }
+
+    TagBits with(int id) {
+        if (contains(id)) {
+            return this;
+        }
+        int index = id >>> 6;
+        if (index == 0) {
+            return new TagBits(low | (1L << id), high);
+        }
+        long[] newHigh = high == null ? new long[index] : Arrays.copyOf(high, Math.max(high.length, index));
+        newHigh[index - 1] |= 1L << id;
+        return new TagBits(low, newHigh);
+    }
+
+    TagBits without(int id) {
+        if (!contains(id)) {
+            return this;
+        }
+        int index = id >>> 6;
+        if (index == 0) {
+            return create(low & ~(1L << id), high);
+        }
+        long[] newHigh = high.clone();
+        newHigh[index - 1] &= ~(1L << id);
+        return create(low, newHigh);
+    }
+
+    TagBits or(TagBits other) {
+        if (other.isEmpty() || containsAll(other)) {
+            return this;
+        }
+        if (isEmpty()) {
+            return other;
+        }
+        int count = Math.max(wordCount(), other.wordCount());
+        long[] newHigh = count == 1 ? null : new long[count - 1];
+        for (int i = 1; i < count; i++) {
+            newHigh[i - 1] = word(i) | other.word(i);
+        }
+        return create(low | other.low, newHigh);
+    }
+
+    TagBits and(TagBits other) {
+        int count = Math.min(wordCount(), other.wordCount());
+        long[] newHigh = count == 1 ? null : new long[count - 1];
+        for (int i = 1; i < count; i++) {
+            newHigh[i - 1] = word(i) & other.word(i);
+        }
+        return create(low & other.low, newHigh);
+    }
+
+    TagBits andNot(TagBits other) {
+        long[] newHigh = high == null ? null : high.clone();
+        if (newHigh != null) {
+            for (int i = 0; i < newHigh.length; i++) {
+                newHigh[i] &= ~other.word(i + 1);
+            }
+        }
+        return create(low & ~other.low, newHigh);
+    }
+
+    boolean containsAll(TagBits other) {
+        if ((other.low & ~low) != 0) {
+            return false;
+        }
+        for (int i = 1; i < other.wordCount(); i++) {
+            if ((other.word(i) & ~word(i)) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    boolean intersects(TagBits other) {
+        int count = Math.min(wordCount(), other.wordCount());
+        for (int i = 0; i < count; i++) {
+            if ((word(i) & other.word(i)) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    int cardinality() {
+        int count = Long.bitCount(low);
+        if (high != null) {
+            for (long word : high) {
+                count += Long.bitCount(word);
+            }
+        }
+        return count;
+    }
+
+    // 返回 from 及之后的第一个 id，没有时返回 -1
+    int nextSetBit(int from) {
+        int index = from >>> 6;
+        int count = wordCount();
+        if (index >= count) {
+            return -1;
+        }
+        long word = word(index) & (-1L << from);
+        while (true) {
+            if (word != 0) {
+                return (index << 6) + Long.numberOfTrailingZeros(word);
+            }
+            if (++index >= count) {
+                return -1;
+            }
+            word = word(index);
+        }
+    }
+
+    void forEach(IntConsumer consumer) {
+        for (int id = nextSetBit(0); id >= 0; id = nextSetBit(id + 1)) {
+            consumer.accept(id);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof TagBits other)) {
+            return false;
+        }
+        return low == other.low && Arrays.equals(high, other.high);
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(low) * 31 + Arrays.hashCode(high);
+    }
+}
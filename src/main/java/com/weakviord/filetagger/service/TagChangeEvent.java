@@ -0,0 +1,202 @@
+package com.weakviord.filetagger.service;
+
+import java.util.*;
+
+/**
+ * 一批修改的增量：哪些文件的标签变了、哪些路径被移动或移除、哪些标签被增加、重命名、改色或删除。
+ * 派生数据按这些内容更新，耗时与变化量相关；isReloaded() 为 true 时数据被整体替换，需要重新读取快照。
+ */
+public final class TagChangeEvent {
+    public record PathRemap(String oldPath, String newPath) {
+    }
+
+    private final long modificationCount;
+    private final boolean reloaded;
+    private final boolean rulesChanged;
+    private final List<String> changedFiles;
+    private final List<PathRemap> remappedPaths;
+    private final List<String> removedPaths;
+    private final Set<String> addedTags;
+    private final Map<String, String> renamedTags;
+    private final Set<String> recoloredTags;
+    private final Set<String> deletedTags;
+
+    private TagChangeEvent(Builder builder, long modificationCount) {
+        this.modificationCount = modificationCount;
+        this.reloaded = builder.reloaded;
+        this.rulesChanged = builder.rulesChanged;
+        this.changedFiles = freeze(builder.changedFiles);
+        this.remappedPaths = freeze(builder.remappedPaths);
+        this.removedPaths = freeze(builder.removedPaths);
+        this.addedTags = builder.addedTags == null ? Collections.emptySet() : Collections.unmodifiableSet(builder.addedTags);
+        this.renamedTags = builder.renamedTags == null ? Collections.emptyMap() : Collections.unmodifiableMap(builder.renamedTags);
+        this.recoloredTags = builder.recoloredTags == null ? Collections.emptySet() : Collections.unmodifiableSet(builder.recoloredTags);
+        this.deletedTags = builder.deletedTags == null ? Collections.emptySet() : Collections.unmodifiableSet(builder.deletedTags);
+    }
+
+    private static <T> List<T> freeze(List<T> list) {
+        return list == null ? Collections.emptyList() : Collections.unmodifiableList(list);
+    }
+
+    // 提交后快照的修改计数，可用来判断自己的派生数据是否已经跟上
+    public long getModificationCount() {
+        return modificationCount;
+    }
+
+    public boolean isReloaded() {
+        return reloaded;
+    }
+
+    // 自动标签规则被替换，任何文件的规则标签都可能变化
+    public boolean isRulesChanged() {
+        return rulesChanged;
+    }
+
+    // 标签集合发生变化的文件（包括打上或去掉全部标签），新值从快照中读取
+    public List<String> getChangedFiles() {
+        return changedFiles;
+    }
+
+    // 目录移动时只有目录自身一条，其下的条目随之移动
+    public List<PathRemap> getRemappedPaths() {
+        return remappedPaths;
+    }
+
+    // 连同子树一起移除的路径
+    public List<String> getRemovedPaths() {
+        return removedPaths;
+    }
+
+    public Set<String> getAddedTags() {
+        return addedTags;
+    }
+
+    // 旧名称到新名称，文件上的标签随之改名，不会出现在 getChangedFiles 中
+    public Map<String, String> getRenamedTags() {
+        return renamedTags;
+    }
+
+    public Set<String> getRecoloredTags() {
+        return recoloredTags;
+    }
+
+    // 被删除标签所在的文件同时出现在 getChangedFiles 中
+    public Set<String> getDeletedTags() {
+        return deletedTags;
+    }
+
+    @Override
+    public String toString() {
+        return "TagChangeEvent{#" + modificationCount + (reloaded ? ", reloaded" : "") + (rulesChanged ? ", rules" : "")
+            + ", files=" + changedFiles.size() + ", remapped=" + remappedPaths.size() + ", removed=" + removedPaths.size()
+            + ", added=" + addedTags + ", renamed=" + renamedTags + ", recolored=" + recoloredTags
+            + ", deleted=" + deletedTags + "}";
+    }
+
+    /**
+     * 在 writeLock 内随修改一起记录，提交时生成事件；没有记录任何变化时不发送。
+     */
+    static final class Builder {
+        private boolean reloaded;
+        private boolean rulesChanged;
+        private List<String> changedFiles;
+        private List<PathRemap> remappedPaths;
+        private List<String> removedPaths;
+        private Set<String> addedTags;
+        private Map<String, String> renamedTags;
+        private Set<String> recoloredTags;
+        private Set<String> deletedTags;
+        private boolean empty = true;
+
+        Builder reloaded() {
+            reloaded = true;
+            empty = false;
+            return this;
+        }
+
+        Builder rulesChanged() {
+            rulesChanged = true;
+            empty = false;
+            return this;
+        }
+
+        Builder fileChanged(String path) {
+            changedFiles = add(changedFiles, path);
+            return this;
+        }
+
+        Builder filesChanged(Collection<String> paths) {
+            if (!paths.isEmpty()) {
+                if (changedFiles == null) {
+                    changedFiles = new ArrayList<>(paths.size());
+                }
+                changedFiles.addAll(paths);
+                empty = false;
+            }
+            return this;
+        }
+
+        Builder pathRemapped(String oldPath, String newPath) {
+            remappedPaths = add(remappedPaths, new PathRemap(oldPath, newPath));
+            return this;
+        }
+
+        Builder pathRemoved(String path) {
+            removedPaths = add(removedPaths, path);
+            return this;
+        }
+
+        Builder tagAdded(String name) {
+            if (addedTags == null) {
+                addedTags = new HashSet<>();
+            }
+            addedTags.add(name);
+            empty = false;
+            return this;
+        }
+
+        Builder tagRenamed(String oldName, String newName) {
+            if (renamedTags == null) {
+                renamedTags = new LinkedHashMap<>();
+            }
+            renamedTags.put(oldName, newName);
+            empty = false;
+            return this;
+        }
+
+        Builder tagRecolored(String name) {
+            if (recoloredTags == null) {
+                recoloredTags = new HashSet<>();
+            }
+            recoloredTags.add(name);
+            empty = false;
+            return this;
+        }
+
+        Builder tagDeleted(String name) {
+            if (deletedTags == null) {
+                deletedTags = new HashSet<>();
+            }
+            deletedTags.add(name);
+            empty = false;
+            return this;
+        }
+
+        private <T> List<T> add(List<T> list, T value) {
+            if (list == null) {
+                list = new ArrayList<>();
+            }
+            list.add(value);
+            empty = false;
+            return list;
+        }
+
+        boolean isEmpty() {
+            return empty;
+        }
+
+        TagChangeEvent build(long modificationCount) {
+            return new TagChangeEvent(this, modificationCount);
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.weakviord.filetagger.service;
+
+import com.intellij.util.messages.Topic;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * 标签数据的变化通知，在项目消息总线上发布。每批修改提交后发送一次，按提交顺序送达，
+ * 调用时不持有 TagStorageService 的锁，可以直接读取最新快照或再次修改。
+ */
+public interface TagChangeListener {
+    @Topic.ProjectLevel
+    Topic<TagChangeListener> TOPIC = Topic.create("File tag changes", TagChangeListener.class);
+
+    void tagsChanged(@NotNull TagChangeEvent event);
+}
@@ -0,0 +1,135 @@
+package com.weakviord.filetagger.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * 检查快照内各部分数据是否一致：标签定义与字典、文件上的标签 id、使用计数、子树计数和倒排表。
+ * 这些数据都是增量维护的，任何一处漏改都会在这里表现为不一致。
+ */
+final class TagConsistencyChecker {
+    // 同一类问题只列出前几条，避免大项目中报告过长
+    private static final int MAX_EXAMPLES = 5;
+
+    private final List<String> problems = new ArrayList<>();
+
+    private TagConsistencyChecker() {
+    }
+
+    // fileExists 为 null 时不检查路径是否仍然存在
+    static List<String> check(TagSnapshot snapshot, Predicate<String> fileExists) {
+        TagConsistencyChecker checker = new TagConsistencyChecker();
+        checker.checkDictionary(snapshot);
+        checker.checkEntries(snapshot, fileExists);
+        checker.checkPostings(snapshot);
+        return checker.problems;
+    }
+
+    private void checkDictionary(TagSnapshot snapshot) {
+        String[] names = snapshot.dictionary.nameTable();
+        int defined = 0;
+        for (int id = 0; id < names.length; id++) {
+            if (names[id] == null) {
+                continue;
+            }
+            defined++;
+            if (snapshot.dictionary.idOf(names[id]) != id) {
+                problems.add("Dictionary maps tag '" + names[id] + "' to id " + snapshot.dictionary.idOf(names[id])
+                    + " but stores it at id " + id);
+            }
+            if (!snapshot.tags.containsKey(names[id])) {
+                problems.add("Tag '" + names[id] + "' has an id but no definition");
+            }
+        }
+        for (String name : snapshot.tags.keySet()) {
+            if (snapshot.dictionary.idOf(name) < 0) {
+                problems.add("Tag '" + name + "' is defined but has no id");
+            }
+        }
+        if (defined != snapshot.tags.size()) {
+            problems.add("Dictionary has " + defined + " tags, definitions have " + snapshot.tags.size());
+        }
+    }
+
+    private void checkEntries(TagSnapshot snapshot, Predicate<String> fileExists) {
+        String[] names = snapshot.dictionary.nameTable();
+        int[] counts = new int[Math.max(names.length, snapshot.usageCounts.length)];
+        List<String> emptyEntries = new ArrayList<>();
+        List<String> unknownIds = new ArrayList<>();
+        List<String> missingFiles = new ArrayList<>();
+        List<String> unreachable = new ArrayList<>();
+        int[] entries = new int[1];
+        snapshot.index.forEach((path, tags) -> {
+            entries[0]++;
+            if (tags.isEmpty()) {
+                emptyEntries.add(path);
+            }
+            tags.forEach(id -> {
+                if (id >= names.length || names[id] == null) {
+                    unknownIds.add(path + " (id " + id + ")");
+                } else {
+                    counts[id]++;
+                }
+            });
+            // 遍历到的条目按路径查找必须得到同一组标签，子树计数至少包含它自己
+            if (!tags.equals(snapshot.index.get(path)) || snapshot.index.countUnder(path) < 1) {
+                unreachable.add(path);
+            }
+            if (fileExists != null && !fileExists.test(path)) {
+                missingFiles.add(path);
+            }
+        });
+
+        report("entries without tags", emptyEntries);
+        report("entries with unknown tag ids", unknownIds);
+        report("entries not reachable by path", unreachable);
+        report("tagged paths that no longer exist", missingFiles);
+        if (entries[0] != snapshot.index.size()) {
+            problems.add("Index reports " + snapshot.index.size() + " entries but iterates " + entries[0]);
+        }
+        for (int id = 0; id < names.length; id++) {
+            int stored = id < snapshot.usageCounts.length ? snapshot.usageCounts[id] : 0;
+            if (names[id] != null && stored != counts[id]) {
+                problems.add("Usage count of '" + names[id] + "' is " + stored + ", actual " + counts[id]);
+            }
+        }
+    }
+
+    private void checkPostings(TagSnapshot snapshot) {
+        TagPostings postings = snapshot.postings();
+        // 倒排表建在合并了内容标签的索引上
+        TagIndex queryIndex = snapshot.queryIndex();
+        if (postings.all().cardinality() != queryIndex.size()) {
+            problems.add("Posting list covers " + postings.all().cardinality() + " entries, index has "
+                + queryIndex.size());
+        }
+        String[] names = snapshot.dictionary.nameTable();
+        List<String> unknownContentIds = new ArrayList<>();
+        snapshot.contentTags.forEach((path, tags) -> tags.forEach(id -> {
+            if (id >= names.length || names[id] == null) {
+                unknownContentIds.add(path + " (id " + id + ")");
+            }
+        }));
+        report("content-tagged files with unknown tag ids", unknownContentIds);
+        for (int id = 0; id < names.length; id++) {
+            if (names[id] == null) {
+                continue;
+            }
+            int cardinality = postings.get(id).cardinality();
+            if (cardinality != snapshot.getTagUsageCount(names[id])) {
+                problems.add("Posting list of '" + names[id] + "' has " + cardinality + " entries, usage count is "
+                    + snapshot.getTagUsageCount(names[id]));
+            }
+        }
+    }
+
+    private void report(String kind, List<String> examples) {
+        if (examples.isEmpty()) {
+            return;
+        }
+        problems.add(examples.size() + " " + kind + ": "
+            + String.join(", ", examples.subList(0, Math.min(MAX_EXAMPLES, examples.size())))
+            + (examples.size() > MAX_EXAMPLES ? ", ..." : ""));
+    }
+}
@@ -0,0 +1,87 @@
+package com.weakviord.filetagger.service;
+
+import java.util.*;
+
+/**
+ * 标签名与紧凑整数 id 的双向映射。删除标签后 id 会被复用，始终优先分配最小的空闲 id，
+ * 让常见情况下所有 id 都落在 TagBits 的第一个 long 内。
+ */
+final class TagDictionary {
+    private String[] names = new String[64];
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final BitSet used = new BitSet();
+
+    // 已发布的快照共享字典，写操作先复制一份再修改
+    TagDictionary copy() {
+        TagDictionary copy = new TagDictionary();
+        copy.names = names.clone();
+        copy.ids.putAll(ids);
+        copy.used.or(used);
+        return copy;
+    }
+
+    int idOf(String name) {
+        Integer id = ids.get(name);
+        return id == null ? -1 : id;
+    }
+
+    String nameOf(int id) {
+        return id < names.length ? names[id] : null;
+    }
+
+    int getOrAdd(String name) {
+        Integer existing = ids.get(name);
+        if (existing != null) {
+            return existing;
+        }
+        int id = used.nextClearBit(0);
+        if (id >= names.length) {
+            names = Arrays.copyOf(names, Math.max(names.length * 2, id + 1));
+        }
+        names[id] = name;
+        used.set(id);
+        ids.put(name, id);
+        return id;
+    }
+
+    // 重命名只修改映射本身，文件上保存的 id 不变
+    boolean rename(String oldName, String newName) {
+        Integer id = ids.get(oldName);
+        if (id == null || ids.containsKey(newName)) {
+            return false;
+        }
+        ids.remove(oldName);
+        ids.put(newName, id);
+        names[id] = newName;
+        return true;
+    }
+
+    // 调用方需先从所有文件上清除该 id，再释放它
+    int remove(String name) {
+        Integer id = ids.remove(name);
+        if (id == null) {
+            return -1;
+        }
+        names[id] = null;
+        used.clear(id);
+        return id;
+    }
+
+    // 当前可能出现的最大 id + 1
+    int capacity() {
+        return used.length();
+    }
+
+    // 按 id 索引的名称副本，供后台线程使用
+    String[] nameTable() {
+        return Arrays.copyOf(names, capacity());
+    }
+
+    TagBits encode(Collection<String> tagNames) {
+        TagBits bits = TagBits.EMPTY;
+        for (String name : tagNames) {
+            bits = bits.with(getOrAdd(name));
+        }
+        return bits;
+    }
+}
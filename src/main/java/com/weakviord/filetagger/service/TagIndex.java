@@ -0,0 +1,278 @@
+package com.weakviord.filetagger.service;
+
+import java.util.BitSet;
+import java.util.LinkedHashSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.ObjIntConsumer;
+import java.util.function.UnaryOperator;
+
+/**
+ * 文件标签的不可变视图：可选的内存映射快照作为只读底层，前缀树作为可修改的上层。
+ * 底层条目只有在被修改、移动或删除时才复制到上层，并在 shadow 中记下，查询时以上层为准。
+ */
+final class TagIndex {
+    static final TagIndex EMPTY = new TagIndex(null, PathTrie.EMPTY, PathTrie.EMPTY);
+
+    // shadow 中只记录路径，标签值没有意义
+    private static final TagBits SHADOW_MARK = TagBits.of(0);
+
+    private final MappedTagSnapshot base;
+    private final PathTrie overlay;
+    // 已被上层覆盖的底层路径
+    private final PathTrie shadow;
+
+    private TagIndex(MappedTagSnapshot base, PathTrie overlay, PathTrie shadow) {
+        this.base = base;
+        this.overlay = overlay;
+        this.shadow = shadow;
+    }
+
+    static TagIndex of(PathTrie trie) {
+        return new TagIndex(null, trie, PathTrie.EMPTY);
+    }
+
+    static TagIndex of(MappedTagSnapshot base) {
+        return new TagIndex(base, PathTrie.EMPTY, PathTrie.EMPTY);
+    }
+
+    private boolean inBase(String path) {
+        return base != null && shadow.get(path) == null && base.get(path) != null;
+    }
+
+    int size() {
+        return overlay.size() + (base == null ? 0 : base.size() - shadow.size());
+    }
+
+    TagBits get(String path) {
+        if (base == null || shadow.get(path) != null) {
+            return overlay.get(path);
+        }
+        TagBits tags = overlay.get(path);
+        return tags != null ? tags : base.get(path);
+    }
+
+    int countUnder(String path) {
+        int count = overlay.countUnder(path);
+        if (base != null) {
+            count += base.countUnder(path) - shadow.countUnder(path);
+        }
+        return count;
+    }
+
+    // 使用计数按标签组合汇总；底层直接用快照中的组合计数，不扫描条目
+    void forEachTagGroup(BiConsumer<TagBits, Integer> consumer) {
+        overlay.forEach((path, tags) -> consumer.accept(tags, 1));
+        if (base != null) {
+            base.forEachCombo(consumer);
+            shadow.forEach((path, mark) -> consumer.accept(base.get(path), -1));
+        }
+    }
+
+    void forEachUnder(String path, BiConsumer<String, TagBits> consumer) {
+        overlay.forEachUnder(path, consumer);
+        if (base != null) {
+            base.forEachUnder(path, visibleOnly(consumer));
+        }
+    }
+
+    void forEach(BiConsumer<String, TagBits> consumer) {
+        overlay.forEach(consumer);
+        if (base != null) {
+            base.forEach(visibleOnly(consumer));
+        }
+    }
+
+    void forEachContainingAll(TagBits required, BiConsumer<String, TagBits> consumer) {
+        overlay.forEachContainingAll(required, consumer);
+        if (base != null) {
+            base.forEachContainingAll(required, visibleOnly(consumer));
+        }
+    }
+
+    private BiConsumer<String, TagBits> visibleOnly(BiConsumer<String, TagBits> consumer) {
+        if (shadow.size() == 0) {
+            return consumer;
+        }
+        return (path, tags) -> {
+            if (shadow.get(path) == null) {
+                consumer.accept(path, tags);
+            }
+        };
+    }
+
+    // 按稠密 id 递增的顺序遍历可见条目。上层条目按前缀树中的顺序编号，底层条目编号为上层大小加行号；
+    // 被覆盖的底层行跳过，对应的 id 空着
+    void forEachEntryId(ObjIntConsumer<TagBits> consumer) {
+        int[] next = {0};
+        overlay.forEachTags(tags -> consumer.accept(tags, next[0]++));
+        if (base == null) {
+            return;
+        }
+        BitSet hidden = new BitSet();
+        shadow.forEach((path, mark) -> {
+            int row = base.indexOf(path);
+            if (row >= 0) {
+                hidden.set(row);
+            }
+        });
+        int offset = overlay.size();
+        for (int row = 0; row < base.size(); row++) {
+            if (!hidden.get(row)) {
+                consumer.accept(base.tagsAt(row), offset + row);
+            }
+        }
+    }
+
+    String pathOf(int id) {
+        int overlaySize = overlay.size();
+        return id < overlaySize ? overlay.pathAt(id) : base.pathAt(id - overlaySize);
+    }
+
+    // pathOf 的逆运算，编号规则与 forEachEntryId 一致；不可见的路径返回 -1
+    int rankOf(String path) {
+        int rank = overlay.rankOf(path);
+        if (rank >= 0 || base == null || shadow.get(path) != null) {
+            return rank;
+        }
+        int row = base.indexOf(path);
+        return row < 0 ? -1 : overlay.size() + row;
+    }
+
+    // forEachEntryId 给出的 id 都小于这个值
+    int idLimit() {
+        return overlay.size() + (base == null ? 0 : base.size());
+    }
+
+    /**
+     * 列出与 older 相比标签确实变化的路径，只比较两边上层和 shadow 中不同的部分。
+     * 底层快照不同（例如重新加载过）时无法增量比较，返回 false，由调用方整体重建。
+     */
+    boolean forEachChangedPath(TagIndex older, Consumer<String> consumer) {
+        if (older.base != base) {
+            return false;
+        }
+        Set<String> candidates = new LinkedHashSet<>();
+        overlay.forEachChangedPath(older.overlay, candidates::add);
+        shadow.forEachChangedPath(older.shadow, candidates::add);
+        for (String path : candidates) {
+            if (!Objects.equals(older.get(path), get(path))) {
+                consumer.accept(path);
+            }
+        }
+        return true;
+    }
+
+    // 空集合表示移除该路径
+    TagIndex put(String path, TagBits tags) {
+        PathTrie newShadow = inBase(path) ? shadow.put(path, SHADOW_MARK) : shadow;
+        return new TagIndex(base, overlay.put(path, tags), newShadow);
+    }
+
+    // 批量并入，见 PathTrie.putAll；底层中已有的同名条目先复制到上层，再由 combiner 与新标签合并
+    TagIndex putAll(PathTrie entries, BinaryOperator<TagBits> combiner) {
+        PathTrie[] layers = {overlay, shadow};
+        if (base != null) {
+            entries.forEach((path, tags) -> {
+                TagBits baseTags = layers[1].get(path) == null ? base.get(path) : null;
+                if (baseTags != null) {
+                    layers[1] = layers[1].put(path, SHADOW_MARK);
+                    if (layers[0].get(path) == null) {
+                        layers[0] = layers[0].put(path, baseTags);
+                    }
+                }
+            });
+        }
+        return new TagIndex(base, layers[0].putAll(entries, combiner), layers[1]);
+    }
+
+    TagIndex removeSubtree(String path) {
+        return pullUnder(path, false).withOverlay(overlay -> overlay.removeSubtree(path));
+    }
+
+    // 目标位置已有的底层条目也先复制上来，由前缀树负责合并
+    TagIndex move(String oldPath, String newPath) {
+        return pullUnder(oldPath, true).pullUnder(newPath, true)
+            .withOverlay(overlay -> overlay.move(oldPath, newPath));
+    }
+
+    private TagIndex withOverlay(UnaryOperator<PathTrie> operator) {
+        return new TagIndex(base, operator.apply(overlay), shadow);
+    }
+
+    // 把 path 下仍可见的底层条目标记为已覆盖；keep 为 true 时同时复制到上层
+    private TagIndex pullUnder(String path, boolean keep) {
+        if (base == null || base.countUnder(path) == 0) {
+            return this;
+        }
+        PathTrie[] layers = {overlay, shadow};
+        base.forEachUnder(path, (basePath, tags) -> {
+            if (layers[1].get(basePath) == null) {
+                layers[1] = layers[1].put(basePath, SHADOW_MARK);
+                if (keep) {
+                    layers[0] = layers[0].put(basePath, tags);
+                }
+            }
+        });
+        return new TagIndex(base, layers[0], layers[1]);
+    }
+
+    // 先遍历上层再遍历底层中未被覆盖的条目
+    Cursor cursor(TagBits required) {
+        return new Cursor(this, required);
+    }
+
+    static final class Cursor {
+        private final TagIndex index;
+        private final TagBits required;
+        private final PathTrie.Cursor overlayCursor;
+        private int baseIndex = -1;
+        private String path;
+        private TagBits tags;
+
+        private Cursor(TagIndex index, TagBits required) {
+            this.index = index;
+            this.required = required;
+            this.overlayCursor = index.overlay.cursor(required);
+        }
+
+        boolean next() {
+            if (baseIndex < 0) {
+                if (overlayCursor.next()) {
+                    path = overlayCursor.path();
+                    tags = overlayCursor.tags();
+                    return true;
+                }
+                baseIndex = 0;
+            }
+            MappedTagSnapshot base = index.base;
+            while (base != null && baseIndex < base.size()) {
+                int current = baseIndex++;
+                TagBits baseTags = base.tagsAt(current);
+                if (!baseTags.containsAll(required)) {
+                    continue;
+                }
+                String basePath = base.pathAt(current);
+                if (index.shadow.get(basePath) == null) {
+                    path = basePath;
+                    tags = baseTags;
+                    return true;
+                }
+            }
+            path = null;
+            tags = null;
+            return false;
+        }
+
+        String path() {
+            return path;
+        }
+
+        TagBits tags() {
+            return tags;
+        }
+    }
+}
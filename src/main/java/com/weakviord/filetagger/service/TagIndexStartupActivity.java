@@ -0,0 +1,17 @@
+package com.weakviord.filetagger.service;
+
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.startup.StartupActivity;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * 项目打开后在可取消的后台任务中构建标签索引，打开项目的耗时不随带标签的文件数增长；
+ * 同时安排一次内容标签的同步，在平台索引完成后执行。
+ */
+public final class TagIndexStartupActivity implements StartupActivity.DumbAware {
+    @Override
+    public void runActivity(@NotNull Project project) {
+        project.getService(TagStorageService.class).scheduleIndexBuild();
+        project.getService(ContentTagSynchronizer.class).scheduleFullSync();
+    }
+}
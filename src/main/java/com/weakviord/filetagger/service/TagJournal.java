@@ -0,0 +1,370 @@
+package com.weakviord.filetagger.service;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.util.concurrency.SequentialTaskExecutor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * 文件标签的追加式日志：每次修改只追加一行记录，超过阈值后在后台压缩为内存映射快照（见 MappedTagSnapshot）。
+ * 每行格式为 "crc32\t操作\t字段..."，加载时遇到不完整或校验失败的记录就截断到最后一条完整记录。
+ * 快照和日志按代编号：第 N 代的日志只包含第 N 代快照之后的修改，压缩时写出 N+1 代快照并开始新日志。
+ */
+final class TagJournal {
+    private static final Logger LOG = Logger.getInstance(TagJournal.class);
+
+    static final char ADD_TAG = 'A';
+    static final char RENAME_TAG = 'R';
+    static final char DELETE_TAG = 'D';
+    // 设置文件的完整标签集合，没有标签字段表示移除
+    static final char SET_FILE = 'F';
+    static final char MOVE = 'M';
+    // 移除路径及其子树
+    static final char REMOVE = 'X';
+
+    private static final Pattern FILE_NAME = Pattern.compile("fileTagger\\.(\\d+)\\.(journal|snapshot)");
+    // 日志超过这个大小后压缩
+    private static final long COMPACT_THRESHOLD = 4L * 1024 * 1024;
+
+    record Record(char op, String[] fields) {
+    }
+
+    private final Path directory;
+    // 追加和压缩都在同一个顺序执行器上，保证写入顺序
+    private final ExecutorService executor = SequentialTaskExecutor.createSequentialApplicationPoolExecutor("FileTagger Journal");
+    private final AtomicLong journalSize = new AtomicLong();
+    private final AtomicBoolean compactionPending = new AtomicBoolean();
+    // 以下字段只在加载时和执行器线程上访问
+    private long generation;
+    private OutputStream out;
+
+    TagJournal(Path directory) {
+        this.directory = directory;
+    }
+
+    private Path journalFile(long gen) {
+        return directory.resolve("fileTagger." + gen + ".journal");
+    }
+
+    private Path snapshotFile(long gen) {
+        return directory.resolve("fileTagger." + gen + ".snapshot");
+    }
+
+    // 按代编号从大到小列出已有的快照，以及出现过的最大代号
+    private List<Long> listGenerations(boolean snapshotsOnly) throws IOException {
+        List<Long> generations = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return generations;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "fileTagger.*")) {
+            for (Path file : stream) {
+                Matcher matcher = FILE_NAME.matcher(file.getFileName().toString());
+                if (matcher.matches() && (!snapshotsOnly || matcher.group(2).equals("snapshot"))) {
+                    generations.add(Long.parseLong(matcher.group(1)));
+                }
+            }
+        }
+        generations.sort(Comparator.reverseOrder());
+        return generations;
+    }
+
+    boolean exists() {
+        try {
+            return !listGenerations(false).isEmpty();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 映射最新的完整快照并回放同一代的日志，截掉日志末尾损坏的部分，再清理旧代的文件。
+     * 最新的快照无法读取时抛出 IOException，此时不删除任何文件。
+     * 快照中的标签名通过 tagIds 注册到调用方的字典。
+     */
+    void load(ToIntFunction<String> tagIds, Consumer<MappedTagSnapshot> onSnapshot,
+              Consumer<Record> onRecord) throws IOException {
+        generation = 0;
+        List<Long> snapshots = listGenerations(true);
+        if (!snapshots.isEmpty()) {
+            // 最新的快照读不出来时不退回更旧的一代，否则之后的修改会丢失，旧代的文件也会被清理掉
+            generation = snapshots.get(0);
+            onSnapshot.accept(MappedTagSnapshot.open(snapshotFile(generation), tagIds));
+        }
+        Path journalFile = journalFile(generation);
+        if (Files.exists(journalFile)) {
+            byte[] data = Files.readAllBytes(journalFile);
+            int valid = readRecords(data, 0, onRecord);
+            if (valid != data.length) {
+                LOG.warn("Truncating torn tag journal record at offset " + valid + " in " + journalFile);
+                try (FileChannel channel = FileChannel.open(journalFile, StandardOpenOption.WRITE)) {
+                    channel.truncate(valid);
+                }
+            }
+            journalSize.set(valid);
+        }
+        deleteOtherGenerations(generation);
+    }
+
+    // 被映射的旧快照在某些系统上无法删除，留到下次加载时再清理
+    private void deleteOtherGenerations(long keep) {
+        try {
+            for (long gen : listGenerations(false)) {
+                if (gen != keep) {
+                    Files.deleteIfExists(journalFile(gen));
+                    Files.deleteIfExists(snapshotFile(gen));
+                }
+            }
+        } catch (IOException e) {
+            LOG.debug("Failed to delete old tag snapshot files", e);
+        }
+    }
+
+    // 返回最后一条完整记录之后的偏移量
+    private static int readRecords(byte[] data, int offset, Consumer<Record> consumer) {
+        while (offset < data.length) {
+            int end = indexOf(data, offset);
+            if (end < 0) {
+                return offset;
+            }
+            Record record = decode(new String(data, offset, end - offset, StandardCharsets.UTF_8));
+            if (record == null) {
+                return offset;
+            }
+            consumer.accept(record);
+            offset = end + 1;
+        }
+        return offset;
+    }
+
+    private static int indexOf(byte[] data, int from) {
+        for (int i = from; i < data.length; i++) {
+            if (data[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    void append(char op, String... fields) {
+        appendAll(List.of(encode(op, fields)));
+    }
+
+    // 一次操作产生的多条记录作为一次写入
+    void appendAll(List<String> lines) {
+        if (lines.isEmpty()) {
+            return;
+        }
+        StringBuilder builder = new StringBuilder();
+        for (String line : lines) {
+            builder.append(line).append('\n');
+        }
+        byte[] bytes = builder.toString().getBytes(StandardCharsets.UTF_8);
+        journalSize.addAndGet(bytes.length);
+        executor.execute(() -> {
+            try {
+                if (out == null) {
+                    Files.createDirectories(directory);
+                    out = Files.newOutputStream(journalFile(generation), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                }
+                out.write(bytes);
+                out.flush();
+            } catch (IOException e) {
+                LOG.warn("Failed to append to tag journal in " + directory, e);
+            }
+        });
+    }
+
+    // 已提交的、属于当前一代的日志字节数，包括还在排队的写入
+    long size() {
+        return journalSize.get();
+    }
+
+    boolean needsCompaction() {
+        return journalSize.get() > COMPACT_THRESHOLD && !compactionPending.get();
+    }
+
+    // index 是不可变快照，names 是调用时字典的副本；之后追加的记录排在压缩任务之后，写入新一代日志
+    void compact(TagIndex index, String[] names) {
+        if (!compactionPending.compareAndSet(false, true)) {
+            return;
+        }
+        long covered = journalSize.get();
+        executor.execute(() -> {
+            try {
+                writeSnapshotLogged(index, names, covered);
+            } finally {
+                compactionPending.set(false);
+            }
+        });
+    }
+
+    // 批量导入后用完整数据开始新一代，不逐条记录；已在排队的压缩不影响它，它排在其后执行。
+    // 要在修改数据的锁内调用，保证之后的追加排在它后面；返回的 Future 交给 await 在锁外等待写完
+    Future<?> rewrite(TagIndex index, String[] names) {
+        long covered = journalSize.get();
+        return executor.submit(() -> {
+            writeSnapshot(index, names, covered);
+            return null;
+        });
+    }
+
+    /**
+     * 开启日志时用当前数据开始一份新的日志，写完快照后才返回。目录中可能留有以前开启时的文件，
+     * 新快照的代号排在它们之后，写完后旧文件全部删除，不会被回放或追加。
+     */
+    void start(TagIndex index, String[] names) throws IOException {
+        long covered = journalSize.get();
+        await(executor.submit(() -> {
+            List<Long> existing = listGenerations(false);
+            generation = existing.isEmpty() ? 0 : existing.get(0);
+            writeSnapshot(index, names, covered);
+            return null;
+        }));
+    }
+
+    // 等待提交的快照写完，写入失败时抛出原来的 IOException
+    static void await(Future<?> write) throws IOException {
+        try {
+            write.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing the tag snapshot", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+        }
+    }
+
+    private void writeSnapshotLogged(TagIndex index, String[] names, long covered) {
+        try {
+            writeSnapshot(index, names, covered);
+        } catch (IOException e) {
+            LOG.warn("Failed to compact tag journal in " + directory, e);
+        }
+    }
+
+    // covered 是提交任务时已计入的日志大小，即快照已经包含的记录；之后提交的追加写入新一代，仍然计入
+    private void writeSnapshot(TagIndex index, String[] names, long covered) throws IOException {
+        long newGeneration = generation + 1;
+        Files.createDirectories(directory);
+        Path tempFile = directory.resolve("fileTagger.snapshot.tmp");
+        MappedTagSnapshot.write(tempFile, index, names);
+        Files.move(tempFile, snapshotFile(newGeneration), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+        generation = newGeneration;
+        journalSize.addAndGet(-covered);
+        deleteOtherGenerations(newGeneration);
+    }
+
+    // 等待已提交的写入完成，关闭项目时调用
+    void close() {
+        try {
+            executor.submit(() -> {
+                if (out != null) {
+                    out.close();
+                    out = null;
+                }
+                return null;
+            }).get(5, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            LOG.warn("Failed to flush tag journal in " + directory, e);
+        }
+    }
+
+    static String encode(char op, String... fields) {
+        StringBuilder payload = new StringBuilder().append(op);
+        for (String field : fields) {
+            payload.append('\t');
+            escape(field, payload);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload.toString().getBytes(StandardCharsets.UTF_8));
+        return String.format("%08x", crc.getValue()) + '\t' + payload;
+    }
+
+    // 校验失败或格式不对时返回 null
+    private static Record decode(String line) {
+        int separator = line.indexOf('\t');
+        if (separator != 8 || line.length() < 10) {
+            return null;
+        }
+        String payload = line.substring(separator + 1);
+        CRC32 crc = new CRC32();
+        crc.update(payload.getBytes(StandardCharsets.UTF_8));
+        try {
+            if (Long.parseLong(line.substring(0, separator), 16) != crc.getValue()) {
+                return null;
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        String[] parts = payload.split("\t", -1);
+        if (parts[0].length() != 1) {
+            return null;
+        }
+        String[] fields = new String[parts.length - 1];
+        for (int i = 1; i < parts.length; i++) {
+            fields[i - 1] = unescape(parts[i]);
+        }
+        return new Record(parts[0].charAt(0), fields);
+    }
+
+    private static void escape(String value, StringBuilder builder) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\' -> builder.append("\\\\");
+                case '\t' -> builder.append("\\t");
+                case '\n' -> builder.append("\\n");
+                case '\r' -> builder.append("\\r");
+                default -> builder.append(c);
+            }
+        }
+    }
+
+    private static String unescape(String value) {
+        if (value.indexOf('\\') < 0) {
+            return value;
+        }
+        StringBuilder builder = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                builder.append(switch (next) {
+                    case 't' -> '\t';
+                    case 'n' -> '\n';
+                    case 'r' -> '\r';
+                    default -> next;
+                });
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+}
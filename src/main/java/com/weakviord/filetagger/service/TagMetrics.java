@@ -0,0 +1,143 @@
+package com.weakviord.filetagger.service;
+
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.project.Project;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 插件热点路径的耗时统计。记录只是几次 LongAdder 累加，不分配对象，可以放在装饰、刷新等频繁调用的地方；
+ * 汇总文本在诊断工具窗口中查看，或按需写入日志。
+ */
+@Service(Service.Level.PROJECT)
+public final class TagMetrics {
+    public enum Metric {
+        DECORATE("decorate"),
+        REFRESH("view refresh"),
+        VFS_BATCH("VFS batch"),
+        SAVE("getState"),
+        LOAD("loadState"),
+        INDEX_BUILD("index build"),
+        ACTION_UPDATE("action update");
+
+        final String label;
+
+        Metric(String label) {
+            this.label = label;
+        }
+    }
+
+    // 第 i 个桶统计 [2^(i-1), 2^i) 微秒的耗时，第 0 个桶为不足 1 微秒
+    private static final int BUCKETS = 24;
+
+    private static final class Timer {
+        final LongAdder count = new LongAdder();
+        final LongAdder totalNanos = new LongAdder();
+        final AtomicLong maxNanos = new AtomicLong();
+        final LongAdder[] buckets = new LongAdder[BUCKETS];
+
+        Timer() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos) {
+            count.increment();
+            totalNanos.add(nanos);
+            long max = maxNanos.get();
+            while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+                max = maxNanos.get();
+            }
+            int bucket = 64 - Long.numberOfLeadingZeros(nanos / 1000);
+            buckets[Math.min(bucket, BUCKETS - 1)].increment();
+        }
+
+        // 返回该分位所在桶的上界（微秒）
+        long percentileMicros(long total, double quantile) {
+            long threshold = (long) Math.ceil(total * quantile);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets[i].sum();
+                if (seen >= threshold) {
+                    return 1L << i;
+                }
+            }
+            return 1L << (BUCKETS - 1);
+        }
+
+        void reset() {
+            count.reset();
+            totalNanos.reset();
+            maxNanos.set(0);
+            for (LongAdder bucket : buckets) {
+                bucket.reset();
+            }
+        }
+    }
+
+    private final Project project;
+    private final Timer[] timers = new Timer[Metric.values().length];
+    private final LongAdder fullRefreshes = new LongAdder();
+    private final LongAdder refreshedNodes = new LongAdder();
+    private volatile long since = System.currentTimeMillis();
+
+    public TagMetrics(Project project) {
+        this.project = project;
+        for (int i = 0; i < timers.length; i++) {
+            timers[i] = new Timer();
+        }
+    }
+
+    // startNanos 为 System.nanoTime() 在操作开始时的值
+    public void record(Metric metric, long startNanos) {
+        timers[metric.ordinal()].record(System.nanoTime() - startNanos);
+    }
+
+    public void recordRefresh(boolean full, int nodeCount) {
+        if (full) {
+            fullRefreshes.increment();
+        } else {
+            refreshedNodes.add(nodeCount);
+        }
+    }
+
+    public void reset() {
+        for (Timer timer : timers) {
+            timer.reset();
+        }
+        fullRefreshes.reset();
+        refreshedNodes.reset();
+        since = System.currentTimeMillis();
+    }
+
+    public String dump() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("File Tagger metrics since ")
+            .append(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date(since))).append('\n');
+        for (Metric metric : Metric.values()) {
+            Timer timer = timers[metric.ordinal()];
+            long count = timer.count.sum();
+            builder.append(String.format("  %-15s count=%d", metric.label, count));
+            if (count > 0) {
+                builder.append(String.format(" mean=%.1fus p50<=%dus p99<=%dus max=%.1fus",
+                    timer.totalNanos.sum() / 1000.0 / count,
+                    timer.percentileMicros(count, 0.5),
+                    timer.percentileMicros(count, 0.99),
+                    timer.maxNanos.get() / 1000.0));
+            }
+            builder.append('\n');
+        }
+        builder.append("  full refreshes=").append(fullRefreshes.sum())
+            .append(", targeted node updates=").append(refreshedNodes.sum()).append('\n');
+
+        TagSnapshot snapshot = project.getService(TagStorageService.class).getSnapshot();
+        builder.append("Index: ").append(snapshot.index.size()).append(" tagged entries, ")
+            .append(snapshot.tags.size()).append(" tags, modification #")
+            .append(snapshot.modificationCount).append('\n');
+        return builder.toString();
+    }
+}
@@ -0,0 +1,59 @@
+package com.weakviord.filetagger.service;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * 把 TagBits 按标签名呈现的只读视图，不复制任何数据。
+ */
+final class TagNameSet extends AbstractSet<String> {
+    private final TagBits bits;
+    private final TagDictionary dictionary;
+
+    TagNameSet(TagBits bits, TagDictionary dictionary) {
+        this.bits = bits;
+        this.dictionary = dictionary;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (!(o instanceof String name)) {
+            return false;
+        }
+        int id = dictionary.idOf(name);
+        return id >= 0 && bits.contains(id);
+    }
+
+    @Override
+    public int size() {
+        return bits.cardinality();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return bits.isEmpty();
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        return new Iterator<>() {
+            private int next = bits.nextSetBit(0);
+
+            @Override
+            public boolean hasNext() {
+                return next >= 0;
+            }
+
+            @Override
+            public String next() {
+                if (next < 0) {
+                    throw new NoSuchElementException();
+                }
+                String name = dictionary.nameOf(next);
+                next = bits.nextSetBit(next + 1);
+                return name;
+            }
+        };
+    }
+}
@@ -0,0 +1,198 @@
+package com.weakviord.filetagger.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 某个 TagIndex 的按标签倒排表，文件以稳定的 id 表示，需要路径时再按 id 解析。
+ * 与 TagIndex 一样不可变。TagSnapshot 在第一次查询时整体构建，之后每次修改由 advance 只处理变化的路径得到新的倒排表，
+ * 没有变化的位图块在前后两个倒排表之间共享。
+ */
+final class TagPostings {
+    // 变化的路径超过这个比例时整体重建比逐个更新快
+    private static final int MAX_CHANGED_DIVISOR = 16;
+    private static final int MIN_CHANGED_LIMIT = 4096;
+
+    private final TagIndex index;
+    private final PathIds ids;
+    // 按字典 id 索引，没有文件使用的标签为 null
+    private final PostingBitmap[] byTag;
+    // 所有可见条目，用于求补集
+    private final PostingBitmap all;
+
+    private TagPostings(TagIndex index, PathIds ids, PostingBitmap[] byTag, PostingBitmap all) {
+        this.index = index;
+        this.ids = ids;
+        this.byTag = byTag;
+        this.all = all;
+    }
+
+    /**
+     * 路径到 id 的映射，在一串由 advance 得到的倒排表之间共享。整体构建时的条目以它们在 ranks 中的位置为 id，
+     * 不需要额外的表；之后新出现的路径追加编号，记在 added 中。同一路径的 id 不变，删除的路径不回收编号，
+     * 追加的路径过多时 advance 放弃增量更新，下一次查询整体重建。
+     */
+    private static final class PathIds {
+        private final TagIndex ranks;
+        private final int rankLimit;
+        // 只在持有自身的锁时访问
+        private final Map<String, Integer> added = new HashMap<>();
+        private final List<String> addedPaths = new ArrayList<>();
+
+        PathIds(TagIndex ranks) {
+            this.ranks = ranks;
+            this.rankLimit = ranks.idLimit();
+        }
+
+        // create 为 false 时，没有编号的路径返回 -1
+        int idOf(String path, boolean create) {
+            int rank = ranks.rankOf(path);
+            if (rank >= 0) {
+                return rank;
+            }
+            synchronized (this) {
+                Integer id = added.get(path);
+                if (id == null && create) {
+                    id = rankLimit + addedPaths.size();
+                    added.put(path, id);
+                    addedPaths.add(path);
+                }
+                return id == null ? -1 : id;
+            }
+        }
+
+        String pathOf(int id) {
+            if (id < rankLimit) {
+                return ranks.pathOf(id);
+            }
+            synchronized (this) {
+                return addedPaths.get(id - rankLimit);
+            }
+        }
+
+        synchronized int addedCount() {
+            return addedPaths.size();
+        }
+    }
+
+    static TagPostings build(TagIndex index) {
+        PostingBitmap.Builder[][] builders = {new PostingBitmap.Builder[64]};
+        PostingBitmap.Builder allBuilder = new PostingBitmap.Builder();
+        index.forEachEntryId((tags, id) -> {
+            allBuilder.add(id);
+            tags.forEach(tagId -> {
+                if (tagId >= builders[0].length) {
+                    builders[0] = Arrays.copyOf(builders[0], Math.max(builders[0].length * 2, tagId + 1));
+                }
+                PostingBitmap.Builder builder = builders[0][tagId];
+                if (builder == null) {
+                    builder = builders[0][tagId] = new PostingBitmap.Builder();
+                }
+                builder.add(id);
+            });
+        });
+        PostingBitmap[] byTag = new PostingBitmap[builders[0].length];
+        for (int i = 0; i < byTag.length; i++) {
+            if (builders[0][i] != null) {
+                byTag[i] = builders[0][i].build();
+            }
+        }
+        return new TagPostings(index, new PathIds(index), byTag, allBuilder.build());
+    }
+
+    /**
+     * 得到 newer 的倒排表，只更新与本倒排表的索引相比标签变化的路径，耗时与变化量相关。
+     * 底层快照不同、变化的路径太多或追加的编号过多时返回 null，由调用方在下一次查询时整体构建。
+     */
+    TagPostings advance(TagIndex newer) {
+        if (newer == index) {
+            return this;
+        }
+        int limit = Math.max(MIN_CHANGED_LIMIT, newer.size() / MAX_CHANGED_DIVISOR);
+        List<String> changed = new ArrayList<>();
+        boolean[] tooMany = {false};
+        if (!newer.forEachChangedPath(index, path -> {
+            if (changed.size() < limit) {
+                changed.add(path);
+            } else {
+                tooMany[0] = true;
+            }
+        }) || tooMany[0] || ids.addedCount() + changed.size() > limit) {
+            return null;
+        }
+        Map<Integer, IdList> added = new HashMap<>();
+        Map<Integer, IdList> removed = new HashMap<>();
+        IdList addedAll = new IdList();
+        IdList removedAll = new IdList();
+        for (String path : changed) {
+            TagBits oldTags = index.get(path);
+            TagBits newTags = newer.get(path);
+            int id = ids.idOf(path, newTags != null);
+            if (id < 0) {
+                continue;
+            }
+            TagBits before = oldTags == null ? TagBits.EMPTY : oldTags;
+            TagBits after = newTags == null ? TagBits.EMPTY : newTags;
+            before.andNot(after).forEach(tagId -> removed.computeIfAbsent(tagId, key -> new IdList()).add(id));
+            after.andNot(before).forEach(tagId -> added.computeIfAbsent(tagId, key -> new IdList()).add(id));
+            if (oldTags == null && newTags != null) {
+                addedAll.add(id);
+            } else if (oldTags != null && newTags == null) {
+                removedAll.add(id);
+            }
+        }
+        int maxTag = byTag.length - 1;
+        for (int tagId : added.keySet()) {
+            maxTag = Math.max(maxTag, tagId);
+        }
+        PostingBitmap[] newByTag = Arrays.copyOf(byTag, maxTag + 1);
+        removed.forEach((tagId, list) -> newByTag[tagId] = get(tagId).andNot(list.toBitmap()));
+        added.forEach((tagId, list) -> newByTag[tagId] =
+            (newByTag[tagId] == null ? PostingBitmap.EMPTY : newByTag[tagId]).or(list.toBitmap()));
+        PostingBitmap newAll = all.andNot(removedAll.toBitmap()).or(addedAll.toBitmap());
+        return new TagPostings(newer, ids, newByTag, newAll);
+    }
+
+    // 未排序、可能重复的 id，转成位图时再排序
+    private static final class IdList {
+        private int[] values = new int[4];
+        private int size;
+
+        void add(int id) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = id;
+        }
+
+        PostingBitmap toBitmap() {
+            if (size == 0) {
+                return PostingBitmap.EMPTY;
+            }
+            int[] sorted = Arrays.copyOf(values, size);
+            Arrays.sort(sorted);
+            PostingBitmap.Builder builder = new PostingBitmap.Builder();
+            for (int i = 0; i < sorted.length; i++) {
+                if (i == 0 || sorted[i] != sorted[i - 1]) {
+                    builder.add(sorted[i]);
+                }
+            }
+            return builder.build();
+        }
+    }
+
+    PostingBitmap get(int tagId) {
+        return tagId >= 0 && tagId < byTag.length && byTag[tagId] != null ? byTag[tagId] : PostingBitmap.EMPTY;
+    }
+
+    PostingBitmap all() {
+        return all;
+    }
+
+    String pathOf(int id) {
+        return ids.pathOf(id);
+    }
+}
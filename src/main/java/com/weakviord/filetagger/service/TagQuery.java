@@ -0,0 +1,276 @@
+package com.weakviord.filetagger.service;
+
+import java.util.*;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * 标签表达式，例如 {@code hot-path AND needs-review AND NOT deprecated}。
+ * 支持 AND / OR / NOT（不区分大小写，也可写作 & | !）和括号，相邻的两个条件默认为 AND；
+ * 含空格或与关键字同名的标签用双引号括起来。求值时对按标签的倒排位图做交、并、差，不扫描文件。
+ * <p>
+ * 倒排表按快照缓存。每个文件有稳定的 id，修改之后的第一次查询只把变化的路径从上一个倒排表中增删，
+ * 耗时与修改量相关；只有重新加载、一次改动大量路径或新编号累积过多时才从全部条目重新构建（见 TagPostings）。
+ */
+public final class TagQuery {
+    private sealed interface Node permits Tag, Not, And, Or {
+    }
+
+    private record Tag(String name) implements Node {
+    }
+
+    private record Not(Node operand) implements Node {
+    }
+
+    private record And(Node left, Node right) implements Node {
+    }
+
+    private record Or(Node left, Node right) implements Node {
+    }
+
+    private final String expression;
+    private final Node root;
+
+    private TagQuery(String expression, Node root) {
+        this.expression = expression;
+        this.root = root;
+    }
+
+    // 表达式有误时抛出 IllegalArgumentException，消息中带有出错位置
+    public static TagQuery parse(String expression) {
+        return new TagQuery(expression, new Parser(expression).parseAll());
+    }
+
+    public String getExpression() {
+        return expression;
+    }
+
+    // 在同一个快照上求值；倒排表按快照缓存，修改后第一次查询时由上一个倒排表增量得到
+    public Result evaluate(TagSnapshot snapshot) {
+        TagPostings postings = snapshot.postings();
+        return new Result(postings, evaluate(root, postings, snapshot.dictionary));
+    }
+
+    private static PostingBitmap evaluate(Node node, TagPostings postings, TagDictionary dictionary) {
+        if (node instanceof Tag tag) {
+            // 不存在的标签匹配不到任何文件
+            return postings.get(dictionary.idOf(tag.name()));
+        }
+        if (node instanceof Not not) {
+            return postings.all().andNot(evaluate(not.operand(), postings, dictionary));
+        }
+        if (node instanceof And and) {
+            // a AND NOT b 直接求差，不必先对 b 求补
+            if (and.right() instanceof Not not) {
+                return evaluate(and.left(), postings, dictionary).andNot(evaluate(not.operand(), postings, dictionary));
+            }
+            if (and.left() instanceof Not not) {
+                return evaluate(and.right(), postings, dictionary).andNot(evaluate(not.operand(), postings, dictionary));
+            }
+            PostingBitmap left = evaluate(and.left(), postings, dictionary);
+            return left.isEmpty() ? left : left.and(evaluate(and.right(), postings, dictionary));
+        }
+        Or or = (Or) node;
+        return evaluate(or.left(), postings, dictionary).or(evaluate(or.right(), postings, dictionary));
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+
+    /**
+     * 查询结果。只保存匹配文件的 id，路径在读取时才解析，可以按页读取或作为惰性流遍历。
+     * 结果按 id 排列，不保证按路径排序。
+     */
+    public static final class Result {
+        private final TagPostings postings;
+        private final PostingBitmap matches;
+
+        private Result(TagPostings postings, PostingBitmap matches) {
+            this.postings = postings;
+            this.matches = matches;
+        }
+
+        public int size() {
+            return matches.cardinality();
+        }
+
+        // 从第 from 个结果开始最多 count 个路径
+        public List<String> getPage(int from, int count) {
+            List<String> page = new ArrayList<>(Math.max(0, Math.min(count, size() - from)));
+            for (int id = matches.select(from); id >= 0 && page.size() < count; id = matches.nextSetBit(id + 1)) {
+                page.add(postings.pathOf(id));
+            }
+            return page;
+        }
+
+        public Stream<String> stream() {
+            PrimitiveIterator.OfInt ids = new PrimitiveIterator.OfInt() {
+                private int next = matches.nextSetBit(0);
+
+                @Override
+                public boolean hasNext() {
+                    return next >= 0;
+                }
+
+                @Override
+                public int nextInt() {
+                    if (next < 0) {
+                        throw new NoSuchElementException();
+                    }
+                    int current = next;
+                    next = matches.nextSetBit(current + 1);
+                    return current;
+                }
+            };
+            int characteristics = Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL;
+            return StreamSupport.intStream(Spliterators.spliterator(ids, size(), characteristics), false)
+                .mapToObj(postings::pathOf);
+        }
+    }
+
+    // 递归下降：or := and (OR and)*，and := not ([AND] not)*，not := NOT not | '(' or ')' | 标签
+    private static final class Parser {
+        private final String text;
+        private int position;
+
+        Parser(String text) {
+            this.text = text;
+        }
+
+        Node parseAll() {
+            skipSpaces();
+            if (position == text.length()) {
+                throw error("Empty tag expression");
+            }
+            Node node = parseOr();
+            if (position < text.length()) {
+                throw error("Unexpected '" + text.charAt(position) + "'");
+            }
+            return node;
+        }
+
+        private Node parseOr() {
+            Node node = parseAnd();
+            while (acceptOperator("OR", '|')) {
+                node = new Or(node, parseAnd());
+            }
+            return node;
+        }
+
+        private Node parseAnd() {
+            Node node = parseNot();
+            while (true) {
+                if (acceptOperator("AND", '&')) {
+                    node = new And(node, parseNot());
+                } else if (startsOperand()) {
+                    node = new And(node, parseNot());
+                } else {
+                    return node;
+                }
+            }
+        }
+
+        private Node parseNot() {
+            if (acceptOperator("NOT", '!')) {
+                return new Not(parseNot());
+            }
+            if (peek() == '(') {
+                position++;
+                skipSpaces();
+                Node node = parseOr();
+                if (peek() != ')') {
+                    throw error("Missing ')'");
+                }
+                position++;
+                skipSpaces();
+                return node;
+            }
+            if (!startsOperand()) {
+                throw error(position == text.length() ? "Missing tag name at end of expression" : "Expected a tag name");
+            }
+            return new Tag(readName());
+        }
+
+        // 后面是标签名、左括号或 NOT 时可以省略 AND
+        private boolean startsOperand() {
+            char c = peek();
+            if (c == 0 || c == ')' || c == '&' || c == '|') {
+                return false;
+            }
+            String word = peekWord();
+            return !word.equalsIgnoreCase("AND") && !word.equalsIgnoreCase("OR");
+        }
+
+        // 符号形式可以写一个或两个字符，例如 & 或 &&
+        private boolean acceptOperator(String keyword, char symbol) {
+            if (peek() == symbol) {
+                position++;
+                if (peek() == symbol) {
+                    position++;
+                }
+                skipSpaces();
+                return true;
+            }
+            if (peekWord().equalsIgnoreCase(keyword)) {
+                position += keyword.length();
+                skipSpaces();
+                return true;
+            }
+            return false;
+        }
+
+        private String readName() {
+            if (peek() != '"') {
+                String word = peekWord();
+                position += word.length();
+                skipSpaces();
+                return word;
+            }
+            StringBuilder name = new StringBuilder();
+            int start = position++;
+            while (position < text.length() && text.charAt(position) != '"') {
+                char c = text.charAt(position++);
+                if (c == '\\' && position < text.length()) {
+                    c = text.charAt(position++);
+                }
+                name.append(c);
+            }
+            if (position == text.length()) {
+                position = start;
+                throw error("Unterminated quoted tag name");
+            }
+            position++;
+            skipSpaces();
+            return name.toString();
+        }
+
+        // 未加引号的标签名到空白、括号或运算符为止
+        private String peekWord() {
+            int end = position;
+            while (end < text.length() && !isDelimiter(text.charAt(end))) {
+                end++;
+            }
+            return text.substring(position, end);
+        }
+
+        private static boolean isDelimiter(char c) {
+            return Character.isWhitespace(c) || c == '(' || c == ')' || c == '&' || c == '|' || c == '!' || c == '"';
+        }
+
+        private char peek() {
+            return position < text.length() ? text.charAt(position) : 0;
+        }
+
+        private void skipSpaces() {
+            while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+                position++;
+            }
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at position " + (position + 1));
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package com.weakviord.filetagger.service;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileWithId;
+
+import java.util.*;
+
+/**
+ * 按标签划分的文件集合，供搜索范围使用。成员以 VirtualFile id 存在位集合中，判断是否包含只需一次位运算；
+ * 标签数据变化后按两个快照的差异增量更新，只处理改动过的路径。目录带有该标签时，其下所有文件都算在内。
+ * 与标签查询一样基于 TagSnapshot.queryIndex，文件内容中标记的标签也算在内。
+ */
+@Service(Service.Level.PROJECT)
+public final class TagScopeIndex {
+    // 发布后不再修改，更新时先复制
+    private static final class Membership {
+        final BitSet fileIds;
+        boolean hasDirectories;
+
+        Membership(BitSet fileIds, boolean hasDirectories) {
+            this.fileIds = fileIds;
+            this.hasDirectories = hasDirectories;
+        }
+
+        Membership copy() {
+            return new Membership((BitSet) fileIds.clone(), hasDirectories);
+        }
+
+        void set(VirtualFile file, boolean member) {
+            if (file instanceof VirtualFileWithId withId) {
+                fileIds.set(withId.getId(), member);
+                hasDirectories |= member && file.isDirectory();
+            }
+        }
+
+        boolean contains(VirtualFile file) {
+            if (fileIds.get(((VirtualFileWithId) file).getId())) {
+                return true;
+            }
+            if (!hasDirectories) {
+                return false;
+            }
+            for (VirtualFile parent = file.getParent(); parent != null; parent = parent.getParent()) {
+                if (parent instanceof VirtualFileWithId withId && fileIds.get(withId.getId())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    // 只为用到过的标签维护集合，键为字典 id
+    private record State(TagSnapshot snapshot, Map<Integer, Membership> byTag) {
+    }
+
+    private final Project project;
+    private final Object lock = new Object();
+    private volatile State state = new State(TagSnapshot.EMPTY, Collections.emptyMap());
+
+    public TagScopeIndex(Project project) {
+        this.project = project;
+    }
+
+    public boolean contains(String tagName, VirtualFile file) {
+        if (!(file instanceof VirtualFileWithId)) {
+            return false;
+        }
+        State current = sync();
+        int tagId = current.snapshot.dictionary.idOf(tagName);
+        if (tagId < 0) {
+            return false;
+        }
+        Membership membership = current.byTag.get(tagId);
+        if (membership == null) {
+            membership = track(tagId);
+        }
+        return membership.contains(file);
+    }
+
+    // 在后台提前建好这些标签的集合，第一次搜索时不必等待
+    public void prepare(Collection<String> tagNames) {
+        List<String> names = new ArrayList<>(tagNames);
+        ApplicationManager.getApplication().executeOnPooledThread(() -> {
+            for (String name : names) {
+                if (project.isDisposed()) {
+                    return;
+                }
+                int tagId = sync().snapshot.dictionary.idOf(name);
+                if (tagId >= 0) {
+                    track(tagId);
+                }
+            }
+        });
+    }
+
+    private State sync() {
+        // 搜索在后台线程上进行，可以等待启动后的索引构建完成
+        TagSnapshot latest = project.getService(TagStorageService.class).getIndexedSnapshot();
+        State current = state;
+        if (current.snapshot.modificationCount >= latest.modificationCount) {
+            return current;
+        }
+        synchronized (lock) {
+            current = state;
+            if (current.snapshot.modificationCount < latest.modificationCount) {
+                current = advance(current, latest);
+                state = current;
+            }
+            return current;
+        }
+    }
+
+    private Membership track(int tagId) {
+        synchronized (lock) {
+            State current = state;
+            Membership membership = current.byTag.get(tagId);
+            if (membership == null) {
+                membership = build(current.snapshot, tagId);
+                Map<Integer, Membership> byTag = new HashMap<>(current.byTag);
+                byTag.put(tagId, membership);
+                state = new State(current.snapshot, byTag);
+            }
+            return membership;
+        }
+    }
+
+    private static State advance(State current, TagSnapshot latest) {
+        if (current.byTag.isEmpty()) {
+            return new State(latest, current.byTag);
+        }
+        // 合并了内容标签的索引：内容标签变化时，变化的文件同样出现在差异中
+        TagIndex before = current.snapshot.queryIndex();
+        TagIndex after = latest.queryIndex();
+        Map<Integer, Membership> byTag = new HashMap<>(current.byTag);
+        Set<Integer> copied = new HashSet<>();
+        boolean incremental = after.forEachChangedPath(before, path -> {
+            TagBits oldTags = before.get(path);
+            TagBits newTags = after.get(path);
+            VirtualFile file = null;
+            for (Map.Entry<Integer, Membership> entry : byTag.entrySet()) {
+                int tagId = entry.getKey();
+                boolean member = newTags != null && newTags.contains(tagId);
+                if (member == (oldTags != null && oldTags.contains(tagId))) {
+                    continue;
+                }
+                // 移动后旧路径上已经找不到文件，新路径会把同一个 id 重新加进来
+                if (file == null && (file = findFile(path)) == null) {
+                    return;
+                }
+                if (copied.add(tagId)) {
+                    entry.setValue(entry.getValue().copy());
+                }
+                entry.getValue().set(file, member);
+            }
+        });
+        if (!incremental) {
+            byTag.replaceAll((tagId, membership) -> build(latest, tagId));
+        }
+        return new State(latest, byTag);
+    }
+
+    private static Membership build(TagSnapshot snapshot, int tagId) {
+        Membership membership = new Membership(new BitSet(), false);
+        snapshot.queryIndex().forEachContainingAll(TagBits.of(tagId), (path, tags) -> {
+            VirtualFile file = findFile(path);
+            if (file != null) {
+                membership.set(file, true);
+            }
+        });
+        return membership;
+    }
+
+    private static VirtualFile findFile(String path) {
+        return LocalFileSystem.getInstance().findFileByPath(path);
+    }
+}
@@ -0,0 +1,287 @@
+package com.weakviord.filetagger.service;
+
+import com.intellij.openapi.vfs.VirtualFile;
+import com.weakviord.filetagger.service.TagStorageService.TagInfo;
+
+import java.util.*;
+
+/**
+ * 某一时刻全部标签数据的不可变快照。读操作不加锁，同一个快照内的标签名、颜色、计数和文件标签总是一致的，
+ * 不会看到执行到一半的重命名或删除。返回的 TagInfo 是共享实例，调用方不能修改。
+ */
+public final class TagSnapshot {
+    static final TagSnapshot EMPTY = new TagSnapshot(Collections.emptyMap(), new TagDictionary(), new int[0], TagIndex.EMPTY,
+        null, Collections.emptyMap(), AutoTagMatcher.EMPTY, 0);
+
+    final Map<String, TagInfo> tags;
+    // 发布后不再修改，写操作会先复制
+    final TagDictionary dictionary;
+    final int[] usageCounts;
+    final TagIndex index;
+    // 加载后、后台构建索引完成前为 XML 中读出的原始数据，此时 index 为空，文件标签暂时从这里查；构建完成后为 null
+    final Map<String, Set<String>> pendingFileTags;
+    // 文件内容中 @file-tag: 标记给出的标签，来自 ContentTagIndex，按路径保存，只在后台同步时整体替换
+    final Map<String, TagBits> contentTags;
+    final AutoTagMatcher autoTags;
+    final long modificationCount;
+    // 以下三项第一次使用时才计算；并发时可能重复计算，结果相同，不需要加锁
+    private volatile TagPostings postings;
+    // 最近一个算过倒排表的祖先快照的倒排表，第一次查询时只按变化的路径推进；算出 postings 后清空
+    private volatile TagPostings previousPostings;
+    // 合并了内容标签的索引，没有内容标签时就是 index
+    private volatile TagIndex queryIndex;
+    // 只来自内容标签（没有手动打上）的使用次数
+    private volatile int[] contentOnlyCounts;
+
+    private TagSnapshot(Map<String, TagInfo> tags, TagDictionary dictionary, int[] usageCounts, TagIndex index,
+                        Map<String, Set<String>> pendingFileTags, Map<String, TagBits> contentTags, AutoTagMatcher autoTags,
+                        long modificationCount) {
+        this.tags = tags;
+        this.dictionary = dictionary;
+        this.usageCounts = usageCounts;
+        this.index = index;
+        this.pendingFileTags = pendingFileTags;
+        this.contentTags = contentTags;
+        this.autoTags = autoTags;
+        this.modificationCount = modificationCount;
+    }
+
+    // 修改后的第一次查询从 previousPostings 增量推进，无法推进时完整重建
+    TagPostings postings() {
+        TagPostings result = postings;
+        if (result == null) {
+            TagPostings previous = previousPostings;
+            result = previous != null ? previous.advance(queryIndex()) : null;
+            if (result == null) {
+                result = TagPostings.build(queryIndex());
+            }
+            postings = result;
+            previousPostings = null;
+        }
+        return result;
+    }
+
+    // 查询使用的索引：手动标签加上内容标签。内容标签的条目很少，逐个合并进持久化索引的副本
+    TagIndex queryIndex() {
+        TagIndex result = queryIndex;
+        if (result == null) {
+            result = index;
+            for (Map.Entry<String, TagBits> entry : contentTags.entrySet()) {
+                TagBits explicitBits = result.get(entry.getKey());
+                result = result.put(entry.getKey(), explicitBits == null ? entry.getValue() : explicitBits.or(entry.getValue()));
+            }
+            queryIndex = result;
+        }
+        return result;
+    }
+
+    private int[] contentOnlyCounts() {
+        int[] result = contentOnlyCounts;
+        if (result == null) {
+            int[] counts = new int[Math.max(64, dictionary.capacity())];
+            for (Map.Entry<String, TagBits> entry : contentTags.entrySet()) {
+                TagBits explicitBits = index.get(entry.getKey());
+                TagBits bits = explicitBits == null ? entry.getValue() : entry.getValue().andNot(explicitBits);
+                bits.forEach(id -> {
+                    if (id < counts.length) {
+                        counts[id]++;
+                    }
+                });
+            }
+            result = counts;
+            contentOnlyCounts = result;
+        }
+        return result;
+    }
+
+    public long getModificationCount() {
+        return modificationCount;
+    }
+
+    // 索引未建好时只有单个文件的标签可用，计数、目录摘要和查询的结果为空
+    public boolean isIndexed() {
+        return pendingFileTags == null;
+    }
+
+    public Collection<TagInfo> getAllTags() {
+        return tags.values();
+    }
+
+    public TagInfo getTagInfo(String tagName) {
+        return tags.get(tagName);
+    }
+
+    // 手动标签和内容标签的文件数，同一个文件两者都有时只算一次
+    public int getTagUsageCount(String tagName) {
+        int id = dictionary.idOf(tagName);
+        if (id < 0) {
+            return 0;
+        }
+        int count = id < usageCounts.length ? usageCounts[id] : 0;
+        if (!contentTags.isEmpty()) {
+            int[] contentCounts = contentOnlyCounts();
+            count += id < contentCounts.length ? contentCounts[id] : 0;
+        }
+        return count;
+    }
+
+    public Set<String> getFileTags(VirtualFile file) {
+        return getFileTags(file.getPath());
+    }
+
+    // 按标签名呈现的只读视图，不复制数据
+    public Set<String> getFileTags(String path) {
+        TagBits bits = index.get(path);
+        if (bits == null && pendingFileTags != null) {
+            Set<String> tagNames = pendingFileTags.get(path);
+            return tagNames == null ? Collections.emptySet() : Collections.unmodifiableSet(tagNames);
+        }
+        return bits == null ? Collections.emptySet() : new TagNameSet(bits, dictionary);
+    }
+
+    public boolean hasContentTags() {
+        return !contentTags.isEmpty();
+    }
+
+    // 文件内容中的 @file-tag: 标记给出的标签，与手动打上的标签可能重叠；内容在后台索引，这里不读文件
+    public Set<String> getContentTags(String path) {
+        TagBits bits = contentTags.get(path);
+        return bits == null ? Collections.emptySet() : new TagNameSet(bits, dictionary);
+    }
+
+    public boolean hasAutoTagRules() {
+        return !autoTags.isEmpty();
+    }
+
+    // 由自动标签规则得到的标签，不在索引中，也不计入使用次数和查询；与手动打上的标签可能重叠
+    public Set<String> getRuleTags(String path) {
+        return autoTags.match(path);
+    }
+
+    public int getTaggedFileCountUnder(String path) {
+        return index.countUnder(path);
+    }
+
+    // 目录下（不含目录本身）带标签的条目数。前缀树每个节点都保存了子树计数，修改时随路径复制一起更新，
+    // 映射快照中则是一段连续区间的长度，两者都不需要遍历条目
+    public int getTaggedDescendantCount(String directoryPath) {
+        int count = index.countUnder(directoryPath);
+        return count > 0 && index.get(directoryPath) != null ? count - 1 : count;
+    }
+
+    Builder edit() {
+        return new Builder(this);
+    }
+
+    /**
+     * 在一个快照基础上做修改；各部分在第一次写入时才复制，没有改到的部分与原快照共享。
+     */
+    static final class Builder {
+        private final TagSnapshot base;
+        private Map<String, TagInfo> tags;
+        private TagDictionary dictionary;
+        private int[] usageCounts;
+        TagIndex index;
+        Map<String, Set<String>> pendingFileTags;
+        Map<String, TagBits> contentTags;
+        AutoTagMatcher autoTags;
+
+        private Builder(TagSnapshot base) {
+            this.base = base;
+            this.index = base.index;
+            this.pendingFileTags = base.pendingFileTags;
+            this.contentTags = base.contentTags;
+            this.autoTags = base.autoTags;
+        }
+
+        Map<String, TagInfo> tags() {
+            return tags != null ? tags : base.tags;
+        }
+
+        Map<String, TagInfo> mutableTags() {
+            if (tags == null) {
+                tags = new HashMap<>(base.tags);
+            }
+            return tags;
+        }
+
+        TagDictionary dictionary() {
+            return dictionary != null ? dictionary : base.dictionary;
+        }
+
+        TagDictionary mutableDictionary() {
+            if (dictionary == null) {
+                dictionary = base.dictionary.copy();
+            }
+            return dictionary;
+        }
+
+        // 用于加载时整体替换，传入的字典不能与其他快照共享
+        void replaceDictionary(TagDictionary newDictionary) {
+            dictionary = newDictionary;
+        }
+
+        void resetUsageCounts() {
+            usageCounts = new int[Math.max(64, dictionary().capacity())];
+        }
+
+        void countTags(TagBits bits, int delta) {
+            if (usageCounts == null) {
+                usageCounts = base.usageCounts.clone();
+            }
+            bits.forEach(id -> {
+                if (id >= usageCounts.length) {
+                    usageCounts = Arrays.copyOf(usageCounts, Math.max(usageCounts.length * 2, Math.max(64, id + 1)));
+                }
+                usageCounts[id] += delta;
+            });
+        }
+
+        // 空集合表示移除该路径
+        void putFileTags(String path, TagBits bits) {
+            TagBits oldBits = index.get(path);
+            if (oldBits != null) {
+                countTags(oldBits, -1);
+            }
+            index = index.put(path, bits);
+            countTags(bits, 1);
+        }
+
+        TagBits encodeExisting(Collection<String> tagNames) {
+            TagDictionary current = dictionary();
+            TagBits bits = TagBits.EMPTY;
+            for (String name : tagNames) {
+                int id = current.idOf(name);
+                if (id >= 0) {
+                    bits = bits.with(id);
+                }
+            }
+            return bits;
+        }
+
+        TagSnapshot build() {
+            TagSnapshot snapshot = new TagSnapshot(
+                tags != null ? Collections.unmodifiableMap(tags) : base.tags,
+                dictionary(),
+                usageCounts != null ? usageCounts : base.usageCounts,
+                index,
+                pendingFileTags,
+                contentTags,
+                autoTags,
+                base.modificationCount + 1);
+            // 只改了颜色或标签名时文件数据没变，倒排表可以沿用
+            if (index == base.index && contentTags == base.contentTags) {
+                snapshot.postings = base.postings;
+                snapshot.queryIndex = base.queryIndex;
+                snapshot.contentOnlyCounts = base.contentOnlyCounts;
+            }
+            if (snapshot.postings == null) {
+                // 先读 previousPostings：postings() 先写 postings 再清空它，两者不会都读到 null
+                TagPostings previous = base.previousPostings;
+                TagPostings current = base.postings;
+                snapshot.previousPostings = current != null ? current : previous;
+            }
+            return snapshot;
+        }
+    }
+}
@@ -1,99 +1,549 @@
 package com.weakviord.filetagger.service;
 
+import com.intellij.configurationStore.StoreUtil;
+import com.intellij.notification.NotificationGroupManager;
+import com.intellij.notification.NotificationType;
 import com.intellij.openapi.components.*;
+import com.intellij.openapi.util.ModificationTracker;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.Task;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.startup.StartupManager;
+import com.intellij.openapi.vfs.LocalFileSystem;
 import com.intellij.openapi.vfs.VirtualFile;
-import com.intellij.ide.projectView.ProjectView;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import com.intellij.util.xmlb.annotations.Transient;
-import com.intellij.openapi.vfs.VirtualFileListener;
 import com.intellij.openapi.vfs.VirtualFileManager;
-import com.intellij.openapi.vfs.VirtualFileMoveEvent;
+import com.intellij.openapi.vfs.newvfs.BulkFileListener;
+import com.intellij.openapi.vfs.newvfs.events.VFileDeleteEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileMoveEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFilePropertyChangeEvent;
 import com.intellij.util.messages.MessageBusConnection;
 import com.intellij.openapi.Disposable;
-import com.intellij.openapi.vfs.VirtualFileEvent;
-import com.intellij.openapi.vfs.VirtualFilePropertyEvent;
+import com.intellij.openapi.application.ApplicationManager;
+
+import com.intellij.openapi.diagnostic.Logger;
 
 import java.awt.Color;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
 
 @Service(Service.Level.PROJECT)
 @State(
     name = "FileTaggerSettings",
     storages = {@Storage("fileTagger.xml")}
 )
-public final class TagStorageService implements PersistentStateComponent<TagStorageService.State>, Disposable {
+public final class TagStorageService implements PersistentStateComponentWithModificationTracker<TagStorageService.State>, ModificationTracker, Disposable {
+    private static final Logger LOG = Logger.getInstance(TagStorageService.class);
+    // 超过这个事件数的 VFS 批次之后，安排一次后台失效条目检查
+    private static final int LARGE_VFS_BATCH = 1000;
+
     private State myState = new State();
+    // 读操作只访问这个不可变快照，不加锁；写操作在 writeLock 下串行执行，构造新快照后整体替换
+    private volatile TagSnapshot snapshot = TagSnapshot.EMPTY;
+    private final Object writeLock = new Object();
+    // 已提交、尚未发送的变化通知；deliveryLock 保证按入队顺序逐个发送
+    private final Queue<TagChangeEvent> pendingEvents = new ConcurrentLinkedQueue<>();
+    private final Object deliveryLock = new Object();
+    // 日志存储模式下非空，文件标签不再写入 XML
+    private TagJournal journal;
+    // 索引构建完成前收到的移动、重命名和删除，按收到的顺序排队；由 writeLock 保护
+    private final List<PathChange> deferredPathChanges = new ArrayList<>();
+    // 索引构建完成前在 EDT 上发起的修改，构建完成后按顺序执行，见 deferOnEdt；由 deferredLock 保护
+    private final Object deferredLock = new Object();
+    private final List<Runnable> deferredEdits = new ArrayList<>();
+    private @Nullable Thread deferredEditRunner;
+    // 日志加载失败时非空。日志文件保持原样，不能再开启日志覆盖它们；期间的修改写入 XML，下次加载时叠加在日志之上
+    private @Nullable IOException journalLoadError;
     private final Project project;
     private final MessageBusConnection messageBusConnection;
 
     public TagStorageService(Project project) {
         this.project = project;
         this.messageBusConnection = project.getMessageBus().connect();
-        
-        VirtualFileManager.getInstance().addVirtualFileListener(new VirtualFileListener() {
+        // 一次 VFS 批次（例如 git checkout）只做一次索引更新和一次刷新
+        messageBusConnection.subscribe(VirtualFileManager.VFS_CHANGES, new BulkFileListener() {
+            private List<PathChange> pendingChanges = Collections.emptyList();
+            // before 中花费的时间，与 after 合并记为一次批次处理
+            private long collectNanos;
+
             @Override
-            public void beforePropertyChange(@NotNull VirtualFilePropertyEvent event) {
-                if (VirtualFile.PROP_NAME.equals(event.getPropertyName())) {
-                    VirtualFile file = event.getFile();
-                    String oldPath = file.getParent().getPath() + "/" + event.getOldValue();
-                    String newPath = file.getParent().getPath() + "/" + event.getNewValue();
-                    
-                    if (file.isDirectory()) {
-                        handleDirectoryPathChange(oldPath, newPath);
-                    } else {
-                        handleFileMove(oldPath, newPath);
-                    }
-                }
+            public void before(@NotNull List<? extends VFileEvent> events) {
+                long start = System.nanoTime();
+                // 删除事件之后文件已失效，路径需要在 before 中算好。这里不等待索引构建，见 applyPathChanges
+                pendingChanges = collectPathChanges(events);
+                collectNanos = System.nanoTime() - start;
             }
 
             @Override
-            public void beforeFileMovement(@NotNull VirtualFileMoveEvent event) {
-                VirtualFile file = event.getFile();
-                String oldPath = event.getOldParent().getPath() + "/" + file.getName();
-                String newPath = event.getNewParent().getPath() + "/" + file.getName();
-                
-                if (file.isDirectory()) {
-                    handleDirectoryPathChange(oldPath, newPath);
-                } else {
-                    handleFileMove(oldPath, newPath);
-                }
-            }
-        }, project);
-    }
-
-    private void handleDirectoryPathChange(String oldDirPath, String newDirPath) {
-        Map<String, Set<String>> updatedMap = new HashMap<>();
-        
-        for (Map.Entry<String, Set<String>> entry : myState.fileTagsMap.entrySet()) {
-            String filePath = entry.getKey();
-            Set<String> tags = entry.getValue();
-            
-            if (filePath.startsWith(oldDirPath + "/")) {
-                String newFilePath = newDirPath + filePath.substring(oldDirPath.length());
-                updatedMap.put(newFilePath, new HashSet<>(tags));
+            public void after(@NotNull List<? extends VFileEvent> events) {
+                long start = System.nanoTime();
+                List<PathChange> changes = pendingChanges;
+                pendingChanges = Collections.emptyList();
+                if (!changes.isEmpty()) {
+                    applyPathChanges(changes);
+                }
+                if (events.size() >= LARGE_VFS_BATCH) {
+                    getStaleTagSweeper().scheduleFullSweep();
+                }
+                getMetrics().record(TagMetrics.Metric.VFS_BATCH, start - collectNanos);
+            }
+        });
+    }
+
+    // newPath 为 null 表示删除
+    private record PathChange(VirtualFile file, String oldPath, @Nullable String newPath) {
+    }
+
+    // 只收集移动、重命名和删除；是否涉及带标签的路径在应用时按顺序判断，同一批次中先移动再改名的路径也能找到
+    private List<PathChange> collectPathChanges(List<? extends VFileEvent> events) {
+        List<PathChange> changes = null;
+        for (VFileEvent event : events) {
+            PathChange change = null;
+            if (event instanceof VFileMoveEvent moveEvent) {
+                change = new PathChange(moveEvent.getFile(), moveEvent.getOldPath(), moveEvent.getNewPath());
+            } else if (event instanceof VFilePropertyChangeEvent propertyEvent && propertyEvent.isRename()) {
+                change = new PathChange(propertyEvent.getFile(), propertyEvent.getOldPath(), propertyEvent.getNewPath());
+            } else if (event instanceof VFileDeleteEvent deleteEvent) {
+                change = new PathChange(deleteEvent.getFile(), deleteEvent.getPath(), null);
+            }
+            if (change != null) {
+                if (changes == null) {
+                    changes = new ArrayList<>();
+                }
+                changes.add(change);
+            }
+        }
+        return changes == null ? Collections.emptyList() : changes;
+    }
+
+    // 整个批次作为一次修改提交，随后只发送一次变化通知。
+    // 启动后的索引构建还没完成时不在 VFS 线程上等待，先排队，由 buildPendingIndex 在完整的索引上应用
+    private void applyPathChanges(List<PathChange> changes) {
+        TagChangeEvent.Builder events = new TagChangeEvent.Builder();
+        List<String> deletedPaths = new ArrayList<>();
+        synchronized (writeLock) {
+            if (!snapshot.isIndexed()) {
+                deferredPathChanges.addAll(changes);
+                return;
+            }
+            TagSnapshot.Builder builder = snapshot.edit();
+            List<String> records = applyPathChanges(builder, changes, events, deletedPaths);
+            if (!records.isEmpty()) {
+                publish(builder, events);
+                journalAll(records);
+            }
+        }
+        deliverChanges();
+        if (!deletedPaths.isEmpty()) {
+            getStaleTagSweeper().markMissing(deletedPaths);
+        }
+    }
+
+    // 调用方需持有 writeLock。按顺序应用到 builder 上，返回日志记录；宽限期内的删除只加入 deletedPaths，不修改数据
+    private List<String> applyPathChanges(TagSnapshot.Builder builder, List<PathChange> changes,
+                                          TagChangeEvent.Builder events, List<String> deletedPaths) {
+        boolean keepDeleted = getStaleGraceMillis() > 0;
+        List<String> records = new ArrayList<>();
+        for (PathChange change : changes) {
+            // 大部分事件与带标签的路径无关，只做一次路径查找就跳过
+            if (builder.index.countUnder(change.oldPath()) == 0) {
+                continue;
+            }
+            if (change.newPath() == null && keepDeleted) {
+                // 宽限期内保留条目，文件重新出现（如切换分支）时标签仍在，过期后由后台清理
+                deletedPaths.add(change.oldPath());
+            } else if (change.newPath() == null) {
+                // 删除文件或目录时，先扣除子树内所有条目的使用计数
+                builder.index.forEachUnder(change.oldPath(), (path, tags) -> builder.countTags(tags, -1));
+                builder.index = builder.index.removeSubtree(change.oldPath());
+                records.add(TagJournal.encode(TagJournal.REMOVE, change.oldPath()));
+                events.pathRemoved(change.oldPath());
             } else {
-                updatedMap.put(filePath, tags);
+                // 目标位置可能还留着宽限期内未清理的条目，移动后那里只应有移过来的内容：
+                // 先扣除它们的计数并移除，移过来的条目计数不变
+                String newPath = change.newPath();
+                if (!change.oldPath().startsWith(newPath + "/") && builder.index.countUnder(newPath) > 0) {
+                    builder.index.forEachUnder(newPath, (path, tags) -> builder.countTags(tags, -1));
+                    builder.index = builder.index.removeSubtree(newPath);
+                    records.add(TagJournal.encode(TagJournal.REMOVE, newPath));
+                    events.pathRemoved(newPath);
+                }
+                builder.index = builder.index.move(change.oldPath(), change.newPath());
+                records.add(TagJournal.encode(TagJournal.MOVE, change.oldPath(), change.newPath()));
+                events.pathRemapped(change.oldPath(), change.newPath());
+            }
+        }
+        return records;
+    }
+
+    // 移除已确认不存在的路径及其子树，返回实际移除的条目数。stale 在持有 writeLock 时再次确认，
+    // 检查之后重新出现或重新打上标签的路径不会被移除
+    int purgePaths(Collection<String> paths, Predicate<String> stale) {
+        int[] purged = {0};
+        synchronized (writeLock) {
+            TagSnapshot.Builder builder = edit();
+            TagChangeEvent.Builder events = new TagChangeEvent.Builder();
+            List<String> records = new ArrayList<>();
+            for (String path : paths) {
+                if (builder.index.countUnder(path) == 0 || !stale.test(path)) {
+                    continue;
+                }
+                records.add(TagJournal.encode(TagJournal.REMOVE, path));
+                int before = purged[0];
+                builder.index.forEachUnder(path, (taggedPath, tags) -> {
+                    builder.countTags(tags, -1);
+                    purged[0]++;
+                });
+                if (purged[0] > before) {
+                    events.pathRemoved(path);
+                }
+                builder.index = builder.index.removeSubtree(path);
+            }
+            if (purged[0] > 0) {
+                publish(builder, events);
+                journalAll(records);
+            }
+        }
+        deliverChanges();
+        return purged[0];
+    }
+
+    // 调用方需持有 writeLock
+    private void publish(TagSnapshot.Builder builder) {
+        snapshot = builder.build();
+    }
+
+    // 调用方需持有 writeLock。事件在这里按提交顺序入队，释放锁之后由 deliverChanges 发送
+    private void publish(TagSnapshot.Builder builder, TagChangeEvent.Builder events) {
+        publish(builder);
+        if (!events.isEmpty()) {
+            pendingEvents.add(events.build(snapshot.modificationCount));
+        }
+    }
+
+    // 不能在持有 writeLock 时调用。监听器可能再次修改标签，新事件排在队尾，顺序不变
+    private void deliverChanges() {
+        synchronized (deliveryLock) {
+            TagChangeEvent event;
+            while ((event = pendingEvents.poll()) != null) {
+                if (project.isDisposed()) {
+                    pendingEvents.clear();
+                    return;
+                }
+                project.getMessageBus().syncPublisher(TagChangeListener.TOPIC).tagsChanged(event);
+            }
+        }
+    }
+
+    // 调用方需持有 writeLock。修改总是基于完整的索引，后台构建还没完成时先在当前线程完成；
+    // EDT 上的修改先经过 deferOnEdt，不会走到这里的构建
+    private TagSnapshot.Builder edit() {
+        if (!snapshot.isIndexed()) {
+            buildPendingIndex(null);
+            // 调用方可能不发布任何修改就返回，构建完成的通知不能等到下一次修改
+            ApplicationManager.getApplication().executeOnPooledThread(() -> {
+                deliverChanges();
+                runDeferredEdits();
+            });
+        }
+        return snapshot.edit();
+    }
+
+    // EDT 上的修改不等待索引构建，也不等待构建期间一直持有的 writeLock：构建完成前先排队并返回 true，
+    // 由构建完成后的 runDeferredEdits 在构建线程上执行。已有排队的修改时后来的修改也排在后面，保持顺序
+    private boolean deferOnEdt(Runnable edit) {
+        if (!ApplicationManager.getApplication().isDispatchThread()) {
+            return false;
+        }
+        boolean first;
+        synchronized (deferredLock) {
+            if (deferredEditRunner == Thread.currentThread() || snapshot.isIndexed() && deferredEdits.isEmpty()) {
+                return false;
+            }
+            first = deferredEdits.isEmpty();
+            deferredEdits.add(edit);
+        }
+        // 之前的后台构建可能已被取消；重复排队的构建发现索引已建好时只执行排队的修改
+        if (first && StartupManager.getInstance(project).postStartupActivityPassed()) {
+            scheduleIndexBuild();
+        }
+        return true;
+    }
+
+    // 索引构建完成后在不持有 writeLock 时调用。逐个执行后才出队，执行期间 EDT 上新的修改继续排在后面
+    private void runDeferredEdits() {
+        synchronized (deferredLock) {
+            if (deferredEditRunner != null || deferredEdits.isEmpty()) {
+                return;
+            }
+            deferredEditRunner = Thread.currentThread();
+        }
+        while (true) {
+            Runnable edit;
+            synchronized (deferredLock) {
+                if (deferredEdits.isEmpty()) {
+                    deferredEditRunner = null;
+                    return;
+                }
+                edit = deferredEdits.get(0);
+            }
+            try {
+                edit.run();
+            } catch (RuntimeException e) {
+                LOG.error("Deferred tag edit failed", e);
+            }
+            synchronized (deferredLock) {
+                deferredEdits.remove(0);
+            }
+        }
+    }
+
+    // 当前数据的不可变快照，可以在任意线程上读取，不需要加锁。项目刚打开时索引可能还在后台构建，
+    // 此时只能查到单个文件的标签
+    public TagSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    // 需要完整结果（查询、搜索范围、一致性检查）时使用；索引未建好时在当前线程构建，不要在 EDT 上调用
+    public TagSnapshot getIndexedSnapshot() {
+        ensureIndexed();
+        return snapshot;
+    }
+
+    private void ensureIndexed() {
+        if (!snapshot.isIndexed()) {
+            buildIndex(null);
+        }
+    }
+
+    // 后台任务取消后留到下一次修改或需要完整索引时再构建
+    private void buildIndex(@Nullable ProgressIndicator indicator) {
+        synchronized (writeLock) {
+            if (!snapshot.isIndexed()) {
+                buildPendingIndex(indicator);
+            }
+        }
+        deliverChanges();
+        if (snapshot.isIndexed()) {
+            runDeferredEdits();
+        }
+    }
+
+    // 加载的第二阶段：前缀树、日志回放和使用计数。完成后发布一次快照并通知一次整体变化，装饰从尽力而为切换到完整数据。
+    // 调用方需持有 writeLock
+    private void buildPendingIndex(@Nullable ProgressIndicator indicator) {
+        long start = System.nanoTime();
+        TagSnapshot.Builder builder = snapshot.edit();
+        TagDictionary dictionary = builder.mutableDictionary();
+        builder.index = TagIndex.of(PathTrie.build(builder.pendingFileTags, tagNames -> {
+            if (indicator != null) {
+                indicator.checkCanceled();
+            }
+            return dictionary.encode(tagNames);
+        }));
+        builder.pendingFileTags = null;
+        if (myState.useJournal) {
+            loadJournal(builder);
+        }
+        // 构建期间排队的 VFS 变化作用在完整的数据上；整体变化通知已经包含它们，使用计数随后重新计算
+        List<String> deletedPaths = new ArrayList<>();
+        List<String> records = applyPathChanges(builder, deferredPathChanges, new TagChangeEvent.Builder(), deletedPaths);
+        deferredPathChanges.clear();
+        recountUsage(builder);
+        publish(builder, new TagChangeEvent.Builder().reloaded());
+        journalAll(records);
+        if (!deletedPaths.isEmpty()) {
+            getStaleTagSweeper().markMissing(deletedPaths);
+        }
+        getMetrics().record(TagMetrics.Metric.INDEX_BUILD, start);
+    }
+
+    // 项目打开后由 TagIndexStartupActivity 调用；启动之后重新加载配置（例如在外部被修改）时由 loadState 调用
+    void scheduleIndexBuild() {
+        new Task.Backgroundable(project, "Indexing file tags", true) {
+            @Override
+            public void run(@NotNull ProgressIndicator indicator) {
+                buildIndex(indicator);
             }
+        }.queue();
+    }
+
+    // 把全部标签定义和文件标签逐行写出，格式见 TagTransfer；relativePaths 为 true 时项目目录下的路径写成相对路径。
+    // 遍历的是不可变快照，导出期间的修改不影响结果；应在后台线程调用
+    public void exportTags(Writer out, boolean relativePaths, @Nullable ProgressIndicator indicator) throws IOException {
+        TagTransfer.write(getIndexedSnapshot(), out, relativePaths ? project.getBasePath() : null, indicator);
+    }
+
+    // 先在锁外逐批解析和校验，全部读完后在一次修改中应用，只发布一次快照和一次整体变化通知。
+    // 读取期间可以取消，此时数据不变；sizeHint 为输入的字符数估计，用于显示进度。应在后台线程调用
+    public TagTransfer.ImportResult importTags(Reader in, long sizeHint, TagTransfer.ImportMode mode, boolean relativePaths,
+                                               @Nullable ProgressIndicator indicator) throws IOException {
+        long start = System.nanoTime();
+        TagTransfer.ImportResult result = TagTransfer.read(in, relativePaths ? project.getBasePath() : null, sizeHint, indicator);
+        if (indicator != null) {
+            indicator.checkCanceled();
+            indicator.setText2("Applying " + result.getImportedCount() + " entries");
+            indicator.setIndeterminate(true);
+        }
+        Future<?> snapshotWrite = null;
+        synchronized (writeLock) {
+            TagSnapshot.Builder builder = edit();
+            applyImport(builder, result, mode);
+            publish(builder, new TagChangeEvent.Builder().reloaded());
+            // 日志模式下不逐条记录，直接用完整数据开始新一代
+            if (journal != null) {
+                snapshotWrite = journal.rewrite(snapshot.index, snapshot.dictionary.nameTable());
+            }
+        }
+        deliverChanges();
+        if (snapshotWrite != null) {
+            // 导入结果只在快照中，写完才返回；失败时由调用方报告
+            TagJournal.await(snapshotWrite);
+            // 标签定义（新标签和颜色）只保存在 XML 中，不等自动保存，立即写出
+            StoreUtil.saveSettings(project, false);
         }
-        
-        myState.fileTagsMap = updatedMap;
-        ProjectView.getInstance(project).refresh();
+        LOG.info("Imported " + result.getImportedCount() + " tagged entries (" + mode + "), skipped "
+            + result.getSkippedCount() + " lines in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        return result;
     }
 
-    private void handleFileMove(String oldPath, String newPath) {
-        Set<String> tags = myState.fileTagsMap.get(oldPath);
-        if (tags != null && !tags.isEmpty()) {
-            myState.fileTagsMap.remove(oldPath);
-            myState.fileTagsMap.put(newPath, new HashSet<>(tags));
-            ProjectView.getInstance(project).refresh();
+    // 导入结果使用自己的字典：缺少的标签先创建，再把每组标签换成当前字典的 id。标签组合通常很少，按组合缓存
+    static void applyImport(TagSnapshot.Builder builder, TagTransfer.ImportResult result, TagTransfer.ImportMode mode) {
+        String[] importedNames = result.dictionary.nameTable();
+        int[] ids = new int[importedNames.length];
+        for (int i = 0; i < importedNames.length; i++) {
+            String name = importedNames[i];
+            if (name == null) {
+                continue;
+            }
+            Color color = result.colors.get(name);
+            TagInfo existing = builder.tags().get(name);
+            if (existing == null) {
+                TagInfo tagInfo = new TagInfo(name);
+                if (color != null) {
+                    tagInfo.setColor(color);
+                }
+                builder.mutableTags().put(name, tagInfo);
+            } else if (color != null && mode == TagTransfer.ImportMode.REPLACE) {
+                TagInfo tagInfo = existing.copy();
+                tagInfo.setColor(color);
+                builder.mutableTags().put(name, tagInfo);
+            }
+            ids[i] = builder.mutableDictionary().getOrAdd(name);
         }
+        Map<TagBits, TagBits> remapped = new HashMap<>();
+        PathTrie entries = result.entries.mapTags(bits -> remapped.computeIfAbsent(bits, importedBits -> {
+            TagBits[] mapped = {TagBits.EMPTY};
+            importedBits.forEach(id -> mapped[0] = mapped[0].with(ids[id]));
+            return mapped[0];
+        }));
+        builder.index = mode == TagTransfer.ImportMode.REPLACE
+            ? TagIndex.of(entries)
+            : builder.index.putAll(entries, TagBits::or);
+        recountUsage(builder);
+    }
+
+    // 返回发现的问题，空列表表示一致。会遍历全部条目并查询 VFS，应在后台线程调用；
+    // 不存在的路径在清理宽限期内是正常的，由 StaleTagSweeper 稍后处理
+    public List<String> verifyConsistency() {
+        LocalFileSystem fileSystem = LocalFileSystem.getInstance();
+        return TagConsistencyChecker.check(getIndexedSnapshot(), path -> fileSystem.findFileByPath(path) != null);
+    }
+
+    TagIndex getIndexSnapshot() {
+        return snapshot.index;
+    }
+
+    long getStaleGraceMillis() {
+        return TimeUnit.MINUTES.toMillis(Math.max(0, myState.staleGraceMinutes));
+    }
+
+    // 日志模式下追加记录；日志过大时在后台压缩成快照。调用方需持有 writeLock，保证记录顺序与修改顺序一致
+    private void journalAll(List<String> records) {
+        if (journal == null || records.isEmpty()) {
+            return;
+        }
+        journal.appendAll(records);
+        if (journal.needsCompaction()) {
+            TagSnapshot current = snapshot;
+            journal.compact(current.index, current.dictionary.nameTable());
+        }
+    }
+
+    private void journal(char op, String... fields) {
+        if (journal != null) {
+            journalAll(List.of(TagJournal.encode(op, fields)));
+        }
+    }
+
+    private @Nullable TagJournal createJournal() {
+        String basePath = project.getBasePath();
+        return basePath == null ? null : new TagJournal(Path.of(basePath, Project.DIRECTORY_STORE_FOLDER));
+    }
+
+    public boolean isJournalEnabled() {
+        return journal != null;
+    }
+
+    // 切换存储方式；开启时先把当前数据写成快照，关闭后下次保存重新写入完整的 XML
+    public boolean setJournalEnabled(boolean enabled) {
+        synchronized (writeLock) {
+            // 日志是否已打开要在索引建好（并回放日志）之后才能确定
+            TagSnapshot.Builder builder = edit();
+            if (enabled == (journal != null)) {
+                return true;
+            }
+            if (enabled) {
+                TagJournal newJournal = createJournal();
+                if (newJournal == null || journalLoadError != null) {
+                    return false;
+                }
+                // 快照写完才切换：切换后 XML 不再保存文件标签
+                TagSnapshot current = snapshot;
+                try {
+                    newJournal.start(current.index, current.dictionary.nameTable());
+                } catch (IOException e) {
+                    LOG.warn("Failed to create tag journal", e);
+                    return false;
+                }
+                journal = newJournal;
+            } else {
+                journal.close();
+                journal = null;
+            }
+            myState.useJournal = enabled;
+            publish(builder);
+            return true;
+        }
+    }
+
+    private StaleTagSweeper getStaleTagSweeper() {
+        return project.getService(StaleTagSweeper.class);
+    }
+
+    private TagMetrics getMetrics() {
+        return project.getService(TagMetrics.class);
     }
 
     @Override
     public void dispose() {
         messageBusConnection.disconnect();
+        synchronized (writeLock) {
+            if (journal != null) {
+                journal.close();
+            }
+        }
     }
 
     public static class TagInfo {
@@ -117,6 +567,19 @@ public final class TagStorageService implements PersistentStateComponent<TagStor
             this.colorHue = ((hash * 31 + System.nanoTime()) & 0xFFFF) / (float)0xFFFF;
         }
 
+        // 快照中的实例是共享的，修改前先复制
+        public TagInfo copy() {
+            TagInfo copy = new TagInfo();
+            copy.name = name;
+            copy.timestamp = timestamp;
+            copy.colorHue = colorHue;
+            copy.colorSaturation = colorSaturation;
+            copy.colorBrightness = colorBrightness;
+            copy.colorAlpha = colorAlpha;
+            copy.order = order;
+            return copy;
+        }
+
         @Transient
         public Color getColor() {
             Color hsbColor = Color.getHSBColor(colorHue, colorSaturation, colorBrightness);
@@ -135,111 +598,590 @@ public final class TagStorageService implements PersistentStateComponent<TagStor
         }
     }
 
+    // 自动标签规则：路径匹配 pattern（glob）的文件带有标签 tag
+    public static class AutoTagRule {
+        public String pattern;
+        public String tag;
+
+        // 用于序列化的无参构造函数
+        public AutoTagRule() {
+        }
+
+        public AutoTagRule(String pattern, String tag) {
+            this.pattern = pattern;
+            this.tag = tag;
+        }
+    }
+
     public static class State {
         public Map<String, TagInfo> availableTags = new HashMap<>();
         public Map<String, Set<String>> fileTagsMap = new HashMap<>();
+        // 已删除文件的标签保留多久，0 表示立即移除
+        public int staleGraceMinutes = 10;
+        // 文件标签保存在 .idea 下的追加式日志中，而不是每次完整写入 XML
+        public boolean useJournal = false;
+        public List<AutoTagRule> autoTagRules = new ArrayList<>();
     }
 
     @Override
     public @Nullable State getState() {
-        return myState;
+        long start = System.nanoTime();
+        // fileTagsMap 只在保存时从快照生成，不常驻内存
+        TagSnapshot current = snapshot;
+        State state = new State();
+        state.availableTags = new HashMap<>(current.tags);
+        state.staleGraceMinutes = myState.staleGraceMinutes;
+        state.useJournal = myState.useJournal;
+        state.autoTagRules = new ArrayList<>(current.autoTags.rules());
+        if (journal != null) {
+            // 日志模式下每次修改已经追加到日志，这里只保存标签定义
+            getMetrics().record(TagMetrics.Metric.SAVE, start);
+            return state;
+        }
+        state.fileTagsMap = toFileTagsMap(current);
+        getMetrics().record(TagMetrics.Metric.SAVE, start);
+        return state;
+    }
+
+    // 保存到 XML 时使用的按路径的标签名集合
+    static Map<String, Set<String>> toFileTagsMap(TagSnapshot snapshot) {
+        if (!snapshot.isIndexed()) {
+            return new HashMap<>(snapshot.pendingFileTags);
+        }
+        Map<String, Set<String>> fileTagsMap = new HashMap<>();
+        snapshot.index.forEach((path, tags) -> fileTagsMap.put(path, new HashSet<>(new TagNameSet(tags, snapshot.dictionary))));
+        return fileTagsMap;
+    }
+
+    @Override
+    public long getStateModificationCount() {
+        // 数据未变化时平台会跳过 getState 和序列化
+        return snapshot.modificationCount;
     }
 
+    // 加载的第一阶段，只替换标签定义并保留原始的文件标签，耗时与文件数无关；
+    // 索引在项目打开后由后台任务构建，见 buildPendingIndex
     @Override
     public void loadState(@NotNull State state) {
-        myState = state;
+        long start = System.nanoTime();
+        synchronized (writeLock) {
+            TagSnapshot.Builder builder = snapshot.edit();
+            applyTagDefinitions(builder, state);
+            builder.index = TagIndex.EMPTY;
+            builder.pendingFileTags = state.fileTagsMap;
+            builder.autoTags = AutoTagMatcher.compile(state.autoTagRules, project.getBasePath());
+            state.availableTags = new HashMap<>();
+            state.fileTagsMap = new HashMap<>();
+            state.autoTagRules = new ArrayList<>();
+            myState = state;
+            if (journal != null) {
+                journal.close();
+                journal = null;
+            }
+            journalLoadError = null;
+            recountUsage(builder);
+            publish(builder, new TagChangeEvent.Builder().reloaded());
+        }
+        deliverChanges();
+        getMetrics().record(TagMetrics.Metric.LOAD, start);
+        if (StartupManager.getInstance(project).postStartupActivityPassed()) {
+            scheduleIndexBuild();
+            project.getService(ContentTagSynchronizer.class).scheduleFullSync();
+        }
+    }
+
+    // 用 XML 中的标签定义和文件标签整体替换 builder 中的数据，不重新计算使用计数
+    static void applyXmlState(TagSnapshot.Builder builder, State state) {
+        applyTagDefinitions(builder, state);
+        builder.index = TagIndex.of(PathTrie.build(state.fileTagsMap, builder.mutableDictionary()::encode));
+        builder.pendingFileTags = null;
+    }
+
+    private static void applyTagDefinitions(TagSnapshot.Builder builder, State state) {
+        builder.mutableTags().clear();
+        builder.mutableTags().putAll(state.availableTags);
+        TagDictionary newDictionary = new TagDictionary();
+        for (String tag : state.availableTags.keySet()) {
+            newDictionary.getOrAdd(tag);
+        }
+        // 新字典只属于这个 builder，可以直接修改
+        builder.replaceDictionary(newDictionary);
+        // 内容标签按旧字典的 id 保存，清空后由 ContentTagSynchronizer 重新同步
+        builder.contentTags = Collections.emptyMap();
     }
 
+    static void recountUsage(TagSnapshot.Builder builder) {
+        builder.resetUsageCounts();
+        builder.index.forEachTagGroup(builder::countTags);
+    }
+
+    // 在 XML 中的数据之上回放快照和日志；第一次开启时把 XML 中的数据写成快照
+    private void loadJournal(TagSnapshot.Builder builder) {
+        TagJournal newJournal = createJournal();
+        if (newJournal == null) {
+            return;
+        }
+        if (newJournal.exists()) {
+            try {
+                replayJournal(builder, newJournal);
+            } catch (IOException e) {
+                // XML 中没有日志模式下的文件标签，不能当作数据已经加载，要让用户知道
+                journalLoadError = e;
+                LOG.warn("Failed to load tag journal", e);
+                NotificationGroupManager.getInstance().getNotificationGroup("File Tagger")
+                    .createNotification("File tags could not be loaded",
+                        "The tag journal in " + Project.DIRECTORY_STORE_FOLDER + " could not be read: " + e.getMessage()
+                            + ". Tags stored in it are not shown; the journal files are left unchanged.",
+                        NotificationType.ERROR)
+                    .notify(project);
+                return;
+            }
+        } else {
+            try {
+                newJournal.start(builder.index, builder.dictionary().nameTable());
+            } catch (IOException e) {
+                // XML 中还是完整数据，继续保存到 XML
+                LOG.warn("Failed to create tag journal, keeping file tags in fileTagger.xml", e);
+                return;
+            }
+        }
+        journal = newJournal;
+    }
+
+    // 在 builder 中已有的 XML 数据之上回放快照和日志，不重新计算使用计数
+    static void replayJournal(TagSnapshot.Builder builder, TagJournal journal) throws IOException {
+        journal.load(builder.mutableDictionary()::getOrAdd, mapped -> useSnapshot(builder, mapped), record -> replay(builder, record));
+    }
+
+    // 快照作为只读底层映射进来，XML 中残留的条目放在上层
+    private static void useSnapshot(TagSnapshot.Builder builder, MappedTagSnapshot mapped) {
+        for (String name : mapped.names()) {
+            if (!name.isEmpty() && !builder.tags().containsKey(name)) {
+                builder.mutableTags().put(name, new TagInfo(name));
+            }
+        }
+        TagIndex[] merged = {TagIndex.of(mapped)};
+        builder.index.forEach((path, tags) -> merged[0] = merged[0].put(path, tags));
+        builder.index = merged[0];
+    }
+
+    // 回放必须是幂等的：XML 可能已经包含了部分日志记录的效果
+    private static void replay(TagSnapshot.Builder builder, TagJournal.Record record) {
+        String[] fields = record.fields();
+        switch (record.op()) {
+            case TagJournal.ADD_TAG -> {
+                if (!builder.tags().containsKey(fields[0])) {
+                    builder.mutableTags().put(fields[0], new TagInfo(fields[0]));
+                }
+                builder.mutableDictionary().getOrAdd(fields[0]);
+            }
+            case TagJournal.RENAME_TAG -> {
+                // XML 在改名之后保存过时，旧名字会从快照或更早的记录中重新出现，此时把旧 id 的文件并到新名字上
+                if (builder.tags().containsKey(fields[0])) {
+                    if (builder.tags().containsKey(fields[1])) {
+                        mergeRenamedTag(builder, fields[0], fields[1]);
+                    } else {
+                        applyRenameTag(builder, fields[0], fields[1]);
+                    }
+                }
+            }
+            case TagJournal.DELETE_TAG -> {
+                if (builder.tags().containsKey(fields[0])) {
+                    applyDeleteTag(builder, fields[0]);
+                }
+            }
+            case TagJournal.SET_FILE -> builder.index = builder.index.put(fields[0],
+                builder.encodeExisting(Arrays.asList(fields).subList(1, fields.length)));
+            case TagJournal.MOVE -> builder.index = builder.index.move(fields[0], fields[1]);
+            case TagJournal.REMOVE -> builder.index = builder.index.removeSubtree(fields[0]);
+            default -> LOG.warn("Unknown tag journal record: " + record.op());
+        }
+    }
+
+    @Override
+    public long getModificationCount() {
+        return snapshot.modificationCount;
+    }
+
+    private static List<String> collectFilesWithAll(TagIndex index, TagBits required) {
+        List<String> paths = new ArrayList<>();
+        index.forEachContainingAll(required, (path, tags) -> paths.add(path));
+        return paths;
+    }
+
+    // 返回副本，调用方可以随意修改
     public List<TagInfo> getAllTags() {
-        return new ArrayList<>(myState.availableTags.values());
+        List<TagInfo> result = new ArrayList<>();
+        for (TagInfo tagInfo : snapshot.tags.values()) {
+            result.add(tagInfo.copy());
+        }
+        return result;
     }
 
     public int getTagUsageCount(String tagName) {
-        int count = 0;
-        for (Set<String> fileTags : myState.fileTagsMap.values()) {
-            if (fileTags.contains(tagName)) {
-                count++;
-            }
+        return snapshot.getTagUsageCount(tagName);
+    }
+
+    // 按子树标签剪枝遍历前缀树，耗时与结果数量相关
+    public List<String> getFilesWithTag(String tagName) {
+        return getFilesWithAllTags(Collections.singleton(tagName));
+    }
+
+    // 同时带有所有给定标签的文件，判断和剪枝都是按字的位运算
+    public List<String> getFilesWithAllTags(Collection<String> tagNames) {
+        TagSnapshot current = snapshot;
+        TagBits required = current.edit().encodeExisting(tagNames);
+        if (required.cardinality() != new HashSet<>(tagNames).size()) {
+            return Collections.emptyList();
         }
-        return count;
+        return Collections.unmodifiableList(collectFilesWithAll(current.queryIndex(), required));
+    }
+
+    // 按标签表达式查找文件，语法见 TagQuery；表达式有误时抛出 IllegalArgumentException
+    public TagQuery.Result findFiles(String expression) {
+        return TagQuery.parse(expression).evaluate(getIndexedSnapshot());
     }
 
     public boolean addTag(String tag) {
         if (tag == null || tag.trim().isEmpty()) {
             return false;
         }
-        tag = tag.trim();
-        if (myState.availableTags.containsKey(tag)) {
-            return false;
+        String name = tag.trim();
+        if (deferOnEdt(() -> addTag(name))) {
+            return !snapshot.tags.containsKey(name);
+        }
+        tag = name;
+        synchronized (writeLock) {
+            TagSnapshot.Builder builder = edit();
+            if (builder.tags().containsKey(tag)) {
+                return false;
+            }
+            builder.mutableTags().put(tag, new TagInfo(tag));
+            builder.mutableDictionary().getOrAdd(tag);
+            publish(builder, new TagChangeEvent.Builder().tagAdded(tag));
+            journal(TagJournal.ADD_TAG, tag);
         }
-        myState.availableTags.put(tag, new TagInfo(tag));
+        deliverChanges();
         return true;
     }
 
     public boolean renameTag(String oldTag, String newTag) {
-        if (newTag == null || newTag.trim().isEmpty() || !myState.availableTags.containsKey(oldTag)) {
+        if (newTag == null || newTag.trim().isEmpty()) {
             return false;
         }
-        newTag = newTag.trim();
-        if (myState.availableTags.containsKey(newTag)) {
-            return false;
+        String newName = newTag.trim();
+        if (deferOnEdt(() -> renameTag(oldTag, newName))) {
+            return snapshot.tags.containsKey(oldTag) && !snapshot.tags.containsKey(newName);
+        }
+        newTag = newName;
+        synchronized (writeLock) {
+            TagSnapshot.Builder builder = edit();
+            if (!builder.tags().containsKey(oldTag) || builder.tags().containsKey(newTag)) {
+                return false;
+            }
+            applyRenameTag(builder, oldTag, newTag);
+            publish(builder, new TagChangeEvent.Builder().tagRenamed(oldTag, newTag));
+            journal(TagJournal.RENAME_TAG, oldTag, newTag);
         }
+        deliverChanges();
+        return true;
+    }
 
+    public boolean deleteTag(String tag) {
+        if (deferOnEdt(() -> deleteTag(tag))) {
+            return snapshot.tags.containsKey(tag);
+        }
+        synchronized (writeLock) {
+            TagSnapshot.Builder builder = edit();
+            if (!builder.tags().containsKey(tag)) {
+                return false;
+            }
+            AutoTagMatcher rulesBefore = builder.autoTags;
+            List<String> paths = applyDeleteTag(builder, tag);
+            TagChangeEvent.Builder events = new TagChangeEvent.Builder().tagDeleted(tag).filesChanged(paths);
+            if (builder.autoTags != rulesBefore) {
+                events.rulesChanged();
+            }
+            publish(builder, events);
+            journal(TagJournal.DELETE_TAG, tag);
+        }
+        deliverChanges();
+        return true;
+    }
+
+    static void applyRenameTag(TagSnapshot.Builder builder, String oldTag, String newTag) {
         // 更新标签信息，保持所有原有属性
-        TagInfo tagInfo = myState.availableTags.remove(oldTag);
+        TagInfo tagInfo = builder.mutableTags().remove(oldTag).copy();
         tagInfo.name = newTag;
         tagInfo.timestamp = System.currentTimeMillis();
         // 保持所有颜色属性和创建顺序不变
         // colorHue, colorSaturation, colorBrightness, order 保持原值
-        myState.availableTags.put(newTag, tagInfo);
+        builder.mutableTags().put(newTag, tagInfo);
 
-        // 更新所有文件的标签
-        for (Set<String> fileTags : myState.fileTagsMap.values()) {
-            if (fileTags.remove(oldTag)) {
-                fileTags.add(newTag);
+        // 文件上保存的是标签 id，只需修改字典
+        builder.mutableDictionary().rename(oldTag, newTag);
+        builder.autoTags = builder.autoTags.withTagRenamed(oldTag, newTag);
+    }
+
+    // 旧标签的文件和规则都转到已存在的新标签上，再删除旧标签；新标签的属性保持不变
+    static void mergeRenamedTag(TagSnapshot.Builder builder, String oldTag, String newTag) {
+        int oldId = builder.dictionary().idOf(oldTag);
+        int newId = builder.mutableDictionary().getOrAdd(newTag);
+        if (oldId >= 0) {
+            for (String path : collectFilesWithAll(builder.index, TagBits.of(oldId))) {
+                builder.putFileTags(path, builder.index.get(path).without(oldId).with(newId));
             }
         }
+        builder.autoTags = builder.autoTags.withTagRenamed(oldTag, newTag);
+        applyDeleteTag(builder, oldTag);
+    }
 
-        ProjectView.getInstance(project).refresh();
-        return true;
+    // 返回受影响的文件路径
+    static List<String> applyDeleteTag(TagSnapshot.Builder builder, String tag) {
+        builder.mutableTags().remove(tag);
+        builder.autoTags = builder.autoTags.withoutTag(tag);
+
+        // 先从文件上清除该 id，再释放它供新标签复用
+        List<String> paths = Collections.emptyList();
+        int id = builder.dictionary().idOf(tag);
+        if (id >= 0) {
+            paths = collectFilesWithAll(builder.index, TagBits.of(id));
+            for (String path : paths) {
+                builder.putFileTags(path, builder.index.get(path).without(id));
+            }
+            // 文件内容中的标记还在，下次同步时标签会重新出现
+            if (!builder.contentTags.isEmpty()) {
+                Map<String, TagBits> contentTags = new HashMap<>();
+                for (Map.Entry<String, TagBits> entry : builder.contentTags.entrySet()) {
+                    TagBits bits = entry.getValue().without(id);
+                    if (!bits.isEmpty()) {
+                        contentTags.put(entry.getKey(), bits);
+                    } else {
+                        paths = paths.isEmpty() ? new ArrayList<>() : new ArrayList<>(paths);
+                        paths.add(entry.getKey());
+                    }
+                }
+                builder.contentTags = Collections.unmodifiableMap(contentTags);
+            }
+            builder.mutableDictionary().remove(tag);
+        }
+        return paths;
     }
 
-    public boolean deleteTag(String tag) {
-        if (!myState.availableTags.containsKey(tag)) {
-            return false;
+    // 手动打上的标签加上内容标记和自动标签规则得到的标签；只需要手动标签时用 TagSnapshot.getFileTags
+    public Set<String> getFileTags(VirtualFile file) {
+        TagSnapshot current = snapshot;
+        Set<String> explicitTags = current.getFileTags(file);
+        Set<String> contentTags = current.getContentTags(file.getPath());
+        Set<String> ruleTags = current.getRuleTags(file.getPath());
+        if (contentTags.isEmpty() && ruleTags.isEmpty()) {
+            return explicitTags;
+        }
+        Set<String> merged = new HashSet<>(explicitTags);
+        merged.addAll(contentTags);
+        merged.addAll(ruleTags);
+        return Collections.unmodifiableSet(merged);
+    }
+
+    // 用 ContentTagIndex 的当前结果整体替换内容标签；由 ContentTagSynchronizer 在后台调用。
+    // 标记中还没有定义的标签会被创建，只有实际变化的文件出现在变化通知中
+    void syncContentTags(Map<String, Set<String>> tagsByPath) {
+        synchronized (writeLock) {
+            TagSnapshot.Builder builder = edit();
+            TagChangeEvent.Builder events = new TagChangeEvent.Builder();
+            Map<String, TagBits> contentTags = new HashMap<>(tagsByPath.size() * 2);
+            for (Map.Entry<String, Set<String>> entry : tagsByPath.entrySet()) {
+                TagBits bits = encodeContentTags(builder, entry.getValue(), events);
+                if (!bits.isEmpty()) {
+                    contentTags.put(entry.getKey(), bits);
+                }
+            }
+            List<String> changedPaths = new ArrayList<>();
+            for (Map.Entry<String, TagBits> entry : contentTags.entrySet()) {
+                if (!entry.getValue().equals(builder.contentTags.get(entry.getKey()))) {
+                    changedPaths.add(entry.getKey());
+                }
+            }
+            for (String path : builder.contentTags.keySet()) {
+                if (!contentTags.containsKey(path)) {
+                    changedPaths.add(path);
+                }
+            }
+            if (changedPaths.isEmpty() && events.isEmpty()) {
+                return;
+            }
+            builder.contentTags = Collections.unmodifiableMap(contentTags);
+            publish(builder, events.filesChanged(changedPaths));
+        }
+        deliverChanges();
+    }
+
+    // 只替换 ContentTagIndex 中变化的文件：removedPaths 本身及其下的条目先移除，tagsByPath 中的文件再按新结果替换，
+    // 空集合表示文件中已经没有标记。由 ContentTagSynchronizer 在后台按 VFS 批次调用
+    void updateContentTags(Collection<String> removedPaths, Map<String, Set<String>> tagsByPath) {
+        synchronized (writeLock) {
+            TagSnapshot.Builder builder = edit();
+            TagChangeEvent.Builder events = new TagChangeEvent.Builder();
+            Map<String, TagBits> contentTags = new HashMap<>(builder.contentTags);
+            List<String> changedPaths = new ArrayList<>();
+            if (!removedPaths.isEmpty()) {
+                // 带标记的文件通常很少，直接逐个比较
+                contentTags.keySet().removeIf(path -> {
+                    for (String removed : removedPaths) {
+                        if (path.equals(removed) || path.startsWith(removed + "/")) {
+                            changedPaths.add(path);
+                            return true;
+                        }
+                    }
+                    return false;
+                });
+            }
+            for (Map.Entry<String, Set<String>> entry : tagsByPath.entrySet()) {
+                TagBits bits = encodeContentTags(builder, entry.getValue(), events);
+                TagBits previous = bits.isEmpty() ? contentTags.remove(entry.getKey()) : contentTags.put(entry.getKey(), bits);
+                if (!bits.equals(previous == null ? TagBits.EMPTY : previous)) {
+                    changedPaths.add(entry.getKey());
+                }
+            }
+            if (changedPaths.isEmpty() && events.isEmpty()) {
+                return;
+            }
+            builder.contentTags = Collections.unmodifiableMap(contentTags);
+            publish(builder, events.filesChanged(changedPaths));
         }
+        deliverChanges();
+    }
 
-        myState.availableTags.remove(tag);
+    // 调用方需持有 writeLock。标记中还没有定义的标签先创建
+    private TagBits encodeContentTags(TagSnapshot.Builder builder, Set<String> tags, TagChangeEvent.Builder events) {
+        for (String tag : tags) {
+            if (!builder.tags().containsKey(tag)) {
+                builder.mutableTags().put(tag, new TagInfo(tag));
+                builder.mutableDictionary().getOrAdd(tag);
+                events.tagAdded(tag);
+                journal(TagJournal.ADD_TAG, tag);
+            }
+        }
+        return builder.encodeExisting(tags).intern();
+    }
 
-        for (Set<String> fileTags : myState.fileTagsMap.values()) {
-            fileTags.remove(tag);
+    public List<AutoTagRule> getAutoTagRules() {
+        return snapshot.autoTags.rules();
+    }
+
+    // 整体替换规则；规则中还没有定义的标签会被创建。规则标签只影响显示，不写入文件标签
+    public void setAutoTagRules(List<AutoTagRule> rules) {
+        if (deferOnEdt(() -> setAutoTagRules(rules))) {
+            return;
+        }
+        synchronized (writeLock) {
+            TagSnapshot.Builder builder = edit();
+            builder.autoTags = AutoTagMatcher.compile(rules, project.getBasePath());
+            TagChangeEvent.Builder events = new TagChangeEvent.Builder().rulesChanged();
+            for (AutoTagRule rule : builder.autoTags.rules()) {
+                if (!builder.tags().containsKey(rule.tag)) {
+                    builder.mutableTags().put(rule.tag, new TagInfo(rule.tag));
+                    builder.mutableDictionary().getOrAdd(rule.tag);
+                    events.tagAdded(rule.tag);
+                    journal(TagJournal.ADD_TAG, rule.tag);
+                }
+            }
+            publish(builder, events);
         }
+        deliverChanges();
+    }
 
-        myState.fileTagsMap.entrySet().removeIf(entry -> entry.getValue().isEmpty());
-        ProjectView.getInstance(project).refresh();
-        return true;
+    // 目录自身及其下所有带标签的文件数，只需沿路径查找一次
+    public int getTaggedFileCountUnder(VirtualFile directory) {
+        return snapshot.getTaggedFileCountUnder(directory.getPath());
     }
 
-    public Set<String> getFileTags(VirtualFile file) {
-        return new HashSet<>(myState.fileTagsMap.getOrDefault(file.getPath(), new HashSet<>()));
+    public void forEachTaggedFileUnder(VirtualFile directory, BiConsumer<String, Set<String>> consumer) {
+        TagSnapshot current = snapshot;
+        current.index.forEachUnder(directory.getPath(),
+            (path, tags) -> consumer.accept(path, new TagNameSet(tags, current.dictionary)));
     }
 
     public void setFileTags(VirtualFile file, Set<String> tags) {
-        if (tags == null || tags.isEmpty()) {
-            myState.fileTagsMap.remove(file.getPath());
-        } else {
-            Set<String> validTags = new HashSet<>(tags);
-            validTags.retainAll(myState.availableTags.keySet());
-            if (!validTags.isEmpty()) {
-                myState.fileTagsMap.put(file.getPath(), validTags);
-            } else {
-                myState.fileTagsMap.remove(file.getPath());
+        if (deferOnEdt(() -> setFileTags(file, tags))) {
+            return;
+        }
+        synchronized (writeLock) {
+            TagSnapshot.Builder builder = edit();
+            // 只保留已存在的标签
+            TagBits validTags = builder.encodeExisting(tags != null ? tags : Collections.emptySet());
+            builder.putFileTags(file.getPath(), validTags);
+            publish(builder, new TagChangeEvent.Builder().fileChanged(file.getPath()));
+            if (journal != null) {
+                List<String> fields = new ArrayList<>();
+                fields.add(file.getPath());
+                fields.addAll(new TagNameSet(validTags, builder.dictionary()));
+                journal(TagJournal.SET_FILE, fields.toArray(String[]::new));
+            }
+        }
+        deliverChanges();
+    }
+
+    // 批量修改多个文件：加上 tagsToAdd、去掉 tagsToRemove，其余标签保持各自原样。
+    // 所有文件作为一次修改提交，只发布一次快照、发送一次变化通知
+    public void updateFileTags(Collection<VirtualFile> files, Set<String> tagsToAdd, Set<String> tagsToRemove) {
+        if (deferOnEdt(() -> updateFileTags(files, tagsToAdd, tagsToRemove))) {
+            return;
+        }
+        List<String> changedPaths = new ArrayList<>();
+        synchronized (writeLock) {
+            TagSnapshot.Builder builder = edit();
+            TagBits added = builder.encodeExisting(tagsToAdd);
+            TagBits removed = builder.encodeExisting(tagsToRemove);
+            if (added.isEmpty() && removed.isEmpty()) {
+                return;
+            }
+            List<String> records = new ArrayList<>();
+            for (VirtualFile file : files) {
+                String path = file.getPath();
+                TagBits oldTags = builder.index.get(path);
+                TagBits newTags = (oldTags == null ? TagBits.EMPTY : oldTags).or(added).andNot(removed);
+                if (newTags.equals(oldTags == null ? TagBits.EMPTY : oldTags)) {
+                    continue;
+                }
+                builder.putFileTags(path, newTags);
+                changedPaths.add(path);
+                if (journal != null) {
+                    List<String> fields = new ArrayList<>();
+                    fields.add(path);
+                    fields.addAll(new TagNameSet(newTags, builder.dictionary()));
+                    records.add(TagJournal.encode(TagJournal.SET_FILE, fields.toArray(String[]::new)));
+                }
             }
+            if (changedPaths.isEmpty()) {
+                return;
+            }
+            publish(builder, new TagChangeEvent.Builder().filesChanged(changedPaths));
+            journalAll(records);
         }
-        ProjectView.getInstance(project).refresh();
+        deliverChanges();
     }
 
+    // 返回副本，调用方可以随意修改
     public TagInfo getTagInfo(String tagName) {
-        return myState.availableTags.get(tagName);
+        TagInfo tagInfo = snapshot.getTagInfo(tagName);
+        return tagInfo == null ? null : tagInfo.copy();
+    }
+
+    public void setTagColor(String tagName, Color color) {
+        if (deferOnEdt(() -> setTagColor(tagName, color))) {
+            return;
+        }
+        synchronized (writeLock) {
+            TagSnapshot.Builder builder = edit();
+            TagInfo tagInfo = builder.tags().get(tagName);
+            if (tagInfo != null) {
+                TagInfo updated = tagInfo.copy();
+                updated.setColor(color);
+                builder.mutableTags().put(tagName, updated);
+                publish(builder, new TagChangeEvent.Builder().tagRecolored(tagName));
+            }
+        }
+        deliverChanges();
     }
-} 
\ No newline at end of file
+}
@@ -0,0 +1,358 @@
+package com.weakviord.filetagger.service;
+
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.weakviord.filetagger.service.TagStorageService.TagInfo;
+import org.jetbrains.annotations.Nullable;
+
+import java.awt.Color;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.*;
+
+/**
+ * 标签数据的 JSONL 导入导出，每行一个对象，逐行读写，不在内存中组装整份文档：
+ * <pre>
+ * {"tag":"needs-review","color":"#ff8800ff"}
+ * {"path":"src/Main.java","tags":["needs-review","hot-path"]}
+ * </pre>
+ * 标签定义行是可选的，只用来带上颜色。导入时每 BATCH_SIZE 行编码为一棵小前缀树并入结果，内存只与批次大小和结果本身相关；
+ * 结果使用导入自己的字典，由 TagStorageService.applyImport 在一次修改中换成当前字典的 id。
+ */
+public final class TagTransfer {
+    public enum ImportMode {
+        // 导入的标签加到文件已有的标签上
+        MERGE,
+        // 全部文件标签替换为导入的内容，标签定义保留
+        REPLACE
+    }
+
+    static final int BATCH_SIZE = 10_000;
+    private static final int MAX_REPORTED_ERRORS = 100;
+
+    /**
+     * 解析和校验的结果。无效的行被跳过，只保留前 MAX_REPORTED_ERRORS 条错误信息。
+     */
+    public static final class ImportResult {
+        final TagDictionary dictionary = new TagDictionary();
+        final Map<String, Color> colors = new HashMap<>();
+        PathTrie entries = PathTrie.EMPTY;
+        private int skipped;
+        private final List<String> errors = new ArrayList<>();
+
+        public int getImportedCount() {
+            return entries.size();
+        }
+
+        public int getSkippedCount() {
+            return skipped;
+        }
+
+        public List<String> getErrors() {
+            return Collections.unmodifiableList(errors);
+        }
+
+        private void error(int line, String message) {
+            skipped++;
+            if (errors.size() < MAX_REPORTED_ERRORS) {
+                errors.add("Line " + line + ": " + message);
+            }
+        }
+    }
+
+    private TagTransfer() {
+    }
+
+    // relativeTo 非空时写出相对于它的路径，其外的路径仍写绝对路径
+    static void write(TagSnapshot snapshot, Writer out, @Nullable String relativeTo, @Nullable ProgressIndicator indicator)
+        throws IOException {
+        for (TagInfo tagInfo : snapshot.getAllTags()) {
+            out.write("{\"tag\":");
+            writeString(out, tagInfo.name);
+            out.write(",\"color\":");
+            writeString(out, toHex(tagInfo.getColor()));
+            out.write("}\n");
+        }
+        int total = Math.max(1, snapshot.index.size());
+        int[] written = {0};
+        try {
+            snapshot.index.forEach((path, tags) -> {
+                try {
+                    if (indicator != null && ++written[0] % BATCH_SIZE == 0) {
+                        indicator.checkCanceled();
+                        indicator.setFraction((double) written[0] / total);
+                    }
+                    out.write("{\"path\":");
+                    writeString(out, relativize(path, relativeTo));
+                    out.write(",\"tags\":[");
+                    boolean first = true;
+                    for (String tag : new TagNameSet(tags, snapshot.dictionary)) {
+                        if (!first) {
+                            out.write(',');
+                        }
+                        writeString(out, tag);
+                        first = false;
+                    }
+                    out.write("]}\n");
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // relativeTo 非空时不以 '/' 开头的路径相对于它解析；为空时只接受绝对路径。sizeHint 为输入的字符数估计，用于显示进度
+    static ImportResult read(Reader in, @Nullable String relativeTo, long sizeHint, @Nullable ProgressIndicator indicator)
+        throws IOException {
+        ImportResult result = new ImportResult();
+        BufferedReader reader = in instanceof BufferedReader buffered ? buffered : new BufferedReader(in);
+        Map<String, TagBits> batch = new HashMap<>();
+        long consumed = 0;
+        int lineNumber = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            consumed += line.length() + 1;
+            if (line.isBlank()) {
+                continue;
+            }
+            try {
+                readLine(line, relativeTo, result, batch);
+            } catch (IllegalArgumentException e) {
+                result.error(lineNumber, e.getMessage());
+            }
+            if (batch.size() >= BATCH_SIZE) {
+                flush(result, batch);
+                if (indicator != null) {
+                    indicator.checkCanceled();
+                    if (sizeHint > 0) {
+                        indicator.setFraction(Math.min(1.0, (double) consumed / sizeHint));
+                    }
+                    indicator.setText2(lineNumber + " lines read");
+                }
+            }
+        }
+        flush(result, batch);
+        return result;
+    }
+
+    // 一批条目排序后自底向上构建，再按节点并入结果，同一路径重复出现时标签取并集
+    private static void flush(ImportResult result, Map<String, TagBits> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        result.entries = result.entries.putAll(PathTrie.build(batch, bits -> bits), TagBits::or);
+        batch.clear();
+    }
+
+    private static void readLine(String line, @Nullable String relativeTo, ImportResult result, Map<String, TagBits> batch) {
+        Map<String, Object> object = new LineParser(line).parseObject();
+        Object tag = object.get("tag");
+        if (tag != null) {
+            String name = requireName(tag, "tag");
+            result.dictionary.getOrAdd(name);
+            Object color = object.get("color");
+            if (color != null) {
+                result.colors.put(name, parseColor(color));
+            }
+            return;
+        }
+        Object path = object.get("path");
+        if (!(path instanceof String pathText) || pathText.isBlank()) {
+            throw new IllegalArgumentException("expected a \"path\" or \"tag\" field");
+        }
+        if (!(object.get("tags") instanceof List<?> tags)) {
+            throw new IllegalArgumentException("expected a \"tags\" array");
+        }
+        TagBits bits = TagBits.EMPTY;
+        for (Object name : tags) {
+            bits = bits.with(result.dictionary.getOrAdd(requireName(name, "tags")));
+        }
+        // 没有标签的行在合并模式下没有作用，替换模式下等同于不导入该文件
+        if (!bits.isEmpty()) {
+            batch.merge(resolve(pathText.trim(), relativeTo), bits.intern(), TagBits::or);
+        }
+    }
+
+    private static String requireName(Object value, String field) {
+        if (!(value instanceof String name) || name.isBlank()) {
+            throw new IllegalArgumentException("\"" + field + "\" must contain non-empty strings");
+        }
+        return name.trim();
+    }
+
+    private static String resolve(String path, @Nullable String relativeTo) {
+        path = path.replace('\\', '/');
+        boolean absolute = path.startsWith("/") || path.matches("[A-Za-z]:/.*");
+        if (!absolute && relativeTo == null) {
+            throw new IllegalArgumentException("relative path '" + path + "' requires the relative path mode");
+        }
+        // 开头的 ./ 和末尾的 / 是常见写法，去掉后不再接受 .、.. 和空段：它们会得到与 VFS 中不同的路径字符串
+        String normalized = stripTrailingSlash(!absolute && path.startsWith("./") ? path.substring(2) : path);
+        String[] segments = normalized.split("/", -1);
+        for (int i = normalized.startsWith("/") ? 1 : 0; i < segments.length; i++) {
+            String segment = segments[i];
+            if (segment.equals("..") && !absolute) {
+                throw new IllegalArgumentException("path '" + path + "' leaves the project directory");
+            }
+            if (segment.isEmpty() || segment.equals(".") || segment.equals("..")) {
+                throw new IllegalArgumentException("path '" + path + "' is not normalized");
+            }
+        }
+        return absolute ? normalized : relativeTo + "/" + normalized;
+    }
+
+    private static String stripTrailingSlash(String path) {
+        return path.length() > 1 && path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+    }
+
+    private static String relativize(String path, @Nullable String relativeTo) {
+        if (relativeTo != null && path.startsWith(relativeTo + "/")) {
+            return path.substring(relativeTo.length() + 1);
+        }
+        return path;
+    }
+
+    private static Color parseColor(Object value) {
+        if (value instanceof String text && text.matches("#[0-9a-fA-F]{6}([0-9a-fA-F]{2})?")) {
+            long rgba = Long.parseLong(text.substring(1), 16);
+            return text.length() == 7
+                ? new Color((int) rgba)
+                : new Color((int) (rgba >> 24) & 0xFF, (int) (rgba >> 16) & 0xFF, (int) (rgba >> 8) & 0xFF, (int) rgba & 0xFF);
+        }
+        throw new IllegalArgumentException("\"color\" must look like #rrggbb or #rrggbbaa");
+    }
+
+    private static String toHex(Color color) {
+        return String.format("#%02x%02x%02x%02x", color.getRed(), color.getGreen(), color.getBlue(), color.getAlpha());
+    }
+
+    private static void writeString(Writer out, String value) throws IOException {
+        out.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"' -> out.write("\\\"");
+                case '\\' -> out.write("\\\\");
+                case '\n' -> out.write("\\n");
+                case '\r' -> out.write("\\r");
+                case '\t' -> out.write("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        out.write(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.write(c);
+                    }
+                }
+            }
+        }
+        out.write('"');
+    }
+
+    // 只支持这种格式需要的 JSON 子集：一层对象，值为字符串或字符串数组；其他值按错误处理
+    private static final class LineParser {
+        private final String text;
+        private int position;
+
+        LineParser(String text) {
+            this.text = text;
+        }
+
+        Map<String, Object> parseObject() {
+            Map<String, Object> object = new HashMap<>();
+            expect('{');
+            if (peek() == '}') {
+                position++;
+            } else {
+                do {
+                    String key = parseString();
+                    expect(':');
+                    object.put(key, peek() == '[' ? parseArray() : parseString());
+                } while (accept(','));
+                expect('}');
+            }
+            if (peek() != 0) {
+                throw new IllegalArgumentException("unexpected text after the object");
+            }
+            return object;
+        }
+
+        private List<String> parseArray() {
+            List<String> values = new ArrayList<>();
+            expect('[');
+            if (accept(']')) {
+                return values;
+            }
+            do {
+                values.add(parseString());
+            } while (accept(','));
+            expect(']');
+            return values;
+        }
+
+        private String parseString() {
+            expect('"');
+            StringBuilder value = new StringBuilder();
+            while (position < text.length()) {
+                char c = text.charAt(position++);
+                if (c == '"') {
+                    return value.toString();
+                }
+                if (c != '\\') {
+                    value.append(c);
+                    continue;
+                }
+                if (position >= text.length()) {
+                    break;
+                }
+                char escaped = text.charAt(position++);
+                switch (escaped) {
+                    case 'n' -> value.append('\n');
+                    case 'r' -> value.append('\r');
+                    case 't' -> value.append('\t');
+                    case 'b' -> value.append('\b');
+                    case 'f' -> value.append('\f');
+                    case 'u' -> {
+                        if (position + 4 > text.length()) {
+                            throw new IllegalArgumentException("incomplete \\u escape");
+                        }
+                        try {
+                            value.append((char) Integer.parseInt(text.substring(position, position + 4), 16));
+                        } catch (NumberFormatException e) {
+                            throw new IllegalArgumentException("invalid \\u escape");
+                        }
+                        position += 4;
+                    }
+                    default -> value.append(escaped);
+                }
+            }
+            throw new IllegalArgumentException("unterminated string");
+        }
+
+        private boolean accept(char c) {
+            if (peek() == c) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(char c) {
+            if (!accept(c)) {
+                throw new IllegalArgumentException("expected '" + c + "' at column " + (position + 1));
+            }
+        }
+
+        // 跳过空白后的下一个字符，到末尾时为 0
+        private char peek() {
+            while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+                position++;
+            }
+            return position < text.length() ? text.charAt(position) : 0;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.weakviord.filetagger.service;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * 弱引用驻留池：相等的对象共享同一个实例，不再被引用时自动回收。
+ */
+final class WeakInterner<T> {
+    private final Map<T, WeakReference<T>> pool = new WeakHashMap<>();
+
+    synchronized T intern(T value) {
+        WeakReference<T> ref = pool.get(value);
+        T existing = ref == null ? null : ref.get();
+        if (existing != null) {
+            return existing;
+        }
+        pool.put(value, new WeakReference<>(value));
+        return value;
+    }
+}
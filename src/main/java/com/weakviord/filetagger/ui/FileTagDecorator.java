@@ -8,14 +8,11 @@ import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.packageDependencies.ui.PackageDependenciesNode;
 import com.intellij.ui.ColoredTreeCellRenderer;
 import com.intellij.ui.SimpleTextAttributes;
-import com.weakviord.filetagger.service.TagStorageService;
+import com.weakviord.filetagger.service.TagMetrics;
 import org.jetbrains.annotations.NotNull;
 
 import javax.swing.*;
 import java.awt.*;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Set;
 
 public class FileTagDecorator implements ProjectViewNodeDecorator {
     @Override
@@ -26,43 +23,25 @@ public class FileTagDecorator implements ProjectViewNodeDecorator {
         Project project = node.getProject();
         if (project == null) return;
 
-        TagStorageService tagService = project.getService(TagStorageService.class);
-        Set<String> tags = tagService.getFileTags(file);
-        
-        if (tags != null && !tags.isEmpty()) {
-            String originalText = presentation.getPresentableText();
-            if (originalText == null) return;
+        long start = System.nanoTime();
+        decorate(project, file, presentation);
+        project.getService(TagMetrics.class).record(TagMetrics.Metric.DECORATE, start);
+    }
+
+    private void decorate(Project project, VirtualFile file, PresentationData presentation) {
+        TagDecorationCache.Fragment[] fragments = project.getService(TagDecorationCache.class).getFragments(file);
+        if (fragments.length == 0) return;
 
-            presentation.clearText();
-            presentation.addText(originalText, SimpleTextAttributes.REGULAR_ATTRIBUTES);
-            
-            // 将标签转换为TagInfo并排序
-            List<TagStorageService.TagInfo> tagInfos = new ArrayList<>();
-            for (String tagName : tags) {
-                TagStorageService.TagInfo tagInfo = tagService.getTagInfo(tagName);
-                if (tagInfo != null) {
-                    tagInfos.add(tagInfo);
-                }
-            }
+        String originalText = presentation.getPresentableText();
+        if (originalText == null) return;
 
-            // 按使用数量降序排序，数量相同时按创建时间升序排序
-            tagInfos.sort((a, b) -> {
-                int countA = tagService.getTagUsageCount(a.name);
-                int countB = tagService.getTagUsageCount(b.name);
-                if (countA != countB) {
-                    return Integer.compare(countB, countA); // 降序
-                }
-                return Long.compare(a.order, b.order); // 升序
-            });
+        presentation.clearText();
+        presentation.addText(originalText, SimpleTextAttributes.REGULAR_ATTRIBUTES);
 
-            // 按排序后的顺序显示标签
-            for (TagStorageService.TagInfo tagInfo : tagInfos) {
-                presentation.addText(" ", SimpleTextAttributes.REGULAR_ATTRIBUTES);
-                presentation.addText(tagInfo.name, new SimpleTextAttributes(
-                    SimpleTextAttributes.STYLE_BOLD,
-                    tagInfo.getColor()
-                ));
-            }
+        // 缓存中的片段已按使用数量和创建时间排好序
+        for (TagDecorationCache.Fragment fragment : fragments) {
+            presentation.addText(" ", SimpleTextAttributes.REGULAR_ATTRIBUTES);
+            presentation.addText(fragment.text, fragment.attributes);
         }
     }
 
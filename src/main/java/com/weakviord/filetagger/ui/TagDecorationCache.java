@@ -0,0 +1,181 @@
+package com.weakviord.filetagger.ui;
+
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.ui.SimpleTextAttributes;
+import com.weakviord.filetagger.service.TagSnapshot;
+import com.weakviord.filetagger.service.TagStorageService;
+import com.weakviord.filetagger.service.TagStorageService.TagInfo;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * 按文件缓存已排序的标签装饰片段，目录还带有其下带标签文件数的摘要；标签数据的修改计数变化后整体失效。
+ * 自动标签规则得到的标签排在手动标签之后，用斜体区分。
+ */
+@Service(Service.Level.PROJECT)
+public final class TagDecorationCache {
+    // 只需覆盖可见节点的工作集，超出后按最近最少使用淘汰
+    private static final int MAX_ENTRIES = 4096;
+    private static final Fragment[] NO_FRAGMENTS = new Fragment[0];
+
+    public static final class Fragment {
+        public final String text;
+        public final SimpleTextAttributes attributes;
+
+        Fragment(String text, SimpleTextAttributes attributes) {
+            this.text = text;
+            this.attributes = attributes;
+        }
+    }
+
+    private static final class Entry {
+        final long generation;
+        // 有自动标签规则时记录计算时的路径，文件改名或移动后重新匹配；没有规则时为 null
+        final String path;
+        final Fragment[] fragments;
+
+        Entry(long generation, String path, Fragment[] fragments) {
+            this.generation = generation;
+            this.path = path;
+            this.fragments = fragments;
+        }
+    }
+
+    private final Supplier<TagSnapshot> snapshots;
+    // 只在持有 entries 的锁时访问；锁内只做查找和写入，片段的计算在锁外进行
+    private final Map<VirtualFile, Entry> entries = new LinkedHashMap<>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<VirtualFile, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    // 同一代内每个标签只创建一次 SimpleTextAttributes，整表随代数一起替换
+    private volatile AttributesTable attributesTable = new AttributesTable(-1);
+
+    private static final class AttributesTable {
+        final long generation;
+        final Map<String, SimpleTextAttributes> byTag = new ConcurrentHashMap<>();
+        final Map<String, SimpleTextAttributes> byRuleTag = new ConcurrentHashMap<>();
+
+        AttributesTable(long generation) {
+            this.generation = generation;
+        }
+    }
+
+    public TagDecorationCache(Project project) {
+        this(project.getService(TagStorageService.class)::getSnapshot);
+    }
+
+    // 不依赖项目，基准测试中直接提供快照
+    TagDecorationCache(Supplier<TagSnapshot> snapshots) {
+        this.snapshots = snapshots;
+    }
+
+    // 可以在多个后台线程上并发调用：标签数据来自同一个不可变快照，不会读到修改了一半的状态
+    public Fragment[] getFragments(VirtualFile file) {
+        TagSnapshot snapshot = snapshots.get();
+        long generation = snapshot.getModificationCount();
+        String path = snapshot.hasAutoTagRules() ? file.getPath() : null;
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(file);
+        }
+        if (entry != null && entry.generation == generation && Objects.equals(entry.path, path)) {
+            return entry.fragments;
+        }
+        Fragment[] fragments = computeFragments(file, snapshot);
+        synchronized (entries) {
+            entries.put(file, new Entry(generation, path, fragments));
+        }
+        return fragments;
+    }
+
+    private Fragment[] computeFragments(VirtualFile file, TagSnapshot snapshot) {
+        Fragment[] fragments = computeTagFragments(file, snapshot);
+        if (!file.isDirectory()) {
+            return fragments;
+        }
+        // 折叠的目录也能看出其中有多少带标签的文件
+        int descendants = snapshot.getTaggedDescendantCount(file.getPath());
+        if (descendants == 0) {
+            return fragments;
+        }
+        Fragment[] withSummary = Arrays.copyOf(fragments, fragments.length + 1);
+        withSummary[fragments.length] = new Fragment("contains " + descendants + " tagged",
+            SimpleTextAttributes.GRAYED_ATTRIBUTES);
+        return withSummary;
+    }
+
+    private Fragment[] computeTagFragments(VirtualFile file, TagSnapshot snapshot) {
+        Set<String> tags = snapshot.getFileTags(file);
+        if (snapshot.hasContentTags()) {
+            // 内容标记的标签与手动标签同等显示
+            Set<String> contentTags = snapshot.getContentTags(file.getPath());
+            if (!contentTags.isEmpty()) {
+                Set<String> merged = new HashSet<>(tags);
+                merged.addAll(contentTags);
+                tags = merged;
+            }
+        }
+        Set<String> ruleTags = snapshot.hasAutoTagRules() ? snapshot.getRuleTags(file.getPath()) : Collections.emptySet();
+        if (tags.isEmpty() && ruleTags.isEmpty()) {
+            return NO_FRAGMENTS;
+        }
+        AttributesTable attributes = attributesTable;
+        if (attributes.generation != snapshot.getModificationCount()) {
+            attributes = new AttributesTable(snapshot.getModificationCount());
+            attributesTable = attributes;
+        }
+
+        // 将标签转换为TagInfo并排序
+        List<TagInfo> tagInfos = new ArrayList<>(tags.size());
+        for (String tagName : tags) {
+            TagInfo tagInfo = snapshot.getTagInfo(tagName);
+            if (tagInfo != null) {
+                tagInfos.add(tagInfo);
+            }
+        }
+        List<TagInfo> ruleTagInfos = new ArrayList<>(ruleTags.size());
+        for (String tagName : ruleTags) {
+            TagInfo tagInfo = snapshot.getTagInfo(tagName);
+            // 同时手动打上的标签只显示一次
+            if (tagInfo != null && !tags.contains(tagName)) {
+                ruleTagInfos.add(tagInfo);
+            }
+        }
+        if (tagInfos.isEmpty() && ruleTagInfos.isEmpty()) {
+            return NO_FRAGMENTS;
+        }
+
+        // 按使用数量降序排序，数量相同时按创建时间升序排序
+        tagInfos.sort((a, b) -> {
+            int countA = snapshot.getTagUsageCount(a.name);
+            int countB = snapshot.getTagUsageCount(b.name);
+            if (countA != countB) {
+                return Integer.compare(countB, countA); // 降序
+            }
+            return Long.compare(a.order, b.order); // 升序
+        });
+
+        ruleTagInfos.sort(Comparator.comparing(tagInfo -> tagInfo.name));
+
+        Fragment[] fragments = new Fragment[tagInfos.size() + ruleTagInfos.size()];
+        for (int i = 0; i < tagInfos.size(); i++) {
+            TagInfo tagInfo = tagInfos.get(i);
+            SimpleTextAttributes textAttributes = attributes.byTag.computeIfAbsent(tagInfo.name,
+                name -> new SimpleTextAttributes(SimpleTextAttributes.STYLE_BOLD, tagInfo.getColor()));
+            fragments[i] = new Fragment(tagInfo.name, textAttributes);
+        }
+        for (int i = 0; i < ruleTagInfos.size(); i++) {
+            TagInfo tagInfo = ruleTagInfos.get(i);
+            SimpleTextAttributes textAttributes = attributes.byRuleTag.computeIfAbsent(tagInfo.name,
+                name -> new SimpleTextAttributes(SimpleTextAttributes.STYLE_ITALIC, tagInfo.getColor()));
+            fragments[tagInfos.size() + i] = new Fragment(tagInfo.name, textAttributes);
+        }
+        return fragments;
+    }
+}
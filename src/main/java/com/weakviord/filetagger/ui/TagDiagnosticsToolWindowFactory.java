@@ -0,0 +1,107 @@
+package com.weakviord.filetagger.ui;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.DumbAware;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.wm.ToolWindow;
+import com.intellij.openapi.wm.ToolWindowFactory;
+import com.intellij.ui.components.JBScrollPane;
+import com.intellij.ui.components.JBTextArea;
+import com.intellij.ui.content.Content;
+import com.intellij.ui.content.ContentFactory;
+import com.weakviord.filetagger.service.TagMetrics;
+import com.weakviord.filetagger.service.TagStorageService;
+import org.jetbrains.annotations.NotNull;
+
+import javax.swing.*;
+import java.awt.*;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 内部模式下显示插件的耗时统计和索引规模，可以重置或写入日志，也可以对标签数据做一次一致性检查。
+ */
+public class TagDiagnosticsToolWindowFactory implements ToolWindowFactory, DumbAware {
+    private static final Logger LOG = Logger.getInstance(TagDiagnosticsToolWindowFactory.class);
+
+    @Override
+    public void createToolWindowContent(@NotNull Project project, @NotNull ToolWindow toolWindow) {
+        TagMetrics metrics = project.getService(TagMetrics.class);
+        JBTextArea textArea = new JBTextArea();
+        textArea.setEditable(false);
+        textArea.setFont(new Font(Font.MONOSPACED, Font.PLAIN, textArea.getFont().getSize()));
+        Runnable refresh = () -> textArea.setText(metrics.dump());
+
+        JButton refreshButton = new JButton("Refresh");
+        refreshButton.addActionListener(e -> refresh.run());
+        JButton resetButton = new JButton("Reset");
+        resetButton.addActionListener(e -> {
+            metrics.reset();
+            refresh.run();
+        });
+        JButton logButton = new JButton("Dump to Log");
+        logButton.addActionListener(e -> LOG.info(metrics.dump()));
+        JButton verifyButton = new JButton("Verify Consistency");
+        verifyButton.addActionListener(e -> verify(project, textArea, verifyButton));
+
+        JPanel buttons = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        buttons.add(refreshButton);
+        buttons.add(resetButton);
+        buttons.add(logButton);
+        buttons.add(verifyButton);
+
+        JPanel panel = new JPanel(new BorderLayout());
+        panel.add(buttons, BorderLayout.NORTH);
+        panel.add(new JBScrollPane(textArea), BorderLayout.CENTER);
+
+        Content content = ContentFactory.getInstance().createContent(panel, "", false);
+        toolWindow.getContentManager().addContent(content);
+        refresh.run();
+    }
+
+    // 全量检查要遍历所有条目并查询 VFS，放到后台执行，结果追加在统计信息之后
+    private static void verify(Project project, JBTextArea textArea, JButton button) {
+        button.setEnabled(false);
+        new Task.Backgroundable(project, "Verifying file tags", false) {
+            private List<String> problems = Collections.emptyList();
+            private long millis;
+
+            @Override
+            public void run(@NotNull ProgressIndicator indicator) {
+                long start = System.nanoTime();
+                problems = project.getService(TagStorageService.class).verifyConsistency();
+                millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            }
+
+            @Override
+            public void onSuccess() {
+                StringBuilder report = new StringBuilder(project.getService(TagMetrics.class).dump());
+                report.append("Consistency check (").append(millis).append(" ms): ");
+                if (problems.isEmpty()) {
+                    report.append("no problems found\n");
+                } else {
+                    report.append(problems.size()).append(" problem(s)\n");
+                    for (String problem : problems) {
+                        report.append("  ").append(problem).append('\n');
+                    }
+                    LOG.warn("File tag consistency check failed:\n" + String.join("\n", problems));
+                }
+                textArea.setText(report.toString());
+            }
+
+            @Override
+            public void onFinished() {
+                button.setEnabled(true);
+            }
+        }.queue();
+    }
+
+    @Override
+    public boolean shouldBeAvailable(@NotNull Project project) {
+        return ApplicationManager.getApplication().isInternal();
+    }
+}
@@ -5,21 +5,27 @@ import com.intellij.openapi.ui.DialogWrapper;
 import com.intellij.openapi.ui.Messages;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.ui.ColoredListCellRenderer;
+import com.intellij.ui.DocumentAdapter;
+import com.intellij.ui.SearchTextField;
 import com.intellij.ui.SimpleTextAttributes;
 import com.intellij.ui.components.JBList;
 import com.intellij.ui.components.JBScrollPane;
 import com.intellij.ui.components.JBTextField;
-import com.intellij.ide.projectView.ProjectView;
+import com.intellij.util.ui.ThreeStateCheckBox;
+import com.weakviord.filetagger.service.TagSnapshot;
 import com.weakviord.filetagger.service.TagStorageService;
 import com.weakviord.filetagger.service.TagStorageService.TagInfo;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import javax.swing.*;
+import javax.swing.event.DocumentEvent;
 import java.awt.*;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
-import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.List;
 
@@ -31,24 +37,104 @@ import com.intellij.ide.util.PropertiesComponent;
 
 public class TagManagerDialog extends DialogWrapper {
     private final Project project;
-    private final VirtualFile file;
+    private final List<VirtualFile> files;
     private final TagStorageService tagService;
-    private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    private static final DateTimeFormatter DATE_FORMAT =
+        DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
 
     private static class TagListItem {
         final TagInfo tagInfo;
-        boolean checked;
-
-        TagListItem(TagInfo tagInfo, boolean checked) {
+        // 打开对话框（或增加、重命名该标签）时从快照中取得，绘制和排序时不再查询
+        final int usageCount;
+        // 打开对话框时的状态；DONT_CARE 表示只有部分选中文件带有该标签
+        final ThreeStateCheckBox.State initialState;
+        ThreeStateCheckBox.State state;
+        // 第一次绘制时格式化，之后复用
+        private String modifiedText;
+
+        TagListItem(TagInfo tagInfo, int usageCount, ThreeStateCheckBox.State initialState, ThreeStateCheckBox.State state) {
             this.tagInfo = tagInfo;
-            this.checked = checked;
+            this.usageCount = usageCount;
+            this.initialState = initialState;
+            this.state = state;
+        }
+
+        String modifiedText() {
+            if (modifiedText == null) {
+                modifiedText = DATE_FORMAT.format(Instant.ofEpochMilli(tagInfo.timestamp));
+            }
+            return modifiedText;
+        }
+
+        // 部分选中的标签可以在 选中 → 未选中 → 保持原样 之间循环
+        void toggle() {
+            if (state == ThreeStateCheckBox.State.SELECTED) {
+                state = ThreeStateCheckBox.State.NOT_SELECTED;
+            } else if (state == ThreeStateCheckBox.State.NOT_SELECTED && initialState == ThreeStateCheckBox.State.DONT_CARE) {
+                state = ThreeStateCheckBox.State.DONT_CARE;
+            } else {
+                state = ThreeStateCheckBox.State.SELECTED;
+            }
         }
     }
 
-    private final DefaultListModel<TagListItem> availableTagsModel;
+    /**
+     * 列表只持有过滤后可见的条目；增删单个标签时只通知变化的那一行，不重建整个模型。
+     */
+    private static final class TagListModel extends AbstractListModel<TagListItem> {
+        private List<TagListItem> items = new ArrayList<>();
+
+        @Override
+        public int getSize() {
+            return items.size();
+        }
+
+        @Override
+        public TagListItem getElementAt(int index) {
+            return items.get(index);
+        }
+
+        void setItems(List<TagListItem> newItems) {
+            int oldSize = items.size();
+            items = newItems;
+            if (oldSize > 0) {
+                fireIntervalRemoved(this, 0, oldSize - 1);
+            }
+            if (!newItems.isEmpty()) {
+                fireIntervalAdded(this, 0, newItems.size() - 1);
+            }
+        }
+
+        void insert(int index, TagListItem item) {
+            items.add(index, item);
+            fireIntervalAdded(this, index, index);
+        }
+
+        void remove(TagListItem item) {
+            int index = items.indexOf(item);
+            if (index >= 0) {
+                items.remove(index);
+                fireIntervalRemoved(this, index, index);
+            }
+        }
+
+        List<TagListItem> items() {
+            return items;
+        }
+    }
+
+    private final TagListModel availableTagsModel;
     private final JBList<TagListItem> availableTagsList;
     private final JBTextField newTagField;
-    private final Set<String> selectedTags;
+    private final SearchTextField filterField;
+    // 所有标签，按当前排序方式排好序；列表模型中是其中符合过滤条件的部分
+    private final List<TagListItem> allItems = new ArrayList<>();
+    private final TagPrefixIndex prefixIndex = new TagPrefixIndex();
+    private String filter = "";
+    // 过滤条件对应的标签名，没有过滤时为 null
+    private Set<String> filterMatches;
+    // 每个标签在选中文件中出现的次数
+    private final Map<String, Integer> tagFileCounts = new HashMap<>();
 
     private enum SortType {
         CREATE_TIME("Creation Time"),
@@ -76,14 +162,24 @@ public class TagManagerDialog extends DialogWrapper {
     private static final String SORT_ORDER_KEY = "FileTagger.SortOrder";
 
     public TagManagerDialog(Project project, VirtualFile file) {
+        this(project, Collections.singletonList(file));
+    }
+
+    public TagManagerDialog(Project project, List<VirtualFile> files) {
         super(project);
         this.project = project;
-        this.file = file;
+        this.files = files;
         this.tagService = project.getService(TagStorageService.class);
-        this.selectedTags = new HashSet<>(tagService.getFileTags(file));
-        this.availableTagsModel = new DefaultListModel<>();
+        TagSnapshot snapshot = tagService.getSnapshot();
+        for (VirtualFile file : files) {
+            for (String tag : snapshot.getFileTags(file)) {
+                tagFileCounts.merge(tag, 1, Integer::sum);
+            }
+        }
+        this.availableTagsModel = new TagListModel();
         this.availableTagsList = new JBList<>(availableTagsModel);
         this.newTagField = new JBTextField();
+        this.filterField = new SearchTextField(false);
 
         // 恢复上次的排序设置
         PropertiesComponent props = PropertiesComponent.getInstance(project);
@@ -97,17 +193,22 @@ public class TagManagerDialog extends DialogWrapper {
         }
         ascending = "true".equals(props.getValue(SORT_ORDER_KEY, "true"));
 
-        setTitle("Tag Manager");
+        setTitle(files.size() == 1 ? "Tag Manager" : "Tag Manager (" + files.size() + " files)");
         init();
-        loadTags();
+        loadTags(snapshot);
         updateAvailableTagsList();
     }
 
-    private void loadTags() {
-        availableTagsModel.clear();
-        List<TagInfo> allTags = tagService.getAllTags();
-        for (TagInfo tagInfo : allTags) {
-            availableTagsModel.addElement(new TagListItem(tagInfo, selectedTags.contains(tagInfo.name)));
+    // 计数和标签信息都取自打开对话框时的同一个快照。颜色选择器会直接修改条目上的 TagInfo，
+    // 所以使用副本，与 getTagInfo 的返回值一样，不改动快照中共享的对象
+    private void loadTags(TagSnapshot snapshot) {
+        for (TagInfo snapshotInfo : snapshot.getAllTags()) {
+            TagInfo tagInfo = snapshotInfo.copy();
+            int count = tagFileCounts.getOrDefault(tagInfo.name, 0);
+            ThreeStateCheckBox.State state = count == 0 ? ThreeStateCheckBox.State.NOT_SELECTED
+                : count == files.size() ? ThreeStateCheckBox.State.SELECTED : ThreeStateCheckBox.State.DONT_CARE;
+            allItems.add(new TagListItem(tagInfo, snapshot.getTagUsageCount(tagInfo.name), state, state));
+            prefixIndex.add(tagInfo.name);
         }
     }
 
@@ -120,7 +221,7 @@ public class TagManagerDialog extends DialogWrapper {
 
         // 自定义列表渲染器
         availableTagsList.setCellRenderer(new ColoredListCellRenderer<>() {
-            private final JCheckBox checkBox = new JCheckBox();
+            private final ThreeStateCheckBox checkBox = new ThreeStateCheckBox();
             private final JPanel colorPanel = new JPanel() {
                 @Override
                 protected void paintComponent(Graphics g) {
@@ -158,12 +259,11 @@ public class TagManagerDialog extends DialogWrapper {
                           new SimpleTextAttributes(SimpleTextAttributes.STYLE_PLAIN, item.tagInfo.getColor()));
                     
                     // 使用数量
-                    int usageCount = tagService.getTagUsageCount(item.tagInfo.name);
-                    append("  (" + usageCount + " files)", 
+                    append("  (" + item.usageCount + " files)",
                           new SimpleTextAttributes(SimpleTextAttributes.STYLE_ITALIC, Color.GRAY));
                     
                     // 最后修改时间
-                    append("  " + DATE_FORMAT.format(new Date(item.tagInfo.timestamp)),
+                    append("  " + item.modifiedText(),
                           new SimpleTextAttributes(SimpleTextAttributes.STYLE_ITALIC, Color.GRAY));
                     
                     setBackground(selected ? list.getSelectionBackground() : list.getBackground());
@@ -197,7 +297,7 @@ public class TagManagerDialog extends DialogWrapper {
                                                boolean selected,
                                                boolean hasFocus) {
                 panel.setBackground(selected ? list.getSelectionBackground() : list.getBackground());
-                checkBox.setSelected(item.checked);
+                checkBox.setState(item.state);
                 colorPanel.setForeground(item.tagInfo.getColor());
                 textRenderer.getListCellRendererComponent(list, item, index, selected, hasFocus);
             }
@@ -224,12 +324,7 @@ public class TagManagerDialog extends DialogWrapper {
                         // 检查是否点击了复选框区域（左侧20像素）
                         if (e.getX() <= bounds.x + 20) {
                             TagListItem item = availableTagsModel.getElementAt(index);
-                            item.checked = !item.checked;
-                            if (item.checked) {
-                                selectedTags.add(item.tagInfo.name);
-                            } else {
-                                selectedTags.remove(item.tagInfo.name);
-                            }
+                            item.toggle();
                             availableTagsList.repaint();
                             e.consume();
                         }
@@ -246,10 +341,24 @@ public class TagManagerDialog extends DialogWrapper {
 
         // 设置多选模式
         availableTagsList.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
+        // 按原型计算统一的行高和行宽，列表不必为了布局逐行渲染所有标签
+        TagInfo prototypeInfo = new TagInfo("prototype-tag-name-of-typical-length");
+        availableTagsList.setPrototypeCellValue(new TagListItem(prototypeInfo, 99999,
+            ThreeStateCheckBox.State.NOT_SELECTED, ThreeStateCheckBox.State.NOT_SELECTED));
+
+        filterField.addDocumentListener(new DocumentAdapter() {
+            @Override
+            protected void textChanged(@NotNull DocumentEvent e) {
+                setFilter(filterField.getText().trim());
+            }
+        });
 
         // 标签列表面板
         JPanel listPanel = new JPanel(new BorderLayout());
-        listPanel.add(new JLabel("Available Tags:"), BorderLayout.NORTH);
+        JPanel listHeader = new JPanel(new BorderLayout(5, 0));
+        listHeader.add(new JLabel("Available Tags:"), BorderLayout.WEST);
+        listHeader.add(filterField, BorderLayout.CENTER);
+        listPanel.add(listHeader, BorderLayout.NORTH);
         listPanel.add(new JBScrollPane(availableTagsList), BorderLayout.CENTER);
 
         // 按钮面板
@@ -274,11 +383,14 @@ public class TagManagerDialog extends DialogWrapper {
             String newTag = newTagField.getText().trim();
             if (!newTag.isEmpty()) {
                 if (tagService.addTag(newTag)) {
-                    selectedTags.add(newTag);
+                    // 索引还在构建时修改排队执行，这里先用新建的标签信息显示
                     TagInfo newTagInfo = tagService.getTagInfo(newTag);
-                    availableTagsModel.addElement(new TagListItem(newTagInfo, true));
+                    if (newTagInfo == null) {
+                        newTagInfo = new TagInfo(newTag);
+                    }
+                    insertItem(new TagListItem(newTagInfo, 0,
+                        ThreeStateCheckBox.State.NOT_SELECTED, ThreeStateCheckBox.State.SELECTED));
                     newTagField.setText("");
-                    updateAvailableTagsList();
                 } else {
                     Messages.showErrorDialog(
                         project,
@@ -310,14 +422,15 @@ public class TagManagerDialog extends DialogWrapper {
                             "Duplicate Tag"
                         );
                     } else {
-                        if (selectedTags.remove(oldName)) {
-                            selectedTags.add(newName);
+                        // 重命名不改变使用数量，只需替换这一行
+                        TagInfo updatedInfo = tagService.getTagInfo(newName.trim());
+                        if (updatedInfo == null) {
+                            // 修改还在排队，先按新名字显示原来的属性
+                            updatedInfo = item.tagInfo.copy();
+                            updatedInfo.name = newName.trim();
                         }
-                        int index = availableTagsList.getSelectedIndex();
-                        boolean wasChecked = item.checked;
-                        TagInfo updatedInfo = tagService.getTagInfo(newName);
-                        availableTagsModel.setElementAt(new TagListItem(updatedInfo, wasChecked), index);
-                        updateAvailableTagsList();
+                        removeItem(item);
+                        insertItem(new TagListItem(updatedInfo, item.usageCount, item.initialState, item.state));
                     }
                 }
             }
@@ -340,11 +453,9 @@ public class TagManagerDialog extends DialogWrapper {
                 if (result == Messages.YES) {
                     // 删除选中的标签
                     for (TagListItem item : selectedItems) {
-                        selectedTags.remove(item.tagInfo.name);
                         tagService.deleteTag(item.tagInfo.name);
-                        availableTagsModel.removeElement(item);
+                        removeItem(item);
                     }
-                    updateAvailableTagsList();
                 }
             }
         });
@@ -420,8 +531,8 @@ public class TagManagerDialog extends DialogWrapper {
                     item.tagInfo.colorAlpha = originalAlpha;
                     availableTagsList.repaint();
                 } else {
-                    item.tagInfo.setColor(color);
-                    ProjectView.getInstance(project).refresh();
+                    // 改色通知会触发项目视图的整体刷新
+                    tagService.setTagColor(item.tagInfo.name, color);
                 }
             }
         };
@@ -436,53 +547,95 @@ public class TagManagerDialog extends DialogWrapper {
         );
     }
 
+    // 排序方式改变时整体重排一次，比较时只读取条目上已有的数据
     private void updateAvailableTagsList() {
-        List<TagListItem> currentItems = new ArrayList<>();
-        for (int i = 0; i < availableTagsModel.getSize(); i++) {
-            currentItems.add(availableTagsModel.getElementAt(i));
-        }
+        allItems.sort(itemComparator());
+        availableTagsModel.setItems(visibleItems());
+    }
 
-        // 根据选择的排序类型进行排序
-        currentItems.sort((a, b) -> {
-            int result = 0;
-            switch (currentSortType) {
-                case NAME:
-                    result = a.tagInfo.name.compareTo(b.tagInfo.name);
-                    break;
-                case FILES:
-                    result = Integer.compare(
-                        tagService.getTagUsageCount(a.tagInfo.name),
-                        tagService.getTagUsageCount(b.tagInfo.name)
-                    );
-                    // 文件数相同时，按创建时间排序
-                    if (result == 0) {
-                        result = Long.compare(a.tagInfo.order, b.tagInfo.order);
-                    }
-                    break;
-                case MODIFIED_TIME:
-                    result = Long.compare(a.tagInfo.timestamp, b.tagInfo.timestamp);
-                    // 修改时间相同时，按创建时间排序
-                    if (result == 0) {
-                        result = Long.compare(a.tagInfo.order, b.tagInfo.order);
-                    }
-                    break;
-                case CREATE_TIME:
-                default:
-                    result = Long.compare(a.tagInfo.order, b.tagInfo.order);
-                    break;
+    private Comparator<TagListItem> itemComparator() {
+        Comparator<TagListItem> byOrder = Comparator.comparingLong(item -> item.tagInfo.order);
+        Comparator<TagListItem> comparator = switch (currentSortType) {
+            case NAME -> Comparator.comparing((TagListItem item) -> item.tagInfo.name);
+            // 文件数相同时，按创建时间排序
+            case FILES -> Comparator.<TagListItem>comparingInt(item -> item.usageCount).thenComparing(byOrder);
+            // 修改时间相同时，按创建时间排序
+            case MODIFIED_TIME -> Comparator.<TagListItem>comparingLong(item -> item.tagInfo.timestamp).thenComparing(byOrder);
+            case CREATE_TIME -> byOrder;
+        };
+        return ascending ? comparator : comparator.reversed();
+    }
+
+    private boolean isVisible(TagListItem item) {
+        return filterMatches == null || filterMatches.contains(item.tagInfo.name);
+    }
+
+    private List<TagListItem> visibleItems() {
+        if (filterMatches == null) {
+            return new ArrayList<>(allItems);
+        }
+        List<TagListItem> visible = new ArrayList<>(filterMatches.size());
+        for (TagListItem item : allItems) {
+            if (isVisible(item)) {
+                visible.add(item);
             }
-            return ascending ? result : -result;
-        });
+        }
+        return visible;
+    }
+
+    private void setFilter(String newFilter) {
+        if (newFilter.equals(filter)) {
+            return;
+        }
+        filter = newFilter;
+        filterMatches = newFilter.isEmpty() ? null : prefixIndex.matching(newFilter);
+        availableTagsModel.setItems(visibleItems());
+    }
 
-        availableTagsModel.clear();
-        for (TagListItem item : currentItems) {
-            availableTagsModel.addElement(item);
+    // 按当前排序插入到正确位置，只通知新增的一行
+    private void insertItem(TagListItem item) {
+        Comparator<TagListItem> comparator = itemComparator();
+        allItems.add(insertionPoint(allItems, item, comparator), item);
+        prefixIndex.add(item.tagInfo.name);
+        if (filterMatches != null && prefixIndex.matching(filter).contains(item.tagInfo.name)) {
+            filterMatches.add(item.tagInfo.name);
+        }
+        if (isVisible(item)) {
+            availableTagsModel.insert(insertionPoint(availableTagsModel.items(), item, comparator), item);
         }
     }
 
+    private void removeItem(TagListItem item) {
+        allItems.remove(item);
+        prefixIndex.remove(item.tagInfo.name);
+        if (filterMatches != null) {
+            filterMatches.remove(item.tagInfo.name);
+        }
+        availableTagsModel.remove(item);
+    }
+
+    private static int insertionPoint(List<TagListItem> items, TagListItem item, Comparator<TagListItem> comparator) {
+        int index = Collections.binarySearch(items, item, comparator);
+        return index >= 0 ? index + 1 : -index - 1;
+    }
+
     @Override
     protected void doOKAction() {
-        tagService.setFileTags(file, selectedTags);
+        // 只提交用户改动过的标签，部分选中且未改动的标签在各文件上保持原样
+        Set<String> tagsToAdd = new HashSet<>();
+        Set<String> tagsToRemove = new HashSet<>();
+        // 被过滤隐藏的标签也要提交
+        for (TagListItem item : allItems) {
+            if (item.state == item.initialState) {
+                continue;
+            }
+            if (item.state == ThreeStateCheckBox.State.SELECTED) {
+                tagsToAdd.add(item.tagInfo.name);
+            } else if (item.state == ThreeStateCheckBox.State.NOT_SELECTED) {
+                tagsToRemove.add(item.tagInfo.name);
+            }
+        }
+        tagService.updateFileTags(files, tagsToAdd, tagsToRemove);
         super.doOKAction();
     }
 } 
\ No newline at end of file
@@ -0,0 +1,53 @@
+package com.weakviord.filetagger.ui;
+
+import java.util.*;
+
+/**
+ * 标签名的前缀索引，供标签管理对话框的过滤框使用。除了整个名称，名称中 '-'、'_'、'/'、'.'、空格之后的
+ * 每一段也可以作为前缀匹配，输入 "review" 能找到 "needs-review"。不区分大小写。
+ */
+final class TagPrefixIndex {
+    // 键为小写的词段，值为包含该词段的标签名
+    private final TreeMap<String, Set<String>> tokens = new TreeMap<>();
+
+    void add(String name) {
+        for (String token : tokensOf(name)) {
+            tokens.computeIfAbsent(token, key -> new HashSet<>(2)).add(name);
+        }
+    }
+
+    void remove(String name) {
+        for (String token : tokensOf(name)) {
+            Set<String> names = tokens.get(token);
+            if (names != null && names.remove(name) && names.isEmpty()) {
+                tokens.remove(token);
+            }
+        }
+    }
+
+    // 只访问以该前缀开头的一段键，与标签总数无关
+    Set<String> matching(String prefix) {
+        String key = prefix.toLowerCase(Locale.ROOT);
+        Set<String> result = new HashSet<>();
+        for (Set<String> names : tokens.subMap(key, true, key + Character.MAX_VALUE, false).values()) {
+            result.addAll(names);
+        }
+        return result;
+    }
+
+    private static List<String> tokensOf(String name) {
+        String lower = name.toLowerCase(Locale.ROOT);
+        List<String> result = new ArrayList<>(2);
+        result.add(lower);
+        for (int i = 0; i < lower.length() - 1; i++) {
+            if (isSeparator(lower.charAt(i)) && !isSeparator(lower.charAt(i + 1))) {
+                result.add(lower.substring(i + 1));
+            }
+        }
+        return result;
+    }
+
+    private static boolean isSeparator(char c) {
+        return c == '-' || c == '_' || c == '/' || c == '.' || c == ' ';
+    }
+}
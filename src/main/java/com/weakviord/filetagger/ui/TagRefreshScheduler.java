@@ -0,0 +1,227 @@
+package com.weakviord.filetagger.ui;
+
+import com.intellij.ide.projectView.ProjectView;
+import com.intellij.ide.projectView.impl.AbstractProjectViewPane;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiDirectory;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiManager;
+import com.intellij.util.Alarm;
+import com.intellij.util.ui.update.MergingUpdateQueue;
+import com.intellij.util.ui.update.Update;
+import com.weakviord.filetagger.service.TagChangeEvent;
+import com.weakviord.filetagger.service.TagMetrics;
+
+import java.util.*;
+
+/**
+ * 合并短时间内的多次刷新请求，只刷新受影响的项目视图节点。
+ */
+@Service(Service.Level.PROJECT)
+public final class TagRefreshScheduler implements Disposable {
+    private static final int MERGE_DELAY_MS = 150;
+    // 受影响节点过多时，逐个刷新反而比整体刷新更慢
+    private static final int MAX_TARGETED_UPDATES = 200;
+
+    private final Project project;
+    private final MergingUpdateQueue queue;
+    private final Object lock = new Object();
+    private Set<VirtualFile> pendingFiles = new HashSet<>();
+    private Set<String> pendingPaths = new HashSet<>();
+    private boolean fullRefreshPending;
+
+    public TagRefreshScheduler(Project project) {
+        this.project = project;
+        this.queue = new MergingUpdateQueue("FileTaggerRefresh", MERGE_DELAY_MS, true, null, this, null,
+            Alarm.ThreadToUse.SWING_THREAD);
+    }
+
+    public void refreshFile(VirtualFile file) {
+        synchronized (lock) {
+            pendingFiles.add(file);
+        }
+        schedule();
+    }
+
+    // 适用于只知道路径的场景，例如删除标签时受影响的文件
+    public void refreshPaths(Collection<String> paths) {
+        synchronized (lock) {
+            if (pendingPaths.size() + paths.size() > MAX_TARGETED_UPDATES) {
+                fullRefreshPending = true;
+            } else {
+                pendingPaths.addAll(paths);
+            }
+        }
+        schedule();
+    }
+
+    // 标签外观整体变化（重命名、改色）时使用
+    public void refreshAll() {
+        synchronized (lock) {
+            fullRefreshPending = true;
+        }
+        schedule();
+    }
+
+    // 按一批修改的内容安排刷新：标签外观变化时整体刷新，否则只刷新标签变化、被删除、移走和移动到的路径
+    void refresh(TagChangeEvent event) {
+        if (event.isReloaded() || event.isRulesChanged() || !event.getRenamedTags().isEmpty() || !event.getRecoloredTags().isEmpty()) {
+            refreshAll();
+            return;
+        }
+        List<String> paths = new ArrayList<>(event.getChangedFiles());
+        // 删除和移走的路径已经不存在，刷新时落到仍存在的祖先目录上，它们显示的计数也变了
+        paths.addAll(event.getRemovedPaths());
+        for (TagChangeEvent.PathRemap remap : event.getRemappedPaths()) {
+            paths.add(remap.oldPath());
+            paths.add(remap.newPath());
+        }
+        if (!paths.isEmpty()) {
+            refreshPaths(paths);
+        }
+    }
+
+    private void schedule() {
+        queue.queue(Update.create(this, this::flush));
+    }
+
+    private void flush() {
+        if (project.isDisposed()) {
+            return;
+        }
+        long start = System.nanoTime();
+        doFlush();
+        project.getService(TagMetrics.class).record(TagMetrics.Metric.REFRESH, start);
+    }
+
+    private void doFlush() {
+        Set<VirtualFile> files;
+        Set<String> paths;
+        boolean fullRefresh;
+        synchronized (lock) {
+            files = pendingFiles;
+            paths = pendingPaths;
+            fullRefresh = fullRefreshPending || files.size() + paths.size() > MAX_TARGETED_UPDATES;
+            pendingFiles = new HashSet<>();
+            pendingPaths = new HashSet<>();
+            fullRefreshPending = false;
+        }
+
+        ProjectView projectView = ProjectView.getInstance(project);
+        TagMetrics metrics = project.getService(TagMetrics.class);
+        if (fullRefresh) {
+            metrics.recordRefresh(true, 0);
+            projectView.refresh();
+            return;
+        }
+
+        LocalFileSystem fileSystem = LocalFileSystem.getInstance();
+        // 已删除或移走的路径找不到文件，改为刷新仍存在的最近祖先目录
+        Set<VirtualFile> vanishedParents = new HashSet<>();
+        for (String path : paths) {
+            VirtualFile file = fileSystem.findFileByPath(path);
+            if (file != null) {
+                files.add(file);
+            } else {
+                VirtualFile parent = findExistingAncestor(fileSystem, path);
+                if (parent != null) {
+                    vanishedParents.add(parent);
+                }
+            }
+        }
+        if (files.isEmpty() && vanishedParents.isEmpty()) {
+            return;
+        }
+
+        PsiManager psiManager = PsiManager.getInstance(project);
+        List<PsiElement> elements = new ArrayList<>(files.size());
+        for (VirtualFile file : files) {
+            PsiElement element = findElement(psiManager, file);
+            if (element != null) {
+                elements.add(element);
+            }
+        }
+        // 目录节点上显示其下带标签文件的数量，祖先目录只需重新装饰自身
+        List<PsiElement> ancestors = new ArrayList<>();
+        for (VirtualFile directory : collectAncestors(files, vanishedParents)) {
+            PsiElement element = findElement(psiManager, directory);
+            if (element != null) {
+                ancestors.add(element);
+            }
+        }
+
+        metrics.recordRefresh(false, elements.size() + ancestors.size());
+        for (String paneId : projectView.getPaneIds()) {
+            AbstractProjectViewPane pane = projectView.getProjectViewPaneById(paneId);
+            if (pane == null) {
+                continue;
+            }
+            for (PsiElement element : elements) {
+                // 目录需要连同子树一起更新，文件只需重新装饰自身
+                pane.updateFrom(element, false, element instanceof PsiDirectory);
+            }
+            for (PsiElement element : ancestors) {
+                pane.updateFrom(element, false, false);
+            }
+        }
+    }
+
+    private static PsiElement findElement(PsiManager psiManager, VirtualFile file) {
+        if (!file.isValid()) {
+            return null;
+        }
+        return file.isDirectory() ? psiManager.findDirectory(file) : psiManager.findFile(file);
+    }
+
+    private static VirtualFile findExistingAncestor(LocalFileSystem fileSystem, String path) {
+        for (int slash = path.lastIndexOf('/'); slash > 0; slash = path.lastIndexOf('/')) {
+            path = path.substring(0, slash);
+            VirtualFile file = fileSystem.findFileByPath(path);
+            if (file != null) {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    // 项目目录内的祖先目录，已经在 files 中的不重复刷新；directories 中的目录自身也算在内
+    private Set<VirtualFile> collectAncestors(Set<VirtualFile> files, Set<VirtualFile> directories) {
+        Set<VirtualFile> ancestors = new HashSet<>();
+        String basePath = project.getBasePath();
+        if (basePath == null) {
+            return ancestors;
+        }
+        for (VirtualFile file : files) {
+            addAncestors(file.getParent(), basePath, files, ancestors);
+        }
+        for (VirtualFile directory : directories) {
+            addAncestors(directory, basePath, files, ancestors);
+        }
+        return ancestors;
+    }
+
+    // 按目录边界比较，/project-other 不在 /project 之内
+    private static void addAncestors(VirtualFile directory, String basePath, Set<VirtualFile> files, Set<VirtualFile> ancestors) {
+        VirtualFile parent = directory;
+        while (parent != null && isUnder(parent.getPath(), basePath)
+            && !files.contains(parent) && ancestors.add(parent)) {
+            parent = parent.getParent();
+        }
+    }
+
+    private static boolean isUnder(String path, String basePath) {
+        return path.equals(basePath) || path.startsWith(basePath + "/");
+    }
+
+    @Override
+    public void dispose() {
+        synchronized (lock) {
+            pendingFiles.clear();
+            pendingPaths.clear();
+        }
+    }
+}
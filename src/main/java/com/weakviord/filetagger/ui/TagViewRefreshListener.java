@@ -0,0 +1,22 @@
+package com.weakviord.filetagger.ui;
+
+import com.intellij.openapi.project.Project;
+import com.weakviord.filetagger.service.TagChangeEvent;
+import com.weakviord.filetagger.service.TagChangeListener;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * 根据标签变化通知刷新项目视图中受影响的节点。
+ */
+public final class TagViewRefreshListener implements TagChangeListener {
+    private final Project project;
+
+    public TagViewRefreshListener(Project project) {
+        this.project = project;
+    }
+
+    @Override
+    public void tagsChanged(@NotNull TagChangeEvent event) {
+        project.getService(TagRefreshScheduler.class).refresh(event);
+    }
+}
@@ -0,0 +1,101 @@
+package com.weakviord.filetagger.ui;
+
+import com.intellij.ide.util.treeView.NodeDescriptor;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.fileEditor.FileEditorManager;
+import com.intellij.openapi.project.DumbAware;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.wm.ToolWindow;
+import com.intellij.openapi.wm.ToolWindowFactory;
+import com.intellij.ui.DocumentAdapter;
+import com.intellij.ui.DoubleClickListener;
+import com.intellij.ui.SearchTextField;
+import com.intellij.ui.components.JBScrollPane;
+import com.intellij.ui.content.Content;
+import com.intellij.ui.content.ContentFactory;
+import com.intellij.ui.tree.AsyncTreeModel;
+import com.intellij.ui.tree.StructureTreeModel;
+import com.intellij.ui.treeStructure.Tree;
+import com.intellij.util.Alarm;
+import com.intellij.util.ui.tree.TreeUtil;
+import com.weakviord.filetagger.service.TagChangeEvent;
+import com.weakviord.filetagger.service.TagChangeListener;
+import org.jetbrains.annotations.NotNull;
+
+import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import java.awt.*;
+import java.awt.event.MouseEvent;
+
+/**
+ * 按标签和目录浏览带标签的文件。子节点和过滤都在后台计算，标签变化时只重新加载受影响的节点。
+ */
+public class TaggedFilesToolWindowFactory implements ToolWindowFactory, DumbAware {
+    // 输入过滤条件时等停顿后再重新计算
+    private static final int FILTER_DELAY_MS = 300;
+
+    @Override
+    public void createToolWindowContent(@NotNull Project project, @NotNull ToolWindow toolWindow) {
+        Disposable disposable = Disposer.newDisposable("Tagged Files");
+        TaggedFilesTreeStructure structure = new TaggedFilesTreeStructure(project);
+        StructureTreeModel<TaggedFilesTreeStructure> structureModel = new StructureTreeModel<>(structure, disposable);
+        Tree tree = new Tree(new AsyncTreeModel(structureModel, disposable));
+        tree.setRootVisible(false);
+        tree.setShowsRootHandles(true);
+
+        new DoubleClickListener() {
+            @Override
+            protected boolean onDoubleClick(@NotNull MouseEvent event) {
+                Object element = TreeUtil.getLastUserObject(tree.getSelectionPath());
+                if (element instanceof NodeDescriptor<?> descriptor) {
+                    element = descriptor.getElement();
+                }
+                if (element instanceof TaggedFilesTreeStructure.MoreEntry more) {
+                    structureModel.invalidate(structure.showMore(more), true);
+                    return true;
+                }
+                if (element instanceof TaggedFilesTreeStructure.FileEntry entry) {
+                    VirtualFile file = LocalFileSystem.getInstance().findFileByPath(entry.path());
+                    if (file != null) {
+                        FileEditorManager.getInstance(project).openFile(file, true);
+                    }
+                    return true;
+                }
+                return false;
+            }
+        }.installOn(tree);
+
+        Alarm filterAlarm = new Alarm(Alarm.ThreadToUse.SWING_THREAD, disposable);
+        SearchTextField filterField = new SearchTextField(false);
+        filterField.addDocumentListener(new DocumentAdapter() {
+            @Override
+            protected void textChanged(@NotNull DocumentEvent e) {
+                filterAlarm.cancelAllRequests();
+                filterAlarm.addRequest(() -> {
+                    structure.setFilter(filterField.getText());
+                    structureModel.invalidate();
+                }, FILTER_DELAY_MS);
+            }
+        });
+
+        project.getMessageBus().connect(disposable).subscribe(TagChangeListener.TOPIC, new TagChangeListener() {
+            @Override
+            public void tagsChanged(@NotNull TagChangeEvent event) {
+                for (Object element : structure.invalidate(event)) {
+                    structureModel.invalidate(element, true);
+                }
+            }
+        });
+
+        JPanel panel = new JPanel(new BorderLayout());
+        panel.add(filterField, BorderLayout.NORTH);
+        panel.add(new JBScrollPane(tree), BorderLayout.CENTER);
+
+        Content content = ContentFactory.getInstance().createContent(panel, "", false);
+        content.setDisposer(disposable);
+        toolWindow.getContentManager().addContent(content);
+    }
+}
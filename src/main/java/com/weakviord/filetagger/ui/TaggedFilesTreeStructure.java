@@ -0,0 +1,314 @@
+package com.weakviord.filetagger.ui;
+
+import com.intellij.icons.AllIcons;
+import com.intellij.ide.projectView.PresentationData;
+import com.intellij.ide.util.treeView.AbstractTreeStructure;
+import com.intellij.ide.util.treeView.NodeDescriptor;
+import com.intellij.ide.util.treeView.PresentableNodeDescriptor;
+import com.intellij.openapi.fileTypes.FileTypeManager;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.ui.SimpleTextAttributes;
+import com.intellij.util.ArrayUtil;
+import com.weakviord.filetagger.service.TagChangeEvent;
+import com.weakviord.filetagger.service.TagSnapshot;
+import com.weakviord.filetagger.service.TagStorageService;
+import com.weakviord.filetagger.service.TagStorageService.TagInfo;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tagged Files 工具窗口的树结构：标签 → 目录 → 文件。子节点在 StructureTreeModel 的后台线程上按需计算，
+ * 每个标签的文件按目录分组后缓存，标签变化时只丢弃受影响标签的缓存；子节点过多时分页，最后一项为 "more"。
+ */
+final class TaggedFilesTreeStructure extends AbstractTreeStructure {
+    // 每页的子节点数，双击 "more" 再显示一页
+    static final int PAGE_SIZE = 500;
+
+    private static final Object ROOT = new Object();
+
+    record TagGroup(String tag) {
+    }
+
+    record DirectoryGroup(String tag, String directory) {
+    }
+
+    record FileEntry(String tag, String directory, String path) {
+    }
+
+    record MoreEntry(Object parent, int hidden) {
+    }
+
+    // 一个标签的文件按目录分组，目录和文件都已排序
+    private static final class TagFiles {
+        final TreeMap<String, List<String>> byDirectory = new TreeMap<>();
+        final Set<String> paths = new HashSet<>();
+    }
+
+    private final Project project;
+    private final @Nullable String basePath;
+    private final Map<String, TagFiles> cache = new ConcurrentHashMap<>();
+    // 每次丢弃缓存时加一，由 cache 的锁保护。后台扫描开始后缓存被丢弃过时，扫描结果只用于这一次，不写回缓存
+    private long cacheGeneration;
+    private final Map<Object, Integer> pageLimits = new ConcurrentHashMap<>();
+    // 按文件路径过滤，不区分大小写；空字符串表示不过滤
+    private volatile String filter = "";
+
+    TaggedFilesTreeStructure(Project project) {
+        this.project = project;
+        this.basePath = project.getBasePath();
+    }
+
+    void setFilter(String filter) {
+        this.filter = filter.trim().toLowerCase(Locale.ROOT);
+        clearCache();
+        pageLimits.clear();
+    }
+
+    // 再显示一页，返回需要刷新的父节点
+    Object showMore(MoreEntry more) {
+        pageLimits.merge(more.parent(), PAGE_SIZE, Integer::sum);
+        return more.parent();
+    }
+
+    // 返回需要重新加载子节点的元素；根节点总在其中，标签计数可能变化
+    List<Object> invalidate(TagChangeEvent event) {
+        List<Object> elements = new ArrayList<>();
+        elements.add(ROOT);
+        if (event.isReloaded() || !event.getRenamedTags().isEmpty() || !event.getDeletedTags().isEmpty()
+            || !event.getRemappedPaths().isEmpty() || !event.getRemovedPaths().isEmpty()) {
+            clearCache();
+            return elements;
+        }
+        // 文件去掉的标签只能从缓存中看出来，新加的标签从快照中读取
+        Set<String> affectedTags = new HashSet<>();
+        TagStorageService tagService = getTagService();
+        TagSnapshot snapshot = tagService.getSnapshot();
+        for (String path : event.getChangedFiles()) {
+            for (Map.Entry<String, TagFiles> entry : cache.entrySet()) {
+                if (entry.getValue().paths.contains(path)) {
+                    affectedTags.add(entry.getKey());
+                }
+            }
+            affectedTags.addAll(snapshot.getFileTags(path));
+            affectedTags.addAll(snapshot.getContentTags(path));
+        }
+        synchronized (cache) {
+            cacheGeneration++;
+            cache.keySet().removeAll(affectedTags);
+        }
+        for (String tag : affectedTags) {
+            elements.add(new TagGroup(tag));
+            // 已展开的目录节点也要重新加载文件列表，不在树中的元素会被忽略
+            for (String path : event.getChangedFiles()) {
+                elements.add(new DirectoryGroup(tag, directoryOf(path)));
+            }
+        }
+        return elements;
+    }
+
+    private void clearCache() {
+        synchronized (cache) {
+            cacheGeneration++;
+            cache.clear();
+        }
+    }
+
+    @Override
+    public @NotNull Object getRootElement() {
+        return ROOT;
+    }
+
+    @Override
+    public Object @NotNull [] getChildElements(@NotNull Object element) {
+        if (element == ROOT) {
+            return tagGroups();
+        }
+        if (element instanceof TagGroup group) {
+            List<Object> directories = new ArrayList<>();
+            for (String directory : tagFiles(group.tag()).byDirectory.keySet()) {
+                directories.add(new DirectoryGroup(group.tag(), directory));
+            }
+            return page(element, directories);
+        }
+        if (element instanceof DirectoryGroup group) {
+            List<String> paths = tagFiles(group.tag()).byDirectory.getOrDefault(group.directory(), Collections.emptyList());
+            List<Object> files = new ArrayList<>(paths.size());
+            for (String path : paths) {
+                files.add(new FileEntry(group.tag(), group.directory(), path));
+            }
+            return page(element, files);
+        }
+        return ArrayUtil.EMPTY_OBJECT_ARRAY;
+    }
+
+    // 有文件的标签按文件数降序，数量相同时按创建顺序
+    private Object[] tagGroups() {
+        TagSnapshot snapshot = getTagService().getIndexedSnapshot();
+        List<TagInfo> tags = new ArrayList<>();
+        Map<String, Integer> counts = new HashMap<>();
+        for (TagInfo tagInfo : snapshot.getAllTags()) {
+            if (snapshot.getTagUsageCount(tagInfo.name) > 0) {
+                int count = fileCount(snapshot, tagInfo.name);
+                if (count > 0) {
+                    tags.add(tagInfo);
+                    counts.put(tagInfo.name, count);
+                }
+            }
+        }
+        tags.sort(Comparator.comparingInt((TagInfo tagInfo) -> -counts.get(tagInfo.name))
+            .thenComparingLong(tagInfo -> tagInfo.order));
+        Object[] groups = new Object[tags.size()];
+        for (int i = 0; i < groups.length; i++) {
+            groups[i] = new TagGroup(tags.get(i).name);
+        }
+        return groups;
+    }
+
+    // 标签节点上显示的文件数；有过滤条件时是过滤后的数量
+    private int fileCount(TagSnapshot snapshot, String tag) {
+        return filter.isEmpty() ? snapshot.getTagUsageCount(tag) : tagFiles(tag).paths.size();
+    }
+
+    private Object[] page(Object parent, List<Object> children) {
+        int limit = pageLimits.getOrDefault(parent, PAGE_SIZE);
+        if (children.size() <= limit) {
+            return children.toArray();
+        }
+        Object[] page = children.subList(0, limit + 1).toArray();
+        page[limit] = new MoreEntry(parent, children.size() - limit);
+        return page;
+    }
+
+    // 在后台线程上调用；结果数量较大时可以被取消
+    private TagFiles tagFiles(String tag) {
+        TagFiles files = cache.get(tag);
+        if (files != null) {
+            return files;
+        }
+        long generation;
+        synchronized (cache) {
+            generation = cacheGeneration;
+        }
+        files = new TagFiles();
+        String currentFilter = filter;
+        int visited = 0;
+        for (String path : getTagService().getFilesWithTag(tag)) {
+            if (++visited % 1000 == 0) {
+                ProgressManager.checkCanceled();
+            }
+            if (!currentFilter.isEmpty() && !relativize(path).toLowerCase(Locale.ROOT).contains(currentFilter)) {
+                continue;
+            }
+            files.byDirectory.computeIfAbsent(directoryOf(path), key -> new ArrayList<>()).add(path);
+            files.paths.add(path);
+        }
+        for (List<String> paths : files.byDirectory.values()) {
+            paths.sort(null);
+        }
+        synchronized (cache) {
+            if (generation == cacheGeneration) {
+                cache.put(tag, files);
+            }
+        }
+        return files;
+    }
+
+    @Override
+    public @Nullable Object getParentElement(@NotNull Object element) {
+        if (element instanceof TagGroup) {
+            return ROOT;
+        }
+        if (element instanceof DirectoryGroup group) {
+            return new TagGroup(group.tag());
+        }
+        if (element instanceof FileEntry entry) {
+            return new DirectoryGroup(entry.tag(), entry.directory());
+        }
+        if (element instanceof MoreEntry more) {
+            return more.parent();
+        }
+        return null;
+    }
+
+    @Override
+    public @NotNull NodeDescriptor<?> createDescriptor(@NotNull Object element, @Nullable NodeDescriptor parentDescriptor) {
+        return new Descriptor(project, parentDescriptor, element);
+    }
+
+    @Override
+    public void commit() {
+    }
+
+    @Override
+    public boolean hasSomethingToCommit() {
+        return false;
+    }
+
+    @Override
+    public boolean isAlwaysLeaf(@NotNull Object element) {
+        return element instanceof FileEntry || element instanceof MoreEntry;
+    }
+
+    private static String directoryOf(String path) {
+        int slash = path.lastIndexOf('/');
+        return slash > 0 ? path.substring(0, slash) : "/";
+    }
+
+    String relativize(String path) {
+        if (basePath != null && path.startsWith(basePath + "/")) {
+            return path.substring(basePath.length() + 1);
+        }
+        return path;
+    }
+
+    private TagStorageService getTagService() {
+        return project.getService(TagStorageService.class);
+    }
+
+    // 在后台线程上更新显示内容，只读快照和分组；有过滤条件时分组已由 tagGroups 算好
+    private final class Descriptor extends PresentableNodeDescriptor<Object> {
+        private final Object element;
+
+        Descriptor(Project project, @Nullable NodeDescriptor parentDescriptor, Object element) {
+            super(project, parentDescriptor);
+            this.element = element;
+        }
+
+        @Override
+        protected void update(@NotNull PresentationData presentation) {
+            if (element instanceof TagGroup group) {
+                TagSnapshot snapshot = getTagService().getSnapshot();
+                TagInfo tagInfo = snapshot.getTagInfo(group.tag());
+                presentation.setIcon(AllIcons.Nodes.Tag);
+                presentation.addText(group.tag(), tagInfo == null ? SimpleTextAttributes.REGULAR_BOLD_ATTRIBUTES
+                    : new SimpleTextAttributes(SimpleTextAttributes.STYLE_BOLD, tagInfo.getColor()));
+                presentation.addText("  " + fileCount(snapshot, group.tag()), SimpleTextAttributes.GRAYED_ATTRIBUTES);
+            } else if (element instanceof DirectoryGroup group) {
+                presentation.setIcon(AllIcons.Nodes.Folder);
+                String directory = group.directory();
+                presentation.addText(directory.equals(basePath) ? "<project root>" : relativize(directory),
+                    SimpleTextAttributes.REGULAR_ATTRIBUTES);
+                TagFiles files = cache.get(group.tag());
+                List<String> paths = files == null ? null : files.byDirectory.get(directory);
+                if (paths != null) {
+                    presentation.addText("  " + paths.size(), SimpleTextAttributes.GRAYED_ATTRIBUTES);
+                }
+            } else if (element instanceof FileEntry entry) {
+                String name = entry.path().substring(entry.path().lastIndexOf('/') + 1);
+                presentation.setIcon(FileTypeManager.getInstance().getFileTypeByFileName(name).getIcon());
+                presentation.addText(name, SimpleTextAttributes.REGULAR_ATTRIBUTES);
+            } else if (element instanceof MoreEntry more) {
+                presentation.addText(more.hidden() + " more...", SimpleTextAttributes.LINK_ATTRIBUTES);
+            }
+        }
+
+        @Override
+        public Object getElement() {
+            return element;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.weakviord.filetagger.service;
+
+import com.weakviord.filetagger.service.TagStorageService.AutoTagRule;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class AutoTagMatcherTest {
+    private static AutoTagMatcher compile(String... patternsAndTags) {
+        AutoTagRule[] rules = new AutoTagRule[patternsAndTags.length / 2];
+        for (int i = 0; i < rules.length; i++) {
+            rules[i] = new AutoTagRule(patternsAndTags[2 * i], patternsAndTags[2 * i + 1]);
+        }
+        return AutoTagMatcher.compile(List.of(rules), "/p");
+    }
+
+    @Test
+    public void segmentWildcardsAndAnyDepth() {
+        AutoTagMatcher matcher = compile("*Benchmark.java", "perf", "/src/*/api/**/*.java", "api", "docs/?.md", "doc");
+        assertEquals(Set.of("perf"), matcher.match("/p/a/b/TagBenchmark.java"));
+        assertEquals(Set.of("api"), matcher.match("/p/src/core/api/A.java"));
+        assertEquals(Set.of("api"), matcher.match("/p/src/core/api/x/y/A.java"));
+        assertEquals(Set.of(), matcher.match("/p/lib/src/core/api/A.java"));
+        assertEquals(Set.of("doc"), matcher.match("/p/docs/a.md"));
+        assertEquals(Set.of(), matcher.match("/p/docs/ab.md"));
+    }
+
+    // 与 gitignore 相同，结尾的 "**" 只匹配目录之下的路径
+    @Test
+    public void trailingAnyDepthMatchesOnlyDescendants() {
+        AutoTagMatcher matcher = compile("**/generated/**", "generated", "/build/**", "build");
+        assertEquals(Set.of(), matcher.match("/p/generated"));
+        assertEquals(Set.of(), matcher.match("/p/src/generated"));
+        assertEquals(Set.of("generated"), matcher.match("/p/src/generated/A.java"));
+        assertEquals(Set.of("generated"), matcher.match("/p/generated/x/y/B.java"));
+        assertEquals(Set.of(), matcher.match("/p/build"));
+        assertEquals(Set.of("build"), matcher.match("/p/build/out"));
+    }
+}
@@ -0,0 +1,8 @@
+package com.weakviord.filetagger.service;
+
+/**
+ * JUnit 分类：结果取决于机器速度或 GC 时机的预算测试（耗时、保留的堆大小）。
+ * 默认的 test 任务不运行，用 ./gradlew budgetTest 单独运行；分配量的预算是确定的，仍在 test 中检查。
+ */
+public interface MachineDependent {
+}
@@ -0,0 +1,145 @@
+package com.weakviord.filetagger.service;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class PathTrieTest {
+    private static final TagBits A = TagBits.of(0);
+    private static final TagBits B = TagBits.of(1);
+    private static final TagBits C = TagBits.of(2);
+
+    private static Map<String, TagBits> dump(PathTrie trie) {
+        Map<String, TagBits> entries = new TreeMap<>();
+        trie.forEach(entries::put);
+        return entries;
+    }
+
+    @Test
+    public void putGetAndRemove() {
+        PathTrie trie = PathTrie.EMPTY.put("/p/a/x.txt", A).put("/p/a/y.txt", B).put("/p/b", C);
+        assertEquals(3, trie.size());
+        assertEquals(A, trie.get("/p/a/x.txt"));
+        assertNull(trie.get("/p/a"));
+        assertEquals(2, trie.countUnder("/p/a"));
+        assertEquals(3, trie.countUnder("/p"));
+
+        PathTrie removed = trie.remove("/p/a/x.txt");
+        assertEquals(2, removed.size());
+        assertNull(removed.get("/p/a/x.txt"));
+        // 旧版本不受影响
+        assertEquals(A, trie.get("/p/a/x.txt"));
+    }
+
+    @Test
+    public void moveToNewPath() {
+        PathTrie trie = PathTrie.EMPTY.put("/p/a/x.txt", A).put("/p/a/sub/y.txt", B).put("/p/other.txt", C);
+        PathTrie moved = trie.move("/p/a", "/p/renamed");
+        assertEquals(Map.of("/p/renamed/x.txt", A, "/p/renamed/sub/y.txt", B, "/p/other.txt", C), dump(moved));
+        assertEquals(0, moved.countUnder("/p/a"));
+    }
+
+    @Test
+    public void moveMergesIntoExistingSubtreeAndMovedEntriesWin() {
+        PathTrie trie = PathTrie.EMPTY
+            .put("/p/a/x.txt", A)
+            .put("/p/a/y.txt", B)
+            .put("/p/b/x.txt", C)
+            .put("/p/b/z.txt", C)
+            .put("/p/b", A);
+        PathTrie moved = trie.move("/p/a", "/p/b");
+        Map<String, TagBits> expected = new TreeMap<>();
+        expected.put("/p/b", A);
+        expected.put("/p/b/x.txt", A);
+        expected.put("/p/b/y.txt", B);
+        expected.put("/p/b/z.txt", C);
+        assertEquals(expected, dump(moved));
+        assertEquals(4, moved.size());
+        assertEquals(4, moved.countUnder("/p/b"));
+    }
+
+    @Test
+    public void moveOfUntaggedPathIsNoOp() {
+        PathTrie trie = PathTrie.EMPTY.put("/p/a/x.txt", A);
+        assertSame(trie, trie.move("/p/missing", "/p/elsewhere"));
+        assertSame(trie, trie.move("/p/a", "/p/a"));
+    }
+
+    @Test
+    public void putAllCombinesOverlappingEntries() {
+        PathTrie target = PathTrie.EMPTY.put("/p/a/x.txt", A).put("/p/a/y.txt", B);
+        PathTrie source = PathTrie.EMPTY.put("/p/a/x.txt", B).put("/p/c/z.txt", C);
+        PathTrie merged = target.putAll(source, TagBits::or);
+        Map<String, TagBits> expected = new TreeMap<>();
+        expected.put("/p/a/x.txt", A.or(B));
+        expected.put("/p/a/y.txt", B);
+        expected.put("/p/c/z.txt", C);
+        assertEquals(expected, dump(merged));
+        assertEquals(3, merged.size());
+    }
+
+    @Test
+    public void removeSubtreeDropsDescendants() {
+        PathTrie trie = PathTrie.EMPTY.put("/p/a", A).put("/p/a/x.txt", B).put("/p/ab.txt", C);
+        PathTrie removed = trie.removeSubtree("/p/a");
+        assertEquals(Map.of("/p/ab.txt", C), dump(removed));
+    }
+
+    @Test
+    public void forEachContainingAllPrunesByTags() {
+        PathTrie trie = PathTrie.EMPTY.put("/p/a/x.txt", A.or(B)).put("/p/a/y.txt", A).put("/p/b/z.txt", B);
+        List<String> paths = new ArrayList<>();
+        trie.forEachContainingAll(A.or(B), (path, tags) -> paths.add(path));
+        assertEquals(List.of("/p/a/x.txt"), paths);
+    }
+
+    @Test
+    public void buildMatchesIncrementalPuts() {
+        Map<String, TagBits> entries = new HashMap<>();
+        Random random = new Random(7);
+        PathTrie incremental = PathTrie.EMPTY;
+        for (int i = 0; i < 2000; i++) {
+            String path = "/p/d" + random.nextInt(20) + "/s" + random.nextInt(5) + "/f" + i;
+            TagBits tags = TagBits.of(random.nextInt(70));
+            entries.put(path, tags);
+            incremental = incremental.put(path, tags);
+        }
+        PathTrie built = PathTrie.build(entries, bits -> bits);
+        assertEquals(dump(incremental), dump(built));
+        assertEquals(new TreeMap<>(entries), dump(built));
+    }
+
+    // 随机修改后，forEachChangedPath 至少要报告所有标签实际变化的路径
+    @Test
+    public void changedPathsCoverRandomEdits() {
+        Random random = new Random(3);
+        Map<String, TagBits> entries = new HashMap<>();
+        for (int i = 0; i < 5000; i++) {
+            entries.put("/p/d" + i % 17 + "/s" + i % 5 + "/f" + i, TagBits.of(random.nextInt(4)));
+        }
+        PathTrie current = PathTrie.build(entries, bits -> bits);
+        for (int round = 0; round < 300; round++) {
+            PathTrie older = current;
+            String path = "/p/d" + random.nextInt(17) + "/s" + random.nextInt(5) + "/f" + random.nextInt(6000);
+            switch (random.nextInt(4)) {
+                case 0 -> current = current.put(path, TagBits.of(random.nextInt(4)));
+                case 1 -> current = current.remove(path);
+                case 2 -> current = current.move("/p/d" + random.nextInt(17) + "/s" + random.nextInt(5),
+                    "/p/d" + random.nextInt(17) + "/s" + (5 + random.nextInt(3)));
+                default -> current = current.removeSubtree("/p/d" + random.nextInt(17) + "/s" + random.nextInt(8));
+            }
+            Set<String> reported = new HashSet<>();
+            current.forEachChangedPath(older, reported::add);
+            assertTrue("round " + round, reported.containsAll(changedPaths(dump(older), dump(current))));
+        }
+    }
+
+    static Set<String> changedPaths(Map<String, TagBits> older, Map<String, TagBits> newer) {
+        Set<String> paths = new HashSet<>(older.keySet());
+        paths.addAll(newer.keySet());
+        paths.removeIf(path -> Objects.equals(older.get(path), newer.get(path)));
+        return paths;
+    }
+}
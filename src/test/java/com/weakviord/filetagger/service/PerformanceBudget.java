@@ -0,0 +1,77 @@
+package com.weakviord.filetagger.service;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.fail;
+
+/**
+ * 性能预算断言：先预热，再取多次运行的中位数，超出预算时让测试失败。
+ * 预算按 -Dfiletagger.budgetScale 放大，机器较慢时可以整体放宽而不必修改测试。
+ */
+public final class PerformanceBudget {
+    private static final int WARMUP_RUNS = 3;
+    private static final int MEASURED_RUNS = 5;
+    private static final double SCALE = Double.parseDouble(System.getProperty("filetagger.budgetScale", "1"));
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private PerformanceBudget() {
+    }
+
+    // 返回最后一次运行的结果，防止被优化掉
+    public static <T> T assertTime(String name, double budgetMillis, Supplier<T> action) {
+        T result = null;
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            result = action.get();
+        }
+        long[] nanos = new long[MEASURED_RUNS];
+        for (int i = 0; i < MEASURED_RUNS; i++) {
+            long start = System.nanoTime();
+            result = action.get();
+            nanos[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(nanos);
+        double median = nanos[MEASURED_RUNS / 2] / 1e6;
+        if (median > budgetMillis * SCALE) {
+            fail(String.format("%s took %.2f ms, budget %.2f ms", name, median, budgetMillis * SCALE));
+        }
+        return result;
+    }
+
+    // 当前线程在一次运行中分配的字节数，取预热后的最小值
+    public static <T> T assertAllocation(String name, long budgetBytes, Supplier<T> action) {
+        T result = null;
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            result = action.get();
+        }
+        long min = Long.MAX_VALUE;
+        long thread = Thread.currentThread().getId();
+        for (int i = 0; i < MEASURED_RUNS; i++) {
+            long before = THREADS.getThreadAllocatedBytes(thread);
+            result = action.get();
+            min = Math.min(min, THREADS.getThreadAllocatedBytes(thread) - before);
+        }
+        if (min > budgetBytes * SCALE) {
+            fail(String.format("%s allocated %,d bytes, budget %,d bytes", name, min, (long) (budgetBytes * SCALE)));
+        }
+        return result;
+    }
+
+    // 完整 GC 之后的已用堆大小，用于估算数据结构的保留大小
+    public static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,104 @@
+package com.weakviord.filetagger.service;
+
+import org.junit.Test;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PostingBitmapTest {
+    private static PostingBitmap build(BitSet bits) {
+        PostingBitmap.Builder builder = new PostingBitmap.Builder();
+        for (int id = bits.nextSetBit(0); id >= 0; id = bits.nextSetBit(id + 1)) {
+            builder.add(id);
+        }
+        return builder.build();
+    }
+
+    private static BitSet toBitSet(PostingBitmap bitmap) {
+        BitSet bits = new BitSet();
+        for (int id = bitmap.nextSetBit(0); id >= 0; id = bitmap.nextSetBit(id + 1)) {
+            bits.set(id);
+        }
+        return bits;
+    }
+
+    // 稀疏的块存为数组，稠密的块存为位图，两种都要覆盖
+    private static BitSet random(Random random, int blocks, double density) {
+        BitSet bits = new BitSet();
+        for (int id = 0; id < blocks << 16; id++) {
+            if (random.nextDouble() < density * (1 + (id >>> 16) % 3)) {
+                bits.set(id);
+            }
+        }
+        return bits;
+    }
+
+    @Test
+    public void roundTripsArrayAndBitmapBlocks() {
+        Random random = new Random(11);
+        for (double density : new double[]{0.001, 0.03, 0.3}) {
+            BitSet expected = random(random, 4, density);
+            PostingBitmap bitmap = build(expected);
+            assertEquals(expected.cardinality(), bitmap.cardinality());
+            assertEquals(expected, toBitSet(bitmap));
+            for (int id = 0; id < 4 << 16; id += 97) {
+                assertEquals(expected.get(id), bitmap.contains(id));
+            }
+        }
+    }
+
+    @Test
+    public void setOperationsMatchBitSet() {
+        Random random = new Random(13);
+        for (double leftDensity : new double[]{0.002, 0.2}) {
+            for (double rightDensity : new double[]{0.002, 0.2}) {
+                BitSet left = random(random, 3, leftDensity);
+                BitSet right = random(random, 3, rightDensity);
+                PostingBitmap a = build(left);
+                PostingBitmap b = build(right);
+
+                BitSet and = (BitSet) left.clone();
+                and.and(right);
+                assertEquals(and, toBitSet(a.and(b)));
+                assertEquals(and.cardinality(), a.and(b).cardinality());
+
+                BitSet or = (BitSet) left.clone();
+                or.or(right);
+                assertEquals(or, toBitSet(a.or(b)));
+                assertEquals(or.cardinality(), a.or(b).cardinality());
+
+                BitSet andNot = (BitSet) left.clone();
+                andNot.andNot(right);
+                assertEquals(andNot, toBitSet(a.andNot(b)));
+                assertEquals(andNot.cardinality(), a.andNot(b).cardinality());
+            }
+        }
+    }
+
+    @Test
+    public void selectReturnsNthElement() {
+        BitSet expected = random(new Random(17), 3, 0.05);
+        PostingBitmap bitmap = build(expected);
+        int rank = 0;
+        for (int id = expected.nextSetBit(0); id >= 0; id = expected.nextSetBit(id + 1), rank++) {
+            if (rank % 101 == 0) {
+                assertEquals(id, bitmap.select(rank));
+            }
+        }
+        assertEquals(-1, bitmap.select(rank));
+        assertEquals(-1, bitmap.select(-1));
+    }
+
+    @Test
+    public void emptyBitmap() {
+        assertTrue(PostingBitmap.EMPTY.isEmpty());
+        assertEquals(0, PostingBitmap.EMPTY.cardinality());
+        assertEquals(-1, PostingBitmap.EMPTY.nextSetBit(0));
+        PostingBitmap some = build(BitSet.valueOf(new long[]{0b1011}));
+        assertEquals(some.cardinality(), some.or(PostingBitmap.EMPTY).cardinality());
+        assertTrue(some.and(PostingBitmap.EMPTY).isEmpty());
+        assertEquals(3, some.andNot(PostingBitmap.EMPTY).cardinality());
+    }
+}
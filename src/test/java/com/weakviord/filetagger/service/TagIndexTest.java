@@ -0,0 +1,116 @@
+package com.weakviord.filetagger.service;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class TagIndexTest {
+    private static final String[] NAMES = {"a", "b", "c", "d"};
+
+    private Path directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("tag-index");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        TestFiles.deleteRecursively(directory);
+    }
+
+    private static Map<String, TagBits> dump(TagIndex index) {
+        Map<String, TagBits> entries = new TreeMap<>();
+        index.forEach(entries::put);
+        return entries;
+    }
+
+    private TagIndex mapped(TagIndex index) throws IOException {
+        Path file = directory.resolve("snapshot");
+        MappedTagSnapshot.write(file, index, NAMES);
+        return TagIndex.of(MappedTagSnapshot.open(file, name -> name.charAt(0) - 'a'));
+    }
+
+    private static Map<String, TagBits> randomEntries(Random random, int count) {
+        Map<String, TagBits> entries = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            entries.put("/p/d" + i % 17 + "/s" + i % 5 + "/f" + i, TagBits.of(random.nextInt(4)));
+        }
+        return entries;
+    }
+
+    @Test
+    public void mappedSnapshotServesLookups() throws IOException {
+        TagIndex trie = TagIndex.of(PathTrie.build(randomEntries(new Random(1), 3000), bits -> bits));
+        TagIndex layered = mapped(trie);
+        assertEquals(dump(trie), dump(layered));
+        assertEquals(trie.size(), layered.size());
+        assertEquals(trie.countUnder("/p/d3"), layered.countUnder("/p/d3"));
+        assertEquals(trie.get("/p/d1/s1/f1"), layered.get("/p/d1/s1/f1"));
+    }
+
+    @Test
+    public void editsOverMappedBaseMatchPlainTrie() throws IOException {
+        Random random = new Random(5);
+        TagIndex trie = TagIndex.of(PathTrie.build(randomEntries(random, 3000), bits -> bits));
+        TagIndex layered = mapped(trie);
+        for (int round = 0; round < 200; round++) {
+            String path = "/p/d" + random.nextInt(17) + "/s" + random.nextInt(5) + "/f" + random.nextInt(4000);
+            String source = "/p/d" + random.nextInt(17) + "/s" + random.nextInt(5);
+            String target = "/p/d" + random.nextInt(17) + "/s" + (5 + random.nextInt(3));
+            switch (random.nextInt(4)) {
+                case 0 -> {
+                    TagBits tags = TagBits.of(random.nextInt(4));
+                    trie = trie.put(path, tags);
+                    layered = layered.put(path, tags);
+                }
+                case 1 -> {
+                    trie = trie.put(path, TagBits.EMPTY);
+                    layered = layered.put(path, TagBits.EMPTY);
+                }
+                case 2 -> {
+                    trie = trie.move(source, target);
+                    layered = layered.move(source, target);
+                }
+                default -> {
+                    trie = trie.removeSubtree(source);
+                    layered = layered.removeSubtree(source);
+                }
+            }
+        }
+        assertEquals(dump(trie), dump(layered));
+        assertEquals(trie.size(), layered.size());
+        assertEquals(trie.countUnder("/p/d2"), layered.countUnder("/p/d2"));
+    }
+
+    // 搜索范围按 forEachChangedPath 增量更新，这里与逐条比较的结果对照
+    @Test
+    public void changedPathsCoverEditsOnBothLayouts() throws IOException {
+        Random random = new Random(3);
+        TagIndex trie = TagIndex.of(PathTrie.build(randomEntries(random, 5000), bits -> bits));
+        for (TagIndex start : new TagIndex[]{trie, mapped(trie)}) {
+            TagIndex current = start;
+            for (int round = 0; round < 300; round++) {
+                TagIndex older = current;
+                String path = "/p/d" + random.nextInt(17) + "/s" + random.nextInt(5) + "/f" + random.nextInt(6000);
+                switch (random.nextInt(4)) {
+                    case 0 -> current = current.put(path, TagBits.of(random.nextInt(4)));
+                    case 1 -> current = current.put(path, TagBits.EMPTY);
+                    case 2 -> current = current.move("/p/d" + random.nextInt(17) + "/s" + random.nextInt(5),
+                        "/p/d" + random.nextInt(17) + "/s" + (5 + random.nextInt(3)));
+                    default -> current = current.removeSubtree("/p/d" + random.nextInt(17) + "/s" + random.nextInt(8));
+                }
+                Set<String> reported = new HashSet<>();
+                assertTrue(current.forEachChangedPath(older, reported::add));
+                assertEquals("round " + round, PathTrieTest.changedPaths(dump(older), dump(current)), reported);
+            }
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.weakviord.filetagger.service;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class TagJournalTest {
+    private Path directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("tag-journal");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        TestFiles.deleteRecursively(directory);
+    }
+
+    private List<String> load(TagJournal journal, List<MappedTagSnapshot> snapshots) throws IOException {
+        List<String> records = new ArrayList<>();
+        journal.load(new TagDictionary()::getOrAdd, snapshots::add,
+            record -> records.add(record.op() + String.join(",", record.fields())));
+        return records;
+    }
+
+    private Path journalFile(long generation) {
+        return directory.resolve("fileTagger." + generation + ".journal");
+    }
+
+    @Test
+    public void recordsSurviveReload() throws IOException {
+        TagJournal journal = new TagJournal(directory);
+        journal.append(TagJournal.ADD_TAG, "a");
+        journal.append(TagJournal.SET_FILE, "/p/x\tname", "a");
+        journal.appendAll(List.of(TagJournal.encode(TagJournal.MOVE, "/p", "/q"), TagJournal.encode(TagJournal.REMOVE, "/q/y")));
+        journal.close();
+
+        List<String> records = load(new TagJournal(directory), new ArrayList<>());
+        assertEquals(List.of("Aa", "F/p/x\tname,a", "M/p,/q", "X/q/y"), records);
+    }
+
+    @Test
+    public void tornTailIsTruncatedAndLaterAppendsAreKept() throws IOException {
+        TagJournal journal = new TagJournal(directory);
+        journal.append(TagJournal.ADD_TAG, "a");
+        journal.append(TagJournal.SET_FILE, "/p/x", "a");
+        journal.close();
+        long validSize = Files.size(journalFile(0));
+
+        // 一条校验和不对的完整记录，后面跟着写了一半的记录
+        String corrupted = TagJournal.encode(TagJournal.ADD_TAG, "b").replaceFirst("^.", "x");
+        String torn = TagJournal.encode(TagJournal.SET_FILE, "/p/y", "a");
+        Files.write(journalFile(0), (corrupted + "\n" + torn.substring(0, torn.length() / 2)).getBytes(StandardCharsets.UTF_8),
+            StandardOpenOption.APPEND);
+
+        TagJournal reloaded = new TagJournal(directory);
+        assertEquals(List.of("Aa", "F/p/x,a"), load(reloaded, new ArrayList<>()));
+        assertEquals(validSize, Files.size(journalFile(0)));
+
+        reloaded.append(TagJournal.REMOVE, "/p/x");
+        reloaded.close();
+        assertEquals(List.of("Aa", "F/p/x,a", "X/p/x"), load(new TagJournal(directory), new ArrayList<>()));
+    }
+
+    @Test
+    public void compactionStartsNewGeneration() throws IOException {
+        TagJournal journal = new TagJournal(directory);
+        journal.append(TagJournal.ADD_TAG, "a");
+        TagIndex index = TagIndex.of(PathTrie.EMPTY.put("/p/x", TagBits.of(0)).put("/p/y", TagBits.of(1)));
+        journal.compact(index, new String[]{"a", "b"});
+        journal.append(TagJournal.SET_FILE, "/p/z", "b");
+        journal.close();
+
+        assertFalse(Files.exists(journalFile(0)));
+        List<MappedTagSnapshot> snapshots = new ArrayList<>();
+        List<String> records = load(new TagJournal(directory), snapshots);
+        assertEquals(List.of("F/p/z,b"), records);
+        assertEquals(1, snapshots.size());
+        assertEquals(2, snapshots.get(0).size());
+    }
+
+    // 压缩排队期间追加的记录写入新一代，压缩完成后仍然计入日志大小
+    @Test
+    public void compactionKeepsSizeOfLaterAppends() throws IOException {
+        TagJournal journal = new TagJournal(directory);
+        journal.append(TagJournal.ADD_TAG, "a");
+        journal.compact(TagIndex.of(PathTrie.EMPTY), new String[]{"a"});
+        journal.append(TagJournal.SET_FILE, "/p/x", "a");
+        journal.append(TagJournal.SET_FILE, "/p/y", "a");
+        journal.close();
+        assertEquals(Files.size(journalFile(1)), journal.size());
+    }
+
+    // 以前开启过日志时留下的文件不能被新日志回放或追加
+    @Test
+    public void startReplacesFilesLeftFromEarlierJournal() throws IOException {
+        TagJournal stale = new TagJournal(directory);
+        stale.compact(TagIndex.of(PathTrie.EMPTY.put("/p/stale", TagBits.of(0))), new String[]{"a"});
+        stale.append(TagJournal.SET_FILE, "/p/stale2", "a");
+        stale.close();
+        assertTrue(Files.exists(journalFile(1)));
+
+        TagJournal journal = new TagJournal(directory);
+        journal.start(TagIndex.of(PathTrie.EMPTY.put("/p/current", TagBits.of(0))), new String[]{"a"});
+        journal.append(TagJournal.SET_FILE, "/p/next", "a");
+        journal.close();
+        assertFalse(Files.exists(journalFile(1)));
+        assertFalse(Files.exists(directory.resolve("fileTagger.1.snapshot")));
+
+        List<MappedTagSnapshot> snapshots = new ArrayList<>();
+        assertEquals(List.of("F/p/next,a"), load(new TagJournal(directory), snapshots));
+        Map<String, TagBits> entries = new TreeMap<>();
+        snapshots.get(0).forEach(entries::put);
+        assertEquals(Set.of("/p/current"), entries.keySet());
+    }
+
+    // 最新的快照损坏时报错，不退回旧数据，也不删除文件
+    @Test
+    public void unreadableSnapshotFailsLoadAndKeepsFiles() throws IOException {
+        TagJournal journal = new TagJournal(directory);
+        journal.start(TagIndex.of(PathTrie.EMPTY.put("/p/x", TagBits.of(0))), new String[]{"a"});
+        journal.append(TagJournal.SET_FILE, "/p/y", "a");
+        journal.close();
+        Path snapshot = directory.resolve("fileTagger.1.snapshot");
+        Files.write(snapshot, new byte[]{1, 2, 3});
+
+        try {
+            load(new TagJournal(directory), new ArrayList<>());
+            fail("Expected the corrupted snapshot to fail the load");
+        } catch (IOException expected) {
+            // 预期的失败
+        }
+        assertTrue(Files.exists(snapshot));
+        assertTrue(Files.exists(journalFile(1)));
+    }
+
+    // 重新加载：XML 中的标签定义加上快照和日志，与 TagStorageService.loadState 的日志模式相同
+    private TagSnapshot reload(TagStorageService.State xml) throws IOException {
+        TagSnapshot.Builder builder = TagSnapshot.EMPTY.edit();
+        TagStorageService.applyXmlState(builder, xml);
+        TagStorageService.replayJournal(builder, new TagJournal(directory));
+        TagStorageService.recountUsage(builder);
+        return builder.build();
+    }
+
+    // 改名之后保存的 XML 只有新名字；日志中改名之前的记录会把旧名字加回来，回放改名时要把它并入新名字
+    @Test
+    public void renameSurvivesXmlSaveAndReload() throws IOException {
+        TagJournal journal = new TagJournal(directory);
+        journal.append(TagJournal.ADD_TAG, "old");
+        journal.append(TagJournal.SET_FILE, "/p/x", "old");
+        journal.append(TagJournal.RENAME_TAG, "old", "new");
+        journal.close();
+
+        TagStorageService.State xml = new TagStorageService.State();
+        xml.availableTags.put("new", new TagStorageService.TagInfo("new"));
+        TagSnapshot snapshot = reload(xml);
+        assertEquals(Set.of("new"), snapshot.tags.keySet());
+        assertEquals(Map.of("/p/x", Set.of("new")), TagStorageService.toFileTagsMap(snapshot));
+        assertEquals(1, snapshot.getTagUsageCount("new"));
+        assertTrue(TagConsistencyChecker.check(snapshot, null).isEmpty());
+    }
+
+    @Test
+    public void renameOfSnapshotTagSurvivesXmlSaveAndReload() throws IOException {
+        TagJournal journal = new TagJournal(directory);
+        TagIndex index = TagIndex.of(PathTrie.EMPTY.put("/p/x", TagBits.of(0)).put("/p/y", TagBits.of(0).with(1)));
+        journal.compact(index, new String[]{"old", "other"});
+        journal.append(TagJournal.RENAME_TAG, "old", "new");
+        journal.close();
+
+        TagStorageService.State xml = new TagStorageService.State();
+        xml.availableTags.put("new", new TagStorageService.TagInfo("new"));
+        xml.availableTags.put("other", new TagStorageService.TagInfo("other"));
+        TagSnapshot snapshot = reload(xml);
+        assertEquals(Set.of("new", "other"), snapshot.tags.keySet());
+        assertEquals(Map.of("/p/x", Set.of("new"), "/p/y", Set.of("new", "other")), TagStorageService.toFileTagsMap(snapshot));
+        assertEquals(2, snapshot.getTagUsageCount("new"));
+        assertTrue(TagConsistencyChecker.check(snapshot, null).isEmpty());
+    }
+
+    // XML 在改名之前保存时按普通改名回放
+    @Test
+    public void renameReplayedOverXmlSavedBeforeRename() throws IOException {
+        TagJournal journal = new TagJournal(directory);
+        journal.append(TagJournal.SET_FILE, "/p/x", "old");
+        journal.append(TagJournal.RENAME_TAG, "old", "new");
+        journal.close();
+
+        TagStorageService.State xml = new TagStorageService.State();
+        xml.availableTags.put("old", new TagStorageService.TagInfo("old"));
+        TagSnapshot snapshot = reload(xml);
+        assertEquals(Set.of("new"), snapshot.tags.keySet());
+        assertEquals(Map.of("/p/x", Set.of("new")), TagStorageService.toFileTagsMap(snapshot));
+    }
+}
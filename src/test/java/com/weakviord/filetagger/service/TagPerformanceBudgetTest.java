@@ -0,0 +1,134 @@
+package com.weakviord.filetagger.service;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+/**
+ * 标签存储的性能回归预算，数据与 jmh 源集中的基准测试相同（10 万个路径）。
+ * 预算大约是开发机上测得中位数的 5 到 10 倍，只用来拦住量级上的退化；细的对比看 JMH 的结果。
+ * 耗时和保留堆大小的检查属于 MachineDependent，只在 budgetTest 任务中运行。
+ */
+public class TagPerformanceBudgetTest {
+    private static final int PATH_COUNT = 100_000;
+    private static final int TAG_COUNT = 100;
+
+    private static TagStorageBenchmark storageBenchmark() {
+        TagStorageBenchmark benchmark = new TagStorageBenchmark();
+        benchmark.pathCount = PATH_COUNT;
+        benchmark.tagCount = TAG_COUNT;
+        benchmark.setUp();
+        return benchmark;
+    }
+
+    @Test
+    @Category(MachineDependent.class)
+    public void workloadReplay() {
+        TagWorkloadBenchmark benchmark = new TagWorkloadBenchmark();
+        benchmark.pathCount = PATH_COUNT;
+        benchmark.tagCount = TAG_COUNT;
+        benchmark.setUp();
+        PerformanceBudget.assertTime("Workload replay", 1500, benchmark::replay);
+        // 结果与普通 Map 上回放的结果不一致时抛出异常
+        benchmark.verify();
+    }
+
+    // 不计时，只检查回放结果，在默认的 test 任务中运行
+    @Test
+    public void workloadReplayMatchesPlainMap() {
+        TagWorkloadBenchmark benchmark = new TagWorkloadBenchmark();
+        benchmark.pathCount = PATH_COUNT;
+        benchmark.tagCount = TAG_COUNT;
+        benchmark.setUp();
+        benchmark.replay();
+        benchmark.verify();
+    }
+
+    // 毫秒以下的操作在 CI 上受调度和 JIT 的影响很大，下限取 5 毫秒
+    @Test
+    @Category(MachineDependent.class)
+    public void storageOperations() {
+        TagStorageBenchmark benchmark = storageBenchmark();
+        PerformanceBudget.assertTime("Load state", 3000, benchmark::loadState);
+        PerformanceBudget.assertTime("Save state", 2000, benchmark::saveState);
+        PerformanceBudget.assertTime("Rename directory", 5, benchmark::renameDirectory);
+        PerformanceBudget.assertTime("Rename tag", 5, benchmark::renameTag);
+        PerformanceBudget.assertTime("Delete tag", 1000, benchmark::deleteTag);
+        PerformanceBudget.assertTime("Set file tags", 5, benchmark::setFileTags);
+        PerformanceBudget.assertTime("Usage count", 5, benchmark::tagUsageCount);
+    }
+
+    // 修改一个文件只复制根到该文件的一条路径
+    @Test
+    public void storageAllocations() {
+        TagStorageBenchmark benchmark = storageBenchmark();
+        PerformanceBudget.assertAllocation("Set file tags", 16 * 1024, benchmark::setFileTags);
+        PerformanceBudget.assertAllocation("Rename directory", 16 * 1024, benchmark::renameDirectory);
+    }
+
+    // 内存中只保留前缀树，目录段和标签组合都是共享的，开发机上约为每条 120 字节。依赖 System.gc() 的时机
+    @Test
+    @Category(MachineDependent.class)
+    public void retainedHeapPerEntry() {
+        TagStorageService.State state = BenchmarkData.state(PATH_COUNT, TAG_COUNT, 42);
+        long before = PerformanceBudget.usedHeap();
+        TagSnapshot snapshot = BenchmarkData.load(state);
+        long retained = PerformanceBudget.usedHeap() - before;
+        assertNotNull(snapshot.index.get(BenchmarkData.filePath(0)));
+        // 测量期间 State 要保持可达，否则它被回收的部分会从结果中扣掉
+        assertEquals(PATH_COUNT, state.fileTagsMap.size());
+        long perEntry = retained / PATH_COUNT;
+        assertTrue("Tag data retains " + perEntry + " bytes per entry", perEntry < 300);
+    }
+
+    @Test
+    @Category(MachineDependent.class)
+    public void mappedSnapshotStartup() throws IOException {
+        TagStartupBenchmark benchmark = new TagStartupBenchmark();
+        benchmark.pathCount = PATH_COUNT;
+        benchmark.tagCount = TAG_COUNT;
+        benchmark.setUp();
+        try {
+            assertNotNull(PerformanceBudget.assertTime("Open mapped snapshot", 300, () -> {
+                try {
+                    return benchmark.openSnapshot();
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }));
+        } finally {
+            benchmark.tearDown();
+        }
+    }
+
+    @Test
+    @Category(MachineDependent.class)
+    public void tagQueries() {
+        TagQueryBenchmark benchmark = new TagQueryBenchmark();
+        benchmark.pathCount = PATH_COUNT;
+        benchmark.tagCount = TAG_COUNT;
+        benchmark.setUp();
+        PerformanceBudget.assertTime("AND NOT query", 10, benchmark::andNotQuery);
+        PerformanceBudget.assertTime("Union query", 10, benchmark::unionQuery);
+        PerformanceBudget.assertTime("Query after single-file edit", 20, benchmark::queryAfterEdit);
+        PerformanceBudget.assertTime("Build postings", 200, benchmark::buildPostings);
+    }
+
+    @Test
+    public void snapshotFileIsSmallerThanEntries() throws IOException {
+        Path directory = Files.createTempDirectory("tag-budget");
+        try {
+            Path file = directory.resolve("snapshot");
+            BenchmarkData.writeSnapshot(BenchmarkData.load(BenchmarkData.state(PATH_COUNT, TAG_COUNT, 42)), file);
+            long perEntry = Files.size(file) / PATH_COUNT;
+            assertTrue("Snapshot uses " + perEntry + " bytes per entry", perEntry < 100);
+        } finally {
+            TestFiles.deleteRecursively(directory);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.weakviord.filetagger.service;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class TagQueryTest {
+    private static final int TAG_COUNT = 8;
+
+    private static TagSnapshot snapshot;
+
+    @BeforeClass
+    public static void setUp() {
+        TagSnapshot.Builder builder = TagSnapshot.EMPTY.edit();
+        for (int i = 0; i < TAG_COUNT; i++) {
+            builder.mutableTags().put(tagName(i), new TagStorageService.TagInfo(tagName(i)));
+            builder.mutableDictionary().getOrAdd(tagName(i));
+        }
+        Random random = new Random(1);
+        for (int i = 0; i < 20_000; i++) {
+            TagBits tags = TagBits.EMPTY;
+            for (int t = 0; t < TAG_COUNT; t++) {
+                if (random.nextInt(5) == 0) {
+                    tags = tags.with(t);
+                }
+            }
+            if (!tags.isEmpty()) {
+                builder.putFileTags("/p/d" + i % 97 + "/s" + i % 13 + "/f" + i + ".txt", tags);
+            }
+        }
+        snapshot = builder.build();
+    }
+
+    private static String tagName(int index) {
+        return "t" + index;
+    }
+
+    private static Set<String> bruteForce(TagSnapshot snapshot, Predicate<TagBits> matcher) {
+        Set<String> paths = new HashSet<>();
+        snapshot.queryIndex().forEach((path, tags) -> {
+            if (matcher.test(tags)) {
+                paths.add(path);
+            }
+        });
+        return paths;
+    }
+
+    private static void assertMatches(TagSnapshot snapshot, String expression, Predicate<TagBits> matcher) {
+        TagQuery.Result result = TagQuery.parse(expression).evaluate(snapshot);
+        Set<String> expected = bruteForce(snapshot, matcher);
+        assertEquals(expression, expected, result.stream().collect(Collectors.toSet()));
+        assertEquals(expression, expected.size(), result.size());
+    }
+
+    @Test
+    public void evaluationMatchesBruteForce() {
+        assertMatches(snapshot, "t0 AND t1 AND NOT t2", tags -> tags.contains(0) && tags.contains(1) && !tags.contains(2));
+        assertMatches(snapshot, "t0 | (t3 & !t4)", tags -> tags.contains(0) || tags.contains(3) && !tags.contains(4));
+        assertMatches(snapshot, "NOT t7", tags -> !tags.contains(7));
+        assertMatches(snapshot, "t5 t6 || t1", tags -> tags.contains(5) && tags.contains(6) || tags.contains(1));
+        assertMatches(snapshot, "!t0 !t1", tags -> !tags.contains(0) && !tags.contains(1));
+        assertMatches(snapshot, "missing OR t2", tags -> tags.contains(2));
+    }
+
+    // 底层是内存映射快照、上层有修改时结果仍然一致
+    @Test
+    public void evaluationOverMappedSnapshotWithEdits() throws IOException {
+        Path directory = Files.createTempDirectory("tag-query");
+        try {
+            Path file = directory.resolve("snapshot");
+            MappedTagSnapshot.write(file, snapshot.index, snapshot.dictionary.nameTable());
+            TagSnapshot.Builder builder = snapshot.edit();
+            builder.index = TagIndex.of(MappedTagSnapshot.open(file, builder.mutableDictionary()::getOrAdd));
+            builder.putFileTags("/p/d1/s1/f1.txt", TagBits.EMPTY);
+            builder.putFileTags("/p/new.txt", TagBits.of(0).with(1));
+            builder.index = builder.index.move("/p/d2", "/p/d2x");
+            TagSnapshot layered = builder.build();
+            assertMatches(layered, "t0 AND t1 AND NOT t2", tags -> tags.contains(0) && tags.contains(1) && !tags.contains(2));
+            assertMatches(layered, "NOT t7", tags -> !tags.contains(7));
+        } finally {
+            TestFiles.deleteRecursively(directory);
+        }
+    }
+
+    // 每次修改后倒排表由上一个快照的倒排表增量得到，结果与逐条比较一致；删除后重新加回的路径沿用原来的 id
+    @Test
+    public void incrementalPostingsMatchBruteForce() {
+        TagSnapshot current = snapshot;
+        TagQuery.parse("t0").evaluate(current);
+        Random random = new Random(7);
+        for (int step = 0; step < 40; step++) {
+            TagSnapshot.Builder builder = current.edit();
+            for (int i = 0; i < 5; i++) {
+                String path = "/p/d" + random.nextInt(97) + "/s" + random.nextInt(13) + "/f" + random.nextInt(25_000) + ".txt";
+                builder.putFileTags(path, random.nextInt(4) == 0 ? TagBits.EMPTY : TagBits.of(random.nextInt(TAG_COUNT)));
+            }
+            if (step % 10 == 3) {
+                builder.index = builder.index.move("/p/d" + step, "/p/moved" + step);
+            }
+            if (step % 10 == 7) {
+                builder.index = builder.index.move("/p/moved" + (step - 4), "/p/d" + (step - 4));
+            }
+            current = builder.build();
+            assertMatches(current, "t0 AND NOT t1", tags -> tags.contains(0) && !tags.contains(1));
+            assertMatches(current, "NOT t2", tags -> !tags.contains(2));
+        }
+        assertEquals(TagQuery.parse("t3 OR t4").evaluate(current).stream().collect(Collectors.toSet()),
+            bruteForce(current, tags -> tags.contains(3) || tags.contains(4)));
+    }
+
+    @Test
+    public void pagesFollowStreamOrder() {
+        TagQuery.Result result = TagQuery.parse("t3").evaluate(snapshot);
+        List<String> all = result.stream().toList();
+        List<String> paged = new ArrayList<>();
+        for (int from = 0; from < result.size(); from += 700) {
+            paged.addAll(result.getPage(from, 700));
+        }
+        assertEquals(all, paged);
+        assertTrue(result.getPage(result.size(), 10).isEmpty());
+    }
+
+    @Test
+    public void quotedNamesAndKeywordsAsTags() {
+        TagSnapshot.Builder builder = TagSnapshot.EMPTY.edit();
+        for (String name : List.of("my tag", "and")) {
+            builder.mutableTags().put(name, new TagStorageService.TagInfo(name));
+            builder.mutableDictionary().getOrAdd(name);
+        }
+        builder.putFileTags("/p/a", builder.encodeExisting(List.of("my tag")));
+        builder.putFileTags("/p/b", builder.encodeExisting(List.of("and")));
+        TagSnapshot small = builder.build();
+        assertEquals(List.of("/p/a"), TagQuery.parse("\"my tag\"").evaluate(small).getPage(0, 10));
+        assertEquals(List.of("/p/b"), TagQuery.parse("\"and\" AND NOT \"my tag\"").evaluate(small).getPage(0, 10));
+    }
+
+    @Test
+    public void rejectsMalformedExpressions() {
+        for (String expression : List.of("", "a AND", "(a", "a)", "\"a", "AND b", "a | | b")) {
+            try {
+                TagQuery.parse(expression);
+                fail("Expected a parse error for '" + expression + "'");
+            } catch (IllegalArgumentException expected) {
+                assertNotNull(expected.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void keywordsAreCaseInsensitive() {
+        assertMatches(snapshot, "t0 and not t1 or t2", tags -> tags.contains(0) && !tags.contains(1) || tags.contains(2));
+    }
+}
@@ -0,0 +1,247 @@
+package com.weakviord.filetagger.service;
+
+import com.intellij.openapi.application.WriteAction;
+import com.intellij.openapi.vfs.VfsUtil;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.ex.temp.TempFileSystem;
+import com.intellij.testFramework.fixtures.BasePlatformTestCase;
+
+import java.util.*;
+
+/**
+ * 在轻量测试项目中通过真实的 VFS 事件驱动 TagStorageService，检查标签数据与 VFS 保持一致。
+ * 测试项目在内存文件系统（temp://）中，各测试共用同一个项目，setUp 中重置服务状态。
+ */
+public class TagStorageServiceTest extends BasePlatformTestCase {
+    private static final int MODULES = 20;
+    private static final int PACKAGES = 20;
+    private static final int FILES_PER_PACKAGE = 50;
+    private static final int TAG_COUNT = 10;
+
+    private TagStorageService service;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        service = getProject().getService(TagStorageService.class);
+        TagStorageService.State state = new TagStorageService.State();
+        // 删除事件立即移除条目，不经过宽限期
+        state.staleGraceMinutes = 0;
+        service.loadState(state);
+        // EDT 上的修改在索引建好之前排队，先建好索引，下面的修改立即生效
+        service.getIndexedSnapshot();
+        for (int i = 0; i < TAG_COUNT; i++) {
+            service.addTag(tagName(i));
+        }
+    }
+
+    private static String tagName(int index) {
+        return "tag" + index;
+    }
+
+    private VirtualFile createFile(String relativePath) {
+        return myFixture.addFileToProject(relativePath, "").getVirtualFile();
+    }
+
+    // 标签数据中的每个路径都能在 VFS 中找到，且与快照内部的计数一致
+    private void assertConsistent() {
+        TempFileSystem fileSystem = TempFileSystem.getInstance();
+        List<String> problems = TagConsistencyChecker.check(service.getIndexedSnapshot(),
+            path -> fileSystem.findFileByPath(path) != null);
+        assertEmpty(problems);
+    }
+
+    public void testRenameAndMoveKeepTags() throws Exception {
+        VirtualFile file = createFile("a/A.java");
+        VirtualFile other = createFile("b/B.java");
+        service.setFileTags(file, Set.of(tagName(0), tagName(1)));
+        service.setFileTags(other, Set.of(tagName(1)));
+
+        WriteAction.runAndWait(() -> file.rename(this, "Renamed.java"));
+        assertEquals(Set.of(tagName(0), tagName(1)), service.getFileTags(file));
+
+        VirtualFile target = WriteAction.computeAndWait(() -> VfsUtil.createDirectoryIfMissing(file.getParent().getParent(), "c"));
+        WriteAction.runAndWait(() -> file.getParent().move(this, target));
+        assertEquals(Set.of(tagName(0), tagName(1)), service.getFileTags(file));
+        assertEquals(List.of(file.getPath()), service.getFilesWithTag(tagName(0)));
+        assertEquals(2, service.getTagUsageCount(tagName(1)));
+        assertConsistent();
+    }
+
+    public void testDeleteRemovesTagsAndCounts() throws Exception {
+        VirtualFile file = createFile("d/A.java");
+        VirtualFile sibling = createFile("d/B.java");
+        service.setFileTags(file, Set.of(tagName(0)));
+        service.setFileTags(sibling, Set.of(tagName(0), tagName(2)));
+
+        WriteAction.runAndWait(() -> file.getParent().delete(this));
+        assertEmpty(service.getFilesWithTag(tagName(0)));
+        assertEquals(0, service.getTagUsageCount(tagName(0)));
+        assertEquals(0, service.getTagUsageCount(tagName(2)));
+        assertConsistent();
+    }
+
+    // 加载后索引可能还在后台构建，这时的移动和删除排队，构建完成后作用在完整的数据上
+    public void testPathChangesDuringIndexBuildAreApplied() throws Exception {
+        VirtualFile moved = createFile("f/A.java");
+        VirtualFile deleted = createFile("f/B.java");
+        TagStorageService.State state = new TagStorageService.State();
+        state.staleGraceMinutes = 0;
+        state.availableTags.put(tagName(0), new TagStorageService.TagInfo(tagName(0)));
+        state.fileTagsMap.put(moved.getPath(), new HashSet<>(Set.of(tagName(0))));
+        state.fileTagsMap.put(deleted.getPath(), new HashSet<>(Set.of(tagName(0))));
+        service.loadState(state);
+
+        WriteAction.runAndWait(() -> {
+            moved.rename(this, "Renamed.java");
+            deleted.delete(this);
+        });
+        TagSnapshot snapshot = service.getIndexedSnapshot();
+        assertEquals(Map.of(moved.getPath(), Set.of(tagName(0))), TagStorageService.toFileTagsMap(snapshot));
+        assertEquals(1, service.getTagUsageCount(tagName(0)));
+        assertConsistent();
+    }
+
+    // 索引构建完成前在 EDT 上的修改不在 EDT 上构建索引，构建完成后按顺序作用在完整的数据上
+    public void testEdtEditsDuringIndexBuildAreApplied() {
+        VirtualFile file = createFile("i/A.java");
+        VirtualFile other = createFile("i/B.java");
+        TagStorageService.State state = new TagStorageService.State();
+        state.availableTags.put(tagName(0), new TagStorageService.TagInfo(tagName(0)));
+        state.fileTagsMap.put(file.getPath(), new HashSet<>(Set.of(tagName(0))));
+        service.loadState(state);
+
+        assertTrue(service.addTag(tagName(1)));
+        service.updateFileTags(List.of(file, other), Set.of(tagName(1)), Set.of());
+        assertTrue(service.renameTag(tagName(0), "renamed"));
+        TagSnapshot snapshot = service.getIndexedSnapshot();
+        assertEquals(Map.of(file.getPath(), Set.of("renamed", tagName(1)), other.getPath(), Set.of(tagName(1))),
+            TagStorageService.toFileTagsMap(snapshot));
+        assertEquals(2, service.getTagUsageCount(tagName(1)));
+        assertConsistent();
+    }
+
+    // 宽限期内删除的文件条目还在，另一个文件移动到同一路径时替换它，计数不重复
+    public void testMoveOntoStaleEntryReplacesIt() throws Exception {
+        TagStorageService.State state = new TagStorageService.State();
+        state.staleGraceMinutes = 10;
+        service.loadState(state);
+        service.getIndexedSnapshot();
+        service.addTag(tagName(0));
+        service.addTag(tagName(1));
+        VirtualFile stale = createFile("g/A.java");
+        VirtualFile moved = createFile("h/A.java");
+        VirtualFile target = stale.getParent();
+        service.setFileTags(stale, Set.of(tagName(0)));
+        service.setFileTags(moved, Set.of(tagName(1)));
+        String stalePath = stale.getPath();
+
+        WriteAction.runAndWait(() -> stale.delete(this));
+        assertEquals(Set.of(tagName(0)), service.getSnapshot().getFileTags(stalePath));
+        WriteAction.runAndWait(() -> moved.move(this, target));
+        assertEquals(stalePath, moved.getPath());
+        assertEquals(Set.of(tagName(1)), service.getFileTags(moved));
+        assertEquals(0, service.getTagUsageCount(tagName(0)));
+        assertEquals(1, service.getTagUsageCount(tagName(1)));
+        assertConsistent();
+    }
+
+    public void testTagRenameSurvivesSaveAndReload() {
+        VirtualFile file = createFile("e/A.java");
+        service.setFileTags(file, Set.of(tagName(0)));
+        assertTrue(service.renameTag(tagName(0), "renamed"));
+
+        service.loadState(service.getState());
+        assertEquals(Set.of("renamed"), service.getFileTags(file));
+        assertNull(service.getTagInfo(tagName(0)));
+        assertEquals(1, service.getTagUsageCount("renamed"));
+    }
+
+    /**
+     * 生成 2 万个文件并随机打标签，然后回放批量重命名、目录移动、批量删除、标签改名和删除。
+     * VirtualFile 对象在重命名和移动后仍然有效，期望结果直接从存活的文件上得到。
+     */
+    public void testSyntheticProjectWorkload() throws Exception {
+        VirtualFile root = myFixture.getTempDirFixture().findOrCreateDir("synthetic");
+        List<VirtualFile> packages = new ArrayList<>();
+        List<VirtualFile> files = new ArrayList<>();
+        WriteAction.runAndWait(() -> {
+            for (int m = 0; m < MODULES; m++) {
+                for (int p = 0; p < PACKAGES; p++) {
+                    VirtualFile directory = VfsUtil.createDirectoryIfMissing(root, "module" + m + "/src/pkg" + p);
+                    packages.add(directory);
+                    for (int f = 0; f < FILES_PER_PACKAGE; f++) {
+                        files.add(directory.createChildData(this, "File" + f + ".java"));
+                    }
+                }
+            }
+        });
+
+        Random random = new Random(42);
+        Map<VirtualFile, Set<String>> expected = new HashMap<>();
+        for (int i = 0; i < TAG_COUNT; i++) {
+            List<VirtualFile> tagged = new ArrayList<>();
+            for (VirtualFile file : files) {
+                if (random.nextInt(4) == 0) {
+                    tagged.add(file);
+                    expected.computeIfAbsent(file, key -> new HashSet<>()).add(tagName(i));
+                }
+            }
+            service.updateFileTags(tagged, Set.of(tagName(i)), Set.of());
+        }
+        // 几个目录本身也带标签
+        for (int i = 0; i < 10; i++) {
+            VirtualFile directory = packages.get(random.nextInt(packages.size()));
+            service.setFileTags(directory, Set.of(tagName(0)));
+            expected.put(directory, new HashSet<>(Set.of(tagName(0))));
+        }
+        assertConsistent();
+
+        WriteAction.runAndWait(() -> {
+            // 批量重命名文件
+            for (int i = 0; i < 1000; i++) {
+                VirtualFile file = files.get(random.nextInt(files.size()));
+                if (!file.getName().endsWith(".bak")) {
+                    file.rename(this, file.getName() + ".bak");
+                }
+            }
+            // 把包移动到另一个模块下新建的目录中
+            for (int i = 0; i < 10; i++) {
+                VirtualFile directory = packages.get(i * PACKAGES + 1);
+                VirtualFile target = VfsUtil.createDirectoryIfMissing(root, "module" + (MODULES - 1) + "/moved" + i);
+                directory.move(this, target);
+            }
+            // 切换分支式的删除：一次去掉多个包
+            for (int i = 0; i < 20; i++) {
+                VirtualFile directory = packages.get(i * PACKAGES + 2);
+                if (directory.isValid()) {
+                    directory.delete(this);
+                }
+            }
+        });
+
+        assertTrue(service.renameTag(tagName(1), "renamed"));
+        assertTrue(service.deleteTag(tagName(2)));
+
+        Map<String, Set<String>> expectedByPath = new HashMap<>();
+        for (Map.Entry<VirtualFile, Set<String>> entry : expected.entrySet()) {
+            if (!entry.getKey().isValid()) {
+                continue;
+            }
+            Set<String> tags = new HashSet<>(entry.getValue());
+            if (tags.remove(tagName(1))) {
+                tags.add("renamed");
+            }
+            tags.remove(tagName(2));
+            if (!tags.isEmpty()) {
+                expectedByPath.put(entry.getKey().getPath(), tags);
+            }
+        }
+        assertEquals(expectedByPath, TagStorageService.toFileTagsMap(service.getIndexedSnapshot()));
+        assertConsistent();
+
+        // XML 保存后重新加载得到相同的数据
+        service.loadState(service.getState());
+        assertEquals(expectedByPath, TagStorageService.toFileTagsMap(service.getIndexedSnapshot()));
+    }
+}
@@ -0,0 +1,112 @@
+package com.weakviord.filetagger.service;
+
+import org.junit.Test;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class TagTransferTest {
+    private static TagTransfer.ImportResult read(String text, String relativeTo) throws IOException {
+        return TagTransfer.read(new StringReader(text), relativeTo, text.length(), null);
+    }
+
+    private static Map<String, Set<String>> entries(TagTransfer.ImportResult result) {
+        Map<String, Set<String>> entries = new TreeMap<>();
+        result.entries.forEach((path, tags) -> entries.put(path, new HashSet<>(new TagNameSet(tags, result.dictionary))));
+        return entries;
+    }
+
+    @Test
+    public void parsesTagsAndFiles() throws IOException {
+        TagTransfer.ImportResult result = read("""
+            {"tag":"needs-review","color":"#ff8800ff"}
+            {"path":"/p/Main.java","tags":["needs-review","hot-path"]}
+
+            { "path" : "/p/dir/" , "tags" : [ "quoted \\"name\\"" ] }
+            {"path":"/p/Main.java","tags":["extra"]}
+            """, null);
+        assertEquals(0, result.getSkippedCount());
+        assertEquals(new Color(0xff, 0x88, 0x00, 0xff), result.colors.get("needs-review"));
+        Map<String, Set<String>> expected = new TreeMap<>();
+        expected.put("/p/Main.java", Set.of("needs-review", "hot-path", "extra"));
+        expected.put("/p/dir", Set.of("quoted \"name\""));
+        assertEquals(expected, entries(result));
+        assertEquals(2, result.getImportedCount());
+    }
+
+    @Test
+    public void reportsInvalidLinesAndKeepsTheRest() throws IOException {
+        TagTransfer.ImportResult result = read("""
+            {"path":"/p/a","tags":["x"]}
+            {"path":"/p/b","tags":"x"}
+            not json
+            {"path":"/p/c","tags":["x"]} trailing
+            {"tag":"y","color":"red"}
+            {"path":"relative/d","tags":["x"]}
+            {"path":"/p/e","tags":[""]}
+            """, null);
+        assertEquals(6, result.getSkippedCount());
+        assertEquals(6, result.getErrors().size());
+        assertTrue(result.getErrors().get(0).startsWith("Line 2:"));
+        assertEquals(Set.of("/p/a"), entries(result).keySet());
+    }
+
+    @Test
+    public void resolvesRelativePaths() throws IOException {
+        TagTransfer.ImportResult result = read("""
+            {"path":"src/A.java","tags":["x"]}
+            {"path":"./src/B.java","tags":["x"]}
+            {"path":"src\\\\win\\\\C.java","tags":["x"]}
+            {"path":"/abs/D.java","tags":["x"]}
+            {"path":"../outside.txt","tags":["x"]}
+            {"path":"src/../../outside.txt","tags":["x"]}
+            """, "/project");
+        assertEquals(Set.of("/project/src/A.java", "/project/src/B.java", "/project/src/win/C.java", "/abs/D.java"),
+            entries(result).keySet());
+        assertEquals(2, result.getSkippedCount());
+    }
+
+    @Test
+    public void rejectsPathsThatAreNotNormalized() throws IOException {
+        TagTransfer.ImportResult result = read("""
+            {"path":"src//A.java","tags":["x"]}
+            {"path":"src/./B.java","tags":["x"]}
+            {"path":".","tags":["x"]}
+            {"path":"/abs//C.java","tags":["x"]}
+            {"path":"/abs/./D.java","tags":["x"]}
+            {"path":"/abs/sub/../E.java","tags":["x"]}
+            {"path":"./src/dir/","tags":["x"]}
+            """, "/project");
+        assertEquals(Set.of("/project/src/dir"), entries(result).keySet());
+        assertEquals(6, result.getSkippedCount());
+        assertTrue(result.getErrors().get(0), result.getErrors().get(0).contains("not normalized"));
+    }
+
+    @Test
+    public void exportRoundTrips() throws IOException {
+        TagSnapshot.Builder builder = TagSnapshot.EMPTY.edit();
+        for (String name : List.of("a", "b\tc", "é")) {
+            TagStorageService.TagInfo tagInfo = new TagStorageService.TagInfo(name);
+            builder.mutableTags().put(name, tagInfo);
+            builder.mutableDictionary().getOrAdd(name);
+        }
+        builder.putFileTags("/project/src/A.java", builder.encodeExisting(List.of("a", "b\tc")));
+        builder.putFileTags("/project/src/B \"q\".java", builder.encodeExisting(List.of("é")));
+        builder.putFileTags("/elsewhere/C.java", builder.encodeExisting(List.of("a")));
+        TagSnapshot snapshot = builder.build();
+
+        for (String relativeTo : Arrays.asList(null, "/project")) {
+            StringWriter out = new StringWriter();
+            TagTransfer.write(snapshot, out, relativeTo, null);
+            TagTransfer.ImportResult result = read(out.toString(), relativeTo);
+            assertEquals(out.toString(), 0, result.getSkippedCount());
+            assertEquals(TagStorageService.toFileTagsMap(snapshot), entries(result));
+            assertEquals(snapshot.getTagInfo("a").getColor(), result.colors.get("a"));
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.weakviord.filetagger.ui;
+
+import com.weakviord.filetagger.service.MachineDependent;
+import com.weakviord.filetagger.service.PerformanceBudget;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+/**
+ * 项目视图装饰的性能回归预算，工作集与 TagDecorationBenchmark 相同（约 200 个节点，10 万个路径）。
+ * 耗时的检查只在 budgetTest 任务中运行，见 MachineDependent。
+ */
+public class TagDecorationBudgetTest {
+    private static TagDecorationBenchmark benchmark() {
+        TagDecorationBenchmark benchmark = new TagDecorationBenchmark();
+        benchmark.pathCount = 100_000;
+        benchmark.tagCount = 100;
+        benchmark.setUp();
+        return benchmark;
+    }
+
+    @Test
+    @Category(MachineDependent.class)
+    public void cachedRepaint() {
+        TagDecorationBenchmark benchmark = benchmark();
+        PerformanceBudget.assertTime("Cached repaint", 5, () -> {
+            benchmark.cachedRepaint(null);
+            return null;
+        });
+    }
+
+    // 命中缓存时不应为每个节点分配新的片段
+    @Test
+    public void cachedRepaintAllocation() {
+        TagDecorationBenchmark benchmark = benchmark();
+        PerformanceBudget.assertAllocation("Cached repaint", 4 * 1024, () -> {
+            benchmark.cachedRepaint(null);
+            return null;
+        });
+    }
+
+    @Test
+    @Category(MachineDependent.class)
+    public void repaintAfterModification() {
+        TagDecorationBenchmark benchmark = benchmark();
+        PerformanceBudget.assertTime("Repaint after modification", 20, () -> {
+            benchmark.repaintAfterModification(null);
+            return null;
+        });
+    }
+}